@@ -4,6 +4,9 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.Arrays;
 
+import java.util.concurrent.CompletableFuture;
+
+import java.util.function.Consumer;
 
 import java.security.NoSuchAlgorithmException;
 import java.security.InvalidKeyException;
@@ -21,11 +24,35 @@ import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
  */
 public class AsynchronouslyMutableLedger extends Ledger {
     private BlockMiner miner;
+    private LedgerCheckpoints checkpoints;
+
+    /* Set when a block couldn't be mined, so the balances count
+     * payloads that never made it onto the chain */
+    private volatile boolean miningFailed;
 
     public AsynchronouslyMutableLedger(Blockchain chain,
                                        BlockMiner miner) throws Blockchain.WalkFailedException {
-        super(chain, new ArrayList<Ledger.TransactionObserver>());
+        this(chain, miner, null);
+    }
+
+    /* Construct a ledger that starts from the newest checkpoint matching
+     * the chain, if there is one, and takes a new checkpoint every so
+     * often as blocks get mined */
+    public AsynchronouslyMutableLedger(Blockchain chain,
+                                       BlockMiner miner,
+                                       LedgerCheckpoints checkpoints) throws Blockchain.WalkFailedException {
+        super(chain,
+              new ArrayList<Ledger.TransactionObserver>(),
+              checkpoints != null ? checkpoints.newestMatching(chain) : null);
         this.miner = miner;
+        this.checkpoints = checkpoints;
+
+        /* If we had to replay a lot of blocks to get here, save the
+         * next startup from having to do the same */
+        if (checkpoints != null &&
+            chain.length() - checkpointHeight >= checkpoints.interval()) {
+            checkpoints.checkpoint(chain.length(), chain.tipHash(), ownership);
+        }
     }
 
     public static void logTransactionRejectionFailure(String reason) {
@@ -33,43 +60,114 @@ public class AsynchronouslyMutableLedger extends Ledger {
     }
 
     /* Attempt to append a transaction to the underlying blockchain. If this
-     * process fails, the transaction is just silently rejected - when the network
-     * next downloads the transaction ledger it is as if it never took place.
+     * process fails, the transaction is rejected - when the network next
+     * downloads the transaction ledger it is as if it never took place.
      *
-     * If you need to check the success of a transaction, you'll need to wait
-     * until all transactions have completed (you can use sync() on the underlying
-     * blockchain to wait until mining has finished to a particular point) */
-    public int appendSignedTransaction(SignedObject blob) throws NoSuchAlgorithmException {
-        return miner.appendPayload(blob.serialize(), new BlockMiner.PayloadValidator() {
-            public boolean validate(byte[] payload, int index) {
+     * If you need to check the success of a transaction, the returned
+     * future completes once it is mined, or exceptionally with a
+     * BlockMiner.PayloadRejectedException saying why it was rejected */
+    public CompletableFuture<BlockMiner.MinedPayload> appendSignedTransaction(SignedObject blob) throws NoSuchAlgorithmException {
+        return checkpointWhenMined(miner.appendPayload(blob.serialize(), transactionValidator()));
+    }
+
+    /* Append a batch of transactions in one go. Each one is validated and
+     * mined just as if it were passed to appendSignedTransaction, and each
+     * gets a future of its own, in the same order as blobs */
+    public List<CompletableFuture<BlockMiner.MinedPayload>> appendSignedTransactions(List<SignedObject> blobs) throws NoSuchAlgorithmException {
+        List<byte[]> payloads = new ArrayList<byte[]>(blobs.size());
+        for (SignedObject blob : blobs) {
+            payloads.add(blob.serialize());
+        }
+
+        List<CompletableFuture<BlockMiner.MinedPayload>> completions = miner.appendPayloads(payloads,
+                                                                                             transactionValidator());
+        for (CompletableFuture<BlockMiner.MinedPayload> completion : completions) {
+            checkpointWhenMined(completion);
+        }
+
+        return completions;
+    }
+
+    /* Checkpoints worked out ahead of mining are only written once their
+     * last block is actually mined, with that block's hash, see
+     * LedgerCheckpoints.blockMined */
+    private CompletableFuture<BlockMiner.MinedPayload> checkpointWhenMined(CompletableFuture<BlockMiner.MinedPayload> completion) {
+        if (checkpoints != null) {
+            completion.thenAccept(new Consumer<BlockMiner.MinedPayload>() {
+                public void accept(BlockMiner.MinedPayload mined) {
+                    checkpoints.blockMined(mined.height, mined.hash);
+                }
+            });
+        }
+
+        return completion;
+    }
+
+    private BlockMiner.PayloadValidator transactionValidator() {
+        return new BlockMiner.PayloadValidator() {
+            public boolean validate(byte[] payload, int index) throws BlockMiner.PayloadRejectedException {
+                if (miningFailed) {
+                    miningFailed = false;
+                    replayChain();
+                }
+
+                /* The balances cover exactly the blocks before this one
+                 * right now, so this is the time to take a checkpoint. The
+                 * block before this one might still be being mined, in
+                 * which case the checkpoint waits for it */
+                if (checkpoints != null) {
+                    checkpoints.maybeCheckpoint(index, chain, ownership);
+                }
+
                 try {
                     validateAndProcessPayload(payload,
                                               index,
                                               ownership,
                                               new ArrayList<TransactionObserver>());
                 } catch (Ledger.TransactionValidationFailedException e) {
-                    logTransactionRejectionFailure(e.getMessage());
-                    return false;
+                    throw rejected(e.getMessage());
                 } catch (Ledger.BlobSignatureValidationFailedException e) {
-                    logTransactionRejectionFailure(e.getMessage());
-                    return false;
+                    throw rejected(e.getMessage());
                 } catch (Blockchain.WalkFailedException e) {
-                    logTransactionRejectionFailure(e.getMessage());
-                    return false;
+                    throw rejected(e.getMessage());
                 }
 
                 return true;
             }
 
+            private BlockMiner.PayloadRejectedException rejected(String reason) {
+                logTransactionRejectionFailure(reason);
+                return new BlockMiner.PayloadRejectedException(BlockMiner.PayloadRejectedException.Reason.INVALID,
+                                                               reason);
+            }
+
             public void onMiningFailure(byte[] payload) {
                 /* Same thing, but log error */
-                SignedObject blob = new SignedObject(payload);
-                Transaction transaction = new Transaction(blob.payload);
+                TransactionView transaction = new BlockView(payload).transaction();
 
                 logTransactionRejectionFailure("Couldn't find a valid solution to " +
                                                "mine a block for " +
                                                transaction + ", sorry");
+                miningFailed = true;
+                if (checkpoints != null) {
+                    checkpoints.discardPending();
+                }
             }
-        });
+        };
+    }
+
+    /* Work the balances out again from the blocks that are actually on
+     * the chain, forgetting about every payload that was validated but
+     * not mined. The miner only validates again once it has stopped
+     * mining, so the chain won't change underneath us */
+    private void replayChain() {
+        try {
+            ownership = new Ledger(chain,
+                                   new ArrayList<Ledger.TransactionObserver>(),
+                                   checkpoints != null ? checkpoints.newestMatching(chain) : null).ownership;
+        } catch (Blockchain.WalkFailedException e) {
+            /* Every block on the chain was checked on the way in */
+            throw new RuntimeException(e.getMessage());
+        }
     }
 }
\ No newline at end of file
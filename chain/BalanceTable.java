@@ -0,0 +1,152 @@
+import java.util.Arrays;
+
+/**
+ * The BalanceTable keeps track of how many Chriscoins each wallet owns.
+ *
+ * Wallets are interned: the first time we see a public key it is given a
+ * dense integer id, and from then on its balance lives at that index of a
+ * plain long[]. Finding the id for a key uses an open-addressing hash table
+ * of ids (linear probing) that compares key bytes in place, so looking up a
+ * wallet that we already know about doesn't allocate anything.
+ *
+ * A BalanceTable is not thread safe.
+ */
+public class BalanceTable {
+    private static final int initialCapacity = 64;
+
+    /* Open-addressing index from key hashes to id + 1. Zero means the
+     * slot is empty. The length is always a power of two */
+    private int[] slots;
+
+    /* Indexed by id */
+    private WalletId[] wallets;
+    private long[] balances;
+    private int size;
+
+    public BalanceTable() {
+        this.slots = new int[initialCapacity * 2];
+        this.wallets = new WalletId[initialCapacity];
+        this.balances = new long[initialCapacity];
+        this.size = 0;
+    }
+
+    /* A deep copy of this table, for instance to take a snapshot of it
+     * while the original carries on changing */
+    public BalanceTable copy() {
+        BalanceTable table = new BalanceTable();
+        table.slots = slots.clone();
+        table.wallets = wallets.clone();
+        table.balances = balances.clone();
+        table.size = size;
+        return table;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /* Find the id of the wallet whose key is len bytes of buf starting at
+     * offset, or -1 if we have never seen it */
+    public int find(byte[] buf, int offset, int len) {
+        int mask = slots.length - 1;
+        int slot = spread(WalletId.hashOf(buf, offset, len)) & mask;
+
+        while (slots[slot] != 0) {
+            int id = slots[slot] - 1;
+            if (wallets[id].matches(buf, offset, len)) {
+                return id;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+
+        return -1;
+    }
+
+    public int find(byte[] key) {
+        return find(key, 0, key.length);
+    }
+
+    /* Find the id of a wallet, giving it a new id with a balance of zero
+     * if we haven't seen it before */
+    public int intern(byte[] buf, int offset, int len) {
+        int id = find(buf, offset, len);
+        if (id >= 0) {
+            return id;
+        }
+
+        return insert(new WalletId(Arrays.copyOfRange(buf, offset, offset + len)));
+    }
+
+    public int intern(byte[] key) {
+        return intern(key, 0, key.length);
+    }
+
+    public int intern(WalletId wallet) {
+        byte[] key = wallet.key();
+        int id = find(key);
+        return id >= 0 ? id : insert(wallet);
+    }
+
+    public WalletId wallet(int id) {
+        return wallets[id];
+    }
+
+    public long balance(int id) {
+        return balances[id];
+    }
+
+    public void setBalance(int id, long balance) {
+        balances[id] = balance;
+    }
+
+    /* The balance of a wallet, which is zero if we have never seen it */
+    public long balanceOf(byte[] key) {
+        int id = find(key);
+        return id >= 0 ? balances[id] : 0L;
+    }
+
+    private int insert(WalletId wallet) {
+        if (size == wallets.length) {
+            wallets = Arrays.copyOf(wallets, size * 2);
+            balances = Arrays.copyOf(balances, size * 2);
+        }
+
+        /* Keep the index at most half full so that probe sequences stay short */
+        if ((size + 1) * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+
+        int id = size++;
+        wallets[id] = wallet;
+        balances[id] = 0L;
+        place(id);
+        return id;
+    }
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        for (int id = 0; id < size; ++id) {
+            place(id);
+        }
+    }
+
+    private void place(int id) {
+        int mask = slots.length - 1;
+        int slot = spread(wallets[id].hashCode()) & mask;
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+
+        slots[slot] = id + 1;
+    }
+
+    /* Key hashes are polynomial, so mix the high bits into the low bits
+     * that we actually use to pick a slot */
+    private static int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return hash;
+    }
+}
@@ -1,4 +1,3 @@
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 import java.lang.Math;
@@ -7,6 +6,9 @@ import java.math.BigInteger;
 
 import java.nio.ByteBuffer;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
 import javax.xml.bind.DatatypeConverter;
 
 public class Block {
@@ -14,6 +16,10 @@ public class Block {
     public int nonce;
     public byte[] hash;
 
+    /* Decoded view of the payload. This is never serialised, and is
+     * thrown away if somebody swaps out the payload */
+    private transient BlockView view;
+
     public Block(byte[] payload,
                  int nonce,
                  byte[] parentHash) throws NoSuchAlgorithmException {
@@ -39,55 +45,89 @@ public class Block {
         return hashInt.compareTo(target) == -1;
     }
 
+    /* Count the number of leading zero bits in a hash, most significant
+     * byte first */
+    public static int leadingZeroBits(byte[] hash) {
+        int zeroes = 0;
+        for (int i = 0; i < hash.length; ++i) {
+            if (hash[i] != 0) {
+                return zeroes + Integer.numberOfLeadingZeros(hash[i] & 0xff) - 24;
+            }
+
+            zeroes += 8;
+        }
+
+        return zeroes;
+    }
+
+    /* A hash satisfies the problem difficulty if, when read as a signed
+     * 256 bit integer, it is positive and below 2 ^ (255 - problemDifficulty).
+     * That is the same thing as having more than problemDifficulty leading
+     * zero bits, which is much cheaper to check than building a BigInteger. */
     public static boolean satisfiesProblemDifficulty(byte[] hash, long problemDifficulty) {
-        BigInteger target = BigInteger.valueOf(0L).setBit(255 - (int) problemDifficulty);
-        return satisfiesProblemDifficultyForTarget(hash, target);
+        return leadingZeroBits(hash) > problemDifficulty;
     }
 
-    private static void sleepForMs(long ms) {
-        /* This simulates more difficult problems by sleeping for longer
-         * between attempts */
-        try {
-            Thread.sleep(ms);
-        } catch (InterruptedException e) {
+    /* Scan the nonce space starting at firstNonce and stepping by stride
+     * each time, so that several workers can search disjoint parts of the
+     * space at once. Returns -1 if we ran out of numbers or if some other
+     * worker set the stop flag before we found anything.
+     *
+     * Only the block header is hashed, so all we need from the payload is
+     * its Merkle root (see BlockView.merkleRoot).
+     *
+     * The number of nonces we tried gets added to attempts once we are
+     * done, if it was provided. */
+    public static int scanNonces(byte[] merkleRoot,
+                                 byte[] parentHash,
+                                 long problemDifficulty,
+                                 int firstNonce,
+                                 int stride,
+                                 AtomicBoolean stop,
+                                 AtomicLong attempts) {
+        MiningHasher hasher = new MiningHasher(BlockHeader.parentHashOrGenesis(parentHash), merkleRoot);
+        long tried = 0;
+        int found = -1;
+
+        // cycle through all 2 ^ 630 values until loops back to 0
+        for (long nonce = firstNonce; nonce <= Globals.maxValNonce; nonce += stride) {
+            if (stop != null && stop.get()) {
+                break;
+            }
+
+            ++tried;
+            if (satisfiesProblemDifficulty(hasher.hash((int) nonce), problemDifficulty)) {
+                found = (int) nonce;
+                break;
+            }
+        }
+
+        if (attempts != null) {
+            attempts.addAndGet(tried);
         }
+
+        return found;
     }
 
     public static int mineNonce(byte[] payload,
                                 byte[] parentHash,
                                 long problemDifficulty) throws NoSuchAlgorithmException,
                                                                MiningException {
-        parentHash = parentHash != null ? parentHash : new byte[0];
-        byte[] blockContents = Globals.concatByteArrays(new byte[][] {
-            parentHash,
-            payload,
-            new byte[Globals.nBytesNonce]
-        });
-
-        BigInteger target = BigInteger.valueOf(0L).setBit(255 - (int) problemDifficulty);
-
-        // cycle through all 2 ^ 630 values until loops back to 0
-        for (int nonce = 0; nonce <= Globals.maxValNonce; nonce++) {
-            System.arraycopy(ByteBuffer.allocate(Globals.nBytesNonce).putInt(nonce).array(),
-                             0,
-                             blockContents,
-                             payload.length + parentHash.length,
-                             Globals.nBytesNonce);
-
-            byte[] blockChainHash = Blockchain.mkHash(blockContents, 0, blockContents.length);
-
-            /* First byte is all zeroes, we have our nonce */
-            if (satisfiesProblemDifficultyForTarget(blockChainHash, target)) {
-                return nonce;
-            }
-
-            sleepForMs((long) Math.pow(2, problemDifficulty));
+        int nonce = scanNonces(new BlockView(payload).merkleRoot(),
+                               parentHash,
+                               problemDifficulty,
+                               0,
+                               1,
+                               null,
+                               null);
+        if (nonce < 0) {
+            throw new MiningException();
         }
 
-        throw new MiningException();
+        return nonce;
     }
 
-    // *BPayload|4BNonce|64BBlockchainHash
+    // *BPayload|4BNonce|32BBlockchainHash
     public Block(byte[] contents) {
         /* We're assuming the payload length here based on what we know about
          * the hash and the nonce members */
@@ -115,15 +155,28 @@ public class Block {
         });
     }
 
+    /* The header of this block, if it comes after a block with the given
+     * hash */
+    public BlockHeader header(byte[] parentHash) throws NoSuchAlgorithmException {
+        return new BlockHeader(parentHash, view().merkleRoot(), this.nonce);
+    }
+
+    /* The hash of a block is the hash of its header, which covers the
+     * payload through the Merkle root */
     public byte[] computeContentHash(byte[] parentHash) throws NoSuchAlgorithmException {
-        return Blockchain.mkHash(Globals.concatByteArrays(new byte[][] {
-                                     parentHash != null ? parentHash : new byte[0],
-                                     this.serialize(),
-                                 }),
-                                 0,
-                                 (parentHash != null ? parentHash.length : 0) +
-                                 this.payload.length +
-                                 Globals.nBytesNonce);
+        return header(parentHash).hash();
+    }
+
+    /* A read-only view over the payload of this block. The view is only
+     * decoded once, unless the payload is replaced */
+    public BlockView view() {
+        BlockView current = view;
+        if (current == null || !current.isViewOf(payload)) {
+            current = new BlockView(payload);
+            view = current;
+        }
+
+        return current;
     }
 
     public String toString() {
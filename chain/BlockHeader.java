@@ -0,0 +1,69 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A BlockHeader is the fixed size part of a block that actually gets
+ * hashed, and so mined:
+ *
+ *     32BParentHash|32BMerkleRoot|4BNonce
+ *
+ * The Merkle root commits to every transaction in the block (see
+ * MerkleTree), so the block's hash covers its whole payload without mining
+ * having to hash the payload again on every attempt. The genesis block has
+ * no parent, so its parent hash is all zeros.
+ *
+ * Since a header is all that is needed to check a block's proof of work
+ * and where it sits in the chain, a wallet can follow the chain with just
+ * the headers and check individual transactions with inclusion proofs.
+ */
+public class BlockHeader {
+    public static final int nBytesHeader = Globals.nBytesBlockChainHash * 2 + Globals.nBytesNonce;
+
+    public final byte[] parentHash;
+    public final byte[] merkleRoot;
+    public final int nonce;
+
+    public BlockHeader(byte[] parentHash, byte[] merkleRoot, int nonce) {
+        this.parentHash = parentHashOrGenesis(parentHash);
+        this.merkleRoot = merkleRoot.clone();
+        this.nonce = nonce;
+    }
+
+    /* The parent hash as it appears in the header, which is all zeros for
+     * the genesis block. The genesis block's parent might be null or the
+     * empty tip hash of an empty chain */
+    public static byte[] parentHashOrGenesis(byte[] parentHash) {
+        return parentHash != null && parentHash.length > 0 ?
+            parentHash.clone() : new byte[Globals.nBytesBlockChainHash];
+    }
+
+    public static BlockHeader deserialize(byte[] buf, int offset) {
+        ByteBuffer buffer = ByteBuffer.wrap(buf, offset, nBytesHeader);
+        byte[] parentHash = new byte[Globals.nBytesBlockChainHash];
+        byte[] merkleRoot = new byte[Globals.nBytesBlockChainHash];
+
+        buffer.get(parentHash);
+        buffer.get(merkleRoot);
+        return new BlockHeader(parentHash, merkleRoot, buffer.getInt());
+    }
+
+    public byte[] serialize() {
+        return ByteBuffer.allocate(nBytesHeader)
+                         .put(parentHash)
+                         .put(merkleRoot)
+                         .putInt(nonce)
+                         .array();
+    }
+
+    public byte[] hash() throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance(Globals.hashAlg).digest(serialize());
+    }
+
+    /* Whether this header comes straight after a block with the given
+     * hash (or is the genesis block, if the hash is null) */
+    public boolean follows(byte[] previousHash) {
+        return Arrays.equals(parentHash, parentHashOrGenesis(previousHash));
+    }
+}
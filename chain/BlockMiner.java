@@ -1,7 +1,25 @@
+import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.util.function.BiConsumer;
+
 
 /**
  * A BlockMiner provider a mechanism to mine blocks for a particular
@@ -10,36 +28,245 @@ import java.util.concurrent.LinkedBlockingQueue;
  */
 public class BlockMiner {
     public static interface MiningObserver {
-        /* Called when a block gets mined, with the payload contents
-         * of that block. Callers might find it interesting */
-        void blockMined(byte[] payload);
+        /* Called when a block gets mined, once it has been stored and
+         * appended to the chain, with details of how it was mined (how
+         * many attempts it took and the block time). Callers might find
+         * it interesting. Use Block.view to look at the payload without
+         * decoding it again. */
+        void blockMined(Block block, MiningEngine.Result result);
+    }
+
+    /**
+     * BatchPolicy
+     *
+     * How many payloads may go into a single block. When the miner is ready
+     * for a new block, it takes the next payload out of its Mempool and then
+     * keeps collecting payloads until it has maxPayloads of them or
+     * maxDelayMs has passed since it started, whichever comes first.
+     * Payloads that are already waiting are always collected without
+     * waiting. The collected payloads are mined together under one nonce.
+     *
+     * Only serialised signed transactions can be batched together, see
+     * BlockView. A policy of one payload per block mines every payload on
+     * its own, exactly as it is.
+     */
+    public static class BatchPolicy {
+        public static final BatchPolicy SINGLE_PAYLOAD = new BatchPolicy(1, 0);
+
+        public final int maxPayloads;
+        public final long maxDelayMs;
+
+        public BatchPolicy(int maxPayloads, long maxDelayMs) {
+            this.maxPayloads = maxPayloads;
+            this.maxDelayMs = maxDelayMs;
+        }
     }
 
     private long problemDifficulty;
+    private transient MiningEngine engine;
     private transient HashWorker worker;
 
     public BlockMiner(Blockchain sink,
                       long problemDifficulty) {
-        this.problemDifficulty = problemDifficulty;
-        this.worker = new HashWorker(sink, null);
+        this(sink, null, problemDifficulty, 1);
     }
 
     public BlockMiner(Blockchain sink,
                       MiningObserver observer,
                       long problemDifficulty) {
+        this(sink, observer, problemDifficulty, 1);
+    }
+
+    /* Construct a BlockMiner that searches for nonces on miningThreads
+     * threads at once. See MiningEngine */
+    public BlockMiner(Blockchain sink,
+                      MiningObserver observer,
+                      long problemDifficulty,
+                      int miningThreads) {
+        this(sink, observer, problemDifficulty, new MiningEngine(miningThreads));
+    }
+
+    /* Construct a BlockMiner that mines with a particular MiningEngine,
+     * for instance, one running in MiningEngine.Mode.SIMULATED. The
+     * BlockMiner takes ownership of the engine and shuts it down along
+     * with itself */
+    public BlockMiner(Blockchain sink,
+                      MiningObserver observer,
+                      long problemDifficulty,
+                      MiningEngine engine) {
+        this(sink, observer, problemDifficulty, engine, null);
+    }
+
+    /* Construct a BlockMiner that also writes each block to a BlockStore
+     * as soon as it is mined, before it is appended to the chain. The
+     * store should already contain every block in sink */
+    public BlockMiner(Blockchain sink,
+                      MiningObserver observer,
+                      long problemDifficulty,
+                      MiningEngine engine,
+                      BlockStore store) {
+        this(sink, observer, problemDifficulty, engine, store, BatchPolicy.SINGLE_PAYLOAD);
+    }
+
+    /* Construct a BlockMiner that puts several payloads in each block,
+     * according to batchPolicy */
+    public BlockMiner(Blockchain sink,
+                      MiningObserver observer,
+                      long problemDifficulty,
+                      MiningEngine engine,
+                      BlockStore store,
+                      BatchPolicy batchPolicy) {
+        this(sink, observer, problemDifficulty, engine, store, batchPolicy, new Mempool());
+    }
+
+    /* Construct a BlockMiner that takes its payloads from a particular
+     * Mempool, for instance one with a different Mempool.Priority or
+     * memory budget */
+    public BlockMiner(Blockchain sink,
+                      MiningObserver observer,
+                      long problemDifficulty,
+                      MiningEngine engine,
+                      BlockStore store,
+                      BatchPolicy batchPolicy,
+                      Mempool mempool) {
         this.problemDifficulty = problemDifficulty;
-        this.worker = new HashWorker(sink, observer);
+        this.engine = engine;
+        this.worker = new HashWorker(sink, observer, this.engine, store, batchPolicy, mempool);
+    }
+
+    public int miningThreads() {
+        return this.engine.threads();
+    }
+
+    public MiningEngine.Mode miningMode() {
+        return this.engine.mode();
+    }
+
+    /* The total simulated time spent mining so far. This is only
+     * meaningful in MiningEngine.Mode.SIMULATED */
+    public long simulatedTimeMs() {
+        return this.engine.clock().now();
+    }
+
+    public Mempool.Stats mempoolStats() {
+        return this.worker.mempool.stats();
+    }
+
+    /* What the miner has been doing so far, see MiningMetrics */
+    public MiningMetrics metrics() {
+        return this.worker.metrics;
     }
 
     public void shutdown() {
         this.worker.finishAndWait();
+        this.engine.shutdown();
     }
 
-    public BlockMiner waitFor(int index) {
-        this.worker.waitFor(index);
+    /* Wait until the payload behind completion has been mined or turned
+     * away, whichever it was. Mining continues in the background, so
+     * nothing before it is guaranteed to be finished, only the payload
+     * itself */
+    public BlockMiner waitFor(CompletableFuture<?> completion) {
+        try {
+            completion.join();
+        } catch (CompletionException e) {
+        } catch (CancellationException e) {
+        }
+
         return this;
     }
 
+    /**
+     * MinedPayload
+     *
+     * What a future returned by appendPayload completes with once its
+     * payload is on the chain: the block it went into, the height of that
+     * block, the block's hash and where the payload sits among the others
+     * in the block, see BlockView.
+     */
+    public static class MinedPayload {
+        public final Block block;
+        public final int height;
+        public final int position;
+        public final byte[] hash;
+
+        public MinedPayload(Block block, int height, int position) {
+            this.block = block;
+            this.height = height;
+            this.position = position;
+            this.hash = block.hash.clone();
+        }
+    }
+
+    /**
+     * PayloadRejectedException
+     *
+     * What a future returned by appendPayload completes exceptionally with
+     * if its payload never makes it onto the chain. The reason says why.
+     * Validators can throw it from PayloadValidator.validate to give a more
+     * useful message than just returning false.
+     */
+    public static class PayloadRejectedException extends Exception {
+        public static enum Reason {
+            /* The validator turned it down */
+            INVALID,
+            /* The same payload was already waiting to be mined */
+            DUPLICATE,
+            /* The mempool was full, see Mempool */
+            EVICTED,
+            /* No block could be mined or stored for it */
+            MINING_FAILED
+        }
+
+        private final Reason reason;
+
+        public PayloadRejectedException(Reason reason, String msg) {
+            super(msg);
+            this.reason = reason;
+        }
+
+        public Reason reason() {
+            return reason;
+        }
+    }
+
+    /**
+     * CompletionListener
+     *
+     * Callbacks for the two ways a payload can end up, for callers who
+     * would rather not deal with the CompletableFuture directly. See
+     * whenDone.
+     */
+    public static interface CompletionListener {
+        public void mined(MinedPayload mined);
+
+        public void rejected(PayloadRejectedException rejection);
+    }
+
+    /* Call listener once the payload behind completion has been mined or
+     * rejected. If that has already happened, listener is called straight
+     * away, otherwise it is called on the mining thread, so it should not
+     * take long. */
+    public static CompletableFuture<MinedPayload> whenDone(CompletableFuture<MinedPayload> completion,
+                                                           final CompletionListener listener) {
+        return completion.whenComplete(new BiConsumer<MinedPayload, Throwable>() {
+            public void accept(MinedPayload mined, Throwable error) {
+                if (error instanceof CompletionException && error.getCause() != null) {
+                    error = error.getCause();
+                }
+
+                if (error == null) {
+                    listener.mined(mined);
+                } else if (error instanceof PayloadRejectedException) {
+                    listener.rejected((PayloadRejectedException) error);
+                } else {
+                    listener.rejected(new PayloadRejectedException(PayloadRejectedException.Reason.MINING_FAILED,
+                                                                   error.toString()));
+                }
+            }
+        });
+    }
+
     /**
      * PayloadValidator
      *
@@ -51,11 +278,26 @@ public class BlockMiner {
      * where it is stuck there permanently */
     public static interface PayloadValidator {
         /* Return true if the underlying payload should be appended to
-         * the blockchain and false otherwise */
-        public boolean validate(byte[] payload, int index);
+         * the blockchain and false otherwise. When several payloads go in
+         * the same block, they are validated one after the other with the
+         * same index, and each one should take the ones before it into
+         * account.
+         *
+         * Payloads are validated in the order they will be mined, on a
+         * thread of their own, while the block before index is still
+         * being mined. So every payload accepted so far should be taken
+         * into account, even though the chain itself might be a block
+         * behind.
+         *
+         * Throwing PayloadRejectedException is the same as returning
+         * false, except that the reason ends up on the payload's future */
+        public boolean validate(byte[] payload, int index) throws PayloadRejectedException;
 
         /* Couldn't mine a block for some reason. Report this to
-         * whoever might be interested */
+         * whoever might be interested. The payload never made it onto
+         * the chain, so anything a validator worked out assuming it
+         * would should be forgotten. Payloads validated since will be
+         * validated again for the block that is really next */
         public void onMiningFailure(byte[] payload);
     }
 
@@ -64,6 +306,16 @@ public class BlockMiner {
             public byte[] payload;
             BlockMiner.PayloadValidator validator;
             long problemDifficulty;
+            int id;
+
+            /* When the job was handed to pushJobs, by System.nanoTime */
+            long enqueuedNanos;
+
+            /* Completed once the job is mined or turned away, see
+             * HashWorker.complete */
+            final CompletableFuture<MinedPayload> completion = new CompletableFuture<MinedPayload>();
+            MinedPayload mined;
+            PayloadRejectedException rejection;
 
             public HashJob(byte[] payload,
                            long problemDifficulty,
@@ -76,100 +328,369 @@ public class BlockMiner {
             }
         }
 
-        public static class Command<E> {
-            static final int END_OF_QUEUE = 1;
-            static final int HASH_JOB = 2;
-
-            public E payload;
-            public int cmd;
-
-            public Command(int cmd, E payload) {
-                this.cmd = cmd;
-                this.payload = payload;
-            }
-        }
-
-        public BlockingQueue<Command<HashJob>> jobs;
+        private Mempool mempool;
         private Blockchain chain;
         private BlockMiner.MiningObserver observer;
-        private int jobsProcessed;
-        private int jobsSent;
+        private MiningEngine engine;
+        private BlockStore store;
+        private BatchPolicy batchPolicy;
+        private final AtomicInteger jobsSent = new AtomicInteger();
+        private final MiningMetrics metrics = new MiningMetrics();
 
         public HashWorker(Blockchain chain,
-                          BlockMiner.MiningObserver observer) {
-            this.jobs = new LinkedBlockingQueue<Command<HashJob>>();
+                          BlockMiner.MiningObserver observer,
+                          MiningEngine engine,
+                          BlockStore store,
+                          BatchPolicy batchPolicy,
+                          Mempool mempool) {
+            this.mempool = mempool;
             this.chain = chain;
             this.observer = observer;
-            this.jobsProcessed = 0;
-            this.jobsSent = 0;
+            this.engine = engine;
+            this.store = store;
+            this.batchPolicy = batchPolicy;
 
             this.start();
         }
 
+        /**
+         * ValidatedBatch
+         *
+         * Some jobs collected from the mempool, and the ones among them
+         * that their validators accepted for the block at index.
+         */
+        private static class ValidatedBatch {
+            final int index;
+            final List<HashJob> jobs = new ArrayList<HashJob>();
+            final List<HashJob> accepted = new ArrayList<HashJob>();
+            boolean finished;
+
+            ValidatedBatch(int index) {
+                this.index = index;
+            }
+        }
+
+        /**
+         * run
+         *
+         * Mining is pipelined. While one block is being mined, the next
+         * batch is collected and validated on the validator thread, as if
+         * the block being mined was already on the chain. Validation
+         * happens in the same order and against the same ledger state as
+         * it would if everything was done one step at a time, so the same
+         * payloads get accepted. They just don't have to wait for each
+         * other.
+         *
+         * The exception is the genesis block, which has different
+         * validation rules. Nothing is validated for the block after it
+         * until it has actually been mined.
+         *
+         * If a block can't be mined or stored, the batch validated behind
+         * it was validated for the wrong block. Once it is ready, the
+         * validators are told about the failure and the same jobs are
+         * validated again for the block at the real height of the chain.
+         */
         public void run() {
-            while (true) {
-                try {
-                    Command<HashJob> command = jobs.take();
-
-                    switch(command.cmd) {
-                        case Command.END_OF_QUEUE:
-                            return;
-                        case Command.HASH_JOB: {
-                            HashJob job = command.payload;
-
-                            try {
-                                if (job.validator != null &&
-                                    !job.validator.validate(job.payload, chain.length())) {
-                                    continue;
-                                }
-
-                                byte[] parentHash = chain.tipHash();
-                                int nonce = Block.mineNonce(job.payload,
-                                                            parentHash,
-                                                            job.problemDifficulty);
-                                if (observer != null) {
-                                    observer.blockMined(job.payload);
-                                }
-
-                                this.chain.append(new Block(job.payload,
-                                                            nonce,
-                                                            parentHash));
-                            } catch (NoSuchAlgorithmException e) {
-                                /* Should never happen */
-                                throw new RuntimeException(e.getMessage());
-                            } catch (Block.MiningException e) {
-                                /* Not fatal, but we should still report it */
-                                System.err.println(e.getMessage());
-                            }
-                            break;
+            ExecutorService validatorThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "payload-validator");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            try {
+                Future<ValidatedBatch> next = validatorThread.submit(prepareBatch(chain.length()));
+
+                while (true) {
+                    ValidatedBatch batch = awaitBatch(next);
+                    int nextIndex = batch.index + (batch.accepted.isEmpty() ? 0 : 1);
+                    boolean speculate = !batch.finished && batch.index > 0;
+
+                    if (speculate) {
+                        next = validatorThread.submit(prepareBatch(nextIndex));
+                    }
+
+                    boolean mined = true;
+                    try {
+                        if (!batch.accepted.isEmpty()) {
+                            mined = mineBatch(batch.accepted);
                         }
-                        default:
-                            break;
+                    } finally {
+                        mempool.done(batch.jobs);
+                        complete(batch.jobs);
+                    }
+
+                    if (!mined) {
+                        /* Validators can only forget about the failed
+                         * batch once nothing else is being validated */
+                        ValidatedBatch stale = speculate ? awaitBatch(next) : null;
+                        reportMiningFailure(batch.accepted);
+
+                        if (stale != null) {
+                            next = validatorThread.submit(revalidateBatch(stale, chain.length()));
+                        }
+                    }
+
+                    if (batch.finished) {
+                        return;
+                    }
+
+                    if (!speculate) {
+                        next = validatorThread.submit(prepareBatch(chain.length()));
                     }
+                }
+            } finally {
+                validatorThread.shutdown();
+            }
+        }
+
+        private static ValidatedBatch awaitBatch(Future<ValidatedBatch> future) {
+            while (true) {
+                try {
+                    return future.get();
                 } catch (InterruptedException e) {
-                } finally {
-                    ++this.jobsProcessed;
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
                 }
             }
         }
 
-        public int pushJob(HashWorker.HashJob job) {
-            this.jobs.add(new Command(Command.HASH_JOB, job));
-            return ++this.jobsSent;
+        /* Collect the next batch of jobs and validate them for the block
+         * at index. Validators see the ledger as it will be once every
+         * block before index is mined, but those blocks might not be on
+         * the chain yet */
+        private Callable<ValidatedBatch> prepareBatch(final int index) {
+            return new Callable<ValidatedBatch>() {
+                public ValidatedBatch call() {
+                    ValidatedBatch batch = new ValidatedBatch(index);
+
+                    try {
+                        batch.finished = collectBatch(batch.jobs, index);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+
+                    validateBatch(batch);
+                    return batch;
+                }
+            };
         }
 
-        public void waitFor(int index) {
-            /* Just spin-wait until we have dealt with this index */
-            while (this.jobsProcessed < index) {
+        /* Validate the jobs of a batch that was validated for the wrong
+         * block all over again, for the block at index. They are still
+         * held by the mempool, so nothing else can overtake them */
+        private Callable<ValidatedBatch> revalidateBatch(final ValidatedBatch stale, final int index) {
+            return new Callable<ValidatedBatch>() {
+                public ValidatedBatch call() {
+                    ValidatedBatch batch = new ValidatedBatch(index);
+                    batch.finished = stale.finished;
+
+                    for (HashJob job : stale.jobs) {
+                        job.rejection = null;
+                        batch.jobs.add(job);
+                    }
+
+                    validateBatch(batch);
+                    return batch;
+                }
+            };
+        }
+
+        private void validateBatch(ValidatedBatch batch) {
+            int index = batch.index;
+            for (HashJob job : batch.jobs) {
+                long started = System.nanoTime();
                 try {
-                    Thread.sleep(250);
-                } catch (InterruptedException e) {
+                    if (job.validator == null || job.validator.validate(job.payload, index)) {
+                        batch.accepted.add(job);
+                    } else {
+                        job.rejection = new PayloadRejectedException(PayloadRejectedException.Reason.INVALID,
+                                                                      "Payload failed validation");
+                    }
+                } catch (PayloadRejectedException e) {
+                    job.rejection = e;
+                }
+
+                metrics.payloadValidated(System.nanoTime() - started, job.rejection == null);
+            }
+        }
+
+        /* Wait for the next job, then gather up as many more as the batch
+         * policy allows for the block at index. Returns true if the mempool
+         * was closed and has nothing left, in which case the jobs collected
+         * so far should still be mined */
+        private boolean collectBatch(List<HashJob> batch, int index) throws InterruptedException {
+            HashJob job = mempool.take();
+            if (job == null) {
+                return true;
+            }
+
+            batch.add(job);
+
+            /* Transactions on the genesis block are allowed to create
+             * money out of nothing, so that block only ever gets one */
+            if (index == 0) {
+                return false;
+            }
+
+            long deadline = System.currentTimeMillis() + batchPolicy.maxDelayMs;
+            while (batch.size() < batchPolicy.maxPayloads) {
+                job = mempool.poll(deadline - System.currentTimeMillis());
+                if (job == null) {
+                    return mempool.isClosed() && mempool.size() == 0;
+                }
+
+                batch.add(job);
+            }
+
+            return false;
+        }
+
+        /* Mine the accepted jobs together as one block on top of the
+         * chain as it stands. Returns false if no block could be mined or
+         * stored, in which case every job has been marked as failed, but
+         * the validators are yet to hear about it, see reportMiningFailure */
+        private boolean mineBatch(List<HashJob> accepted) {
+            List<byte[]> payloads = new ArrayList<byte[]>(accepted.size());
+            for (HashJob job : accepted) {
+                payloads.add(job.payload);
+            }
+
+            try {
+                byte[] payload = BlockView.batchPayload(payloads);
+                byte[] parentHash = chain.tipHash();
+                MiningEngine.Result result = engine.mine(payload,
+                                                         parentHash,
+                                                         accepted.get(0).problemDifficulty);
+                Block block = new Block(payload,
+                                        result.nonce,
+                                        parentHash);
+                /* Only put the block on the chain once it is
+                 * safely on disk, otherwise the two could
+                 * disagree after a restart */
+                if (store != null) {
+                    store.append(block);
+                }
+
+                int height = this.chain.length();
+                this.chain.append(block);
+
+                if (observer != null) {
+                    observer.blockMined(block, result);
+                }
+
+                long minedNanos = System.nanoTime();
+                metrics.blockMined(result, accepted.size());
+                for (int i = 0; i < accepted.size(); ++i) {
+                    accepted.get(i).mined = new MinedPayload(block, height, i);
+                    metrics.payloadMined(minedNanos - accepted.get(i).enqueuedNanos);
                 }
+
+                return true;
+            } catch (IOException e) {
+                System.err.println("Failed to store mined block: " + e.getMessage());
+                metrics.miningFailed();
+                markMiningFailed(accepted, "Failed to store mined block: " + e.getMessage());
+            } catch (NoSuchAlgorithmException e) {
+                /* Should never happen */
+                throw new RuntimeException(e.getMessage());
+            } catch (Block.MiningException e) {
+                /* Not fatal, but we should still report it */
+                System.err.println(e.getMessage());
+                metrics.miningFailed();
+                markMiningFailed(accepted, e.getMessage());
+            }
+
+            return false;
+        }
+
+        private static void markMiningFailed(List<HashJob> jobs, String msg) {
+            for (HashJob job : jobs) {
+                job.rejection = new PayloadRejectedException(PayloadRejectedException.Reason.MINING_FAILED,
+                                                             msg);
             }
         }
 
+        /* Tell the validators of jobs that couldn't be mined, while no
+         * other validation is going on */
+        private static void reportMiningFailure(List<HashJob> jobs) {
+            for (HashJob job : jobs) {
+                if (job.validator != null) {
+                    job.validator.onMiningFailure(job.payload);
+                }
+            }
+        }
+
+        /* Complete the futures of jobs that are finished with. This only
+         * happens once the mempool has let go of them, so whoever was
+         * waiting is free to send the same payload again. A job that
+         * neither got mined nor was turned away went down with the
+         * mining thread */
+        private static void complete(List<HashJob> jobs) {
+            for (HashJob job : jobs) {
+                if (job.mined != null) {
+                    job.completion.complete(job.mined);
+                } else if (job.rejection != null) {
+                    job.completion.completeExceptionally(job.rejection);
+                } else {
+                    job.completion.completeExceptionally(
+                        new PayloadRejectedException(PayloadRejectedException.Reason.MINING_FAILED,
+                                                     "Mining stopped before the payload was mined")
+                    );
+                }
+            }
+        }
+
+        /* Hand a job to the mempool. Jobs the mempool turns away, or
+         * pushes out later on to make room, are completed straight away
+         * since they are never going to be mined */
+        public CompletableFuture<MinedPayload> pushJob(HashWorker.HashJob job) {
+            return pushJobs(Collections.singletonList(job)).get(0);
+        }
+
+        /* Hand a batch of jobs to the mempool in one go, see pushJob and
+         * Mempool.addAll */
+        public List<CompletableFuture<MinedPayload>> pushJobs(List<HashWorker.HashJob> jobs) {
+            List<HashJob> evicted = new ArrayList<HashJob>();
+            Set<HashJob> duplicates = new HashSet<HashJob>();
+            List<CompletableFuture<MinedPayload>> completions = new ArrayList<CompletableFuture<MinedPayload>>(jobs.size());
+
+            long enqueuedNanos = System.nanoTime();
+            for (HashJob job : jobs) {
+                job.id = this.jobsSent.incrementAndGet();
+                job.enqueuedNanos = enqueuedNanos;
+                completions.add(job.completion);
+            }
+
+            List<Mempool.Admission> admissions = mempool.addAll(jobs, evicted);
+            for (int i = 0; i < jobs.size(); ++i) {
+                if (admissions.get(i) == Mempool.Admission.DUPLICATE) {
+                    duplicates.add(jobs.get(i));
+                }
+
+                if (admissions.get(i) != Mempool.Admission.ADDED) {
+                    evicted.add(jobs.get(i));
+                }
+            }
+
+            for (HashJob dropped : evicted) {
+                boolean duplicate = duplicates.contains(dropped);
+                String reason = duplicate ? "already waiting to be mined" : "mempool is full";
+
+                System.err.println("[chain] Dropping payload " + dropped.id + " from the mempool: " + reason);
+                dropped.rejection = new PayloadRejectedException(duplicate ?
+                                                                 PayloadRejectedException.Reason.DUPLICATE :
+                                                                 PayloadRejectedException.Reason.EVICTED,
+                                                                 "Payload " + reason);
+            }
+
+            complete(evicted);
+            return completions;
+        }
+
         public void finish() {
-            this.jobs.add(new Command(Command.END_OF_QUEUE, null));
+            mempool.close();
         }
 
         public void finishAndWait() {
@@ -184,22 +705,37 @@ public class BlockMiner {
     /* Append a new payload to the chain by creating a new block for it
      * with a reference to the child most block as its parent. The passed
      * in PayloadValidator will validate that the payload is sane
-     * just before it is mined and the chain is guaranteed to be up to date
-     * by the time that the validate method is called.
+     * just before it is mined. Every payload that goes before it will have
+     * been validated by then, but the block before it might still be
+     * being mined, see PayloadValidator.validate.
      *
-     * The return value is the job identifier for the mining process. Since
-     * mining can take some time and we want the server to return straight
-     * away, the chain is not guarnateed to reflect the state of this payload
-     * as soon as it is appended. If you want that guarantee, you can use
-     * Blockchain.waitFor(jobId) to wait until that job identifier has been
-     * processed */
-    public int appendPayload(byte[] payload, PayloadValidator validator) {
+     * Since mining can take some time and we want the server to return
+     * straight away, the chain is not guaranteed to reflect the state of
+     * this payload as soon as it is appended. The returned future completes
+     * with a MinedPayload once the payload is on the chain, or exceptionally
+     * with a PayloadRejectedException if it never will be. Use waitFor to
+     * block until then, or whenDone to be called back */
+    public CompletableFuture<MinedPayload> appendPayload(byte[] payload, PayloadValidator validator) {
         return this.worker.pushJob(new HashWorker.HashJob(payload,
                                                           this.problemDifficulty,
                                                           validator));
     }
 
-    public int appendPayload(byte[] payload) {
+    public CompletableFuture<MinedPayload> appendPayload(byte[] payload) {
         return this.appendPayload(payload, null);
     }
+
+    /* Append a batch of payloads, each of which is validated by validator
+     * the same way as appendPayload. The whole batch goes into the mempool
+     * at once, so the payloads are mined in the order they were given,
+     * unless the mempool's fairness puts other senders in between. The
+     * futures come back in the same order as the payloads */
+    public List<CompletableFuture<MinedPayload>> appendPayloads(List<byte[]> payloads, PayloadValidator validator) {
+        List<HashWorker.HashJob> jobs = new ArrayList<HashWorker.HashJob>(payloads.size());
+        for (byte[] payload : payloads) {
+            jobs.add(new HashWorker.HashJob(payload, this.problemDifficulty, validator));
+        }
+
+        return this.worker.pushJobs(jobs);
+    }
 }
\ No newline at end of file
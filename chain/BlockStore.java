@@ -0,0 +1,321 @@
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A BlockStore keeps the blocks of a chain on disk, so that a node can
+ * be restarted without downloading and re-validating everything again.
+ *
+ * Blocks are only ever appended. They go into a series of fixed size
+ * segment files in a directory, each of which is memory-mapped. Every
+ * segment is laid out exactly like a BlockStream:
+ *
+ *     4BMagic|8BProblemDifficulty|{4BLength|*BBlock}*|4BZero...
+ *
+ * Since a new segment file is all zeros, the end of the blocks in a segment
+ * is the first zero length. When appending, the block is written before its
+ * length, so a block that was only partially written when the process died
+ * is never picked up when the store is reopened.
+ *
+ * An in-memory index of where each block starts means that reading the
+ * block at some height is a single lookup. Because the segments are
+ * already in the wire format, a run of blocks can be sent to somebody
+ * straight out of the mapped segments without decoding them at all.
+ *
+ * Appends and reads may happen on different threads.
+ */
+public class BlockStore {
+    public static final int defaultSegmentSize = 64 * 1024 * 1024;
+
+    private static final int headerLength = 4 + 8;
+    private static final String segmentPrefix = "segment-";
+    private static final String segmentSuffix = ".blocks";
+
+    private final File directory;
+    private final int segmentSize;
+    private final long problemDifficulty;
+    private final List<MappedByteBuffer> segments;
+
+    /* Where each block starts, indexed by height. The segment number is
+     * in the high 32 bits and the offset within it in the low 32 bits */
+    private long[] positions;
+    private volatile int length;
+
+    /* Where the next block goes in the last segment */
+    private int writeOffset;
+
+    public static class CorruptStoreException extends IOException {
+        public CorruptStoreException(File file, String msg) {
+            super("Block store segment " + file + " is corrupt: " + msg);
+        }
+    }
+
+    private BlockStore(File directory, int segmentSize, long problemDifficulty) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.problemDifficulty = problemDifficulty;
+        this.segments = new ArrayList<MappedByteBuffer>();
+        this.positions = new long[1024];
+        this.length = 0;
+        this.writeOffset = 0;
+    }
+
+    /**
+     * open
+     *
+     * Open the block store in directory, creating it if it doesn't exist.
+     * The blocks already in the store are indexed but not checked, we trust
+     * that they were valid when they were written.
+     *
+     * Throws CorruptStoreException if the store was written for a different
+     * problem difficulty or a segment can't be read.
+     */
+    public static BlockStore open(File directory, long problemDifficulty) throws IOException {
+        return open(directory, problemDifficulty, defaultSegmentSize);
+    }
+
+    public static BlockStore open(File directory,
+                                  long problemDifficulty,
+                                  int segmentSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create block store directory " + directory);
+        }
+
+        BlockStore store = new BlockStore(directory, segmentSize, problemDifficulty);
+        for (int i = 0; store.segmentFile(i).exists(); ++i) {
+            store.indexSegment(i);
+        }
+
+        return store;
+    }
+
+    public long problemDifficulty() {
+        return problemDifficulty;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * append
+     *
+     * Write a block to the end of the store and flush it to disk. The block
+     * is readable as soon as this returns.
+     */
+    public synchronized void append(Block block) throws IOException {
+        byte[] contents = block.serialize();
+
+        /* Leave room for the terminating zero length after the block */
+        if (segments.isEmpty() ||
+            writeOffset + 4 + contents.length + 4 > segments.get(segments.size() - 1).capacity()) {
+            if (headerLength + 4 + contents.length + 4 > segmentSize) {
+                throw new IOException("Block of " + contents.length + " bytes doesn't " +
+                                      "fit in a block store segment of " + segmentSize +
+                                      " bytes");
+            }
+
+            createSegment(segments.size());
+        }
+
+        int segment = segments.size() - 1;
+        MappedByteBuffer buffer = segments.get(segment);
+        ByteBuffer writer = buffer.duplicate();
+
+        /* The contents and the terminating zero length after them go in
+         * first and the length last. Until the length is written this
+         * block is still the end of the segment. The terminator has to be
+         * written every time, since a torn write before a restart can
+         * leave the contents of a longer block behind it */
+        writer.position(writeOffset + 4);
+        writer.put(contents);
+        writer.putInt(writeOffset + 4 + contents.length, 0);
+        buffer.force();
+        writer.putInt(writeOffset, contents.length);
+        buffer.force();
+
+        addToIndex(segment, writeOffset);
+        writeOffset += 4 + contents.length;
+    }
+
+    /* Read the block at a given height. It is an error to pass a height
+     * that is out of bounds */
+    public Block read(int height) {
+        ByteBuffer reader = frameAt(height);
+        byte[] contents = new byte[reader.getInt()];
+        reader.get(contents);
+        return new Block(contents);
+    }
+
+    /**
+     * load
+     *
+     * Make a Blockchain out of every block in the store. The blocks are
+     * appended as they are without hashing them again.
+     */
+    public Blockchain load() {
+        Blockchain chain = new Blockchain(problemDifficulty);
+        int count = length;
+
+        for (int i = 0; i < count; ++i) {
+            chain.append(read(i));
+        }
+
+        return chain;
+    }
+
+    /**
+     * writeTo
+     *
+     * Write the blocks from index fromIndex onwards to stream in the
+     * BlockStream format, copying them straight out of the mapped segments.
+     * Blocks appended while we are writing are not included.
+     */
+    public void writeTo(int fromIndex, OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        WritableByteChannel channel = Channels.newChannel(out);
+        int count = length;
+
+        out.writeInt(BlockStream.magic);
+        out.writeLong(problemDifficulty);
+
+        if (fromIndex < count) {
+            long first = positionOf(fromIndex);
+            long last = positionOf(count - 1);
+            int firstSegment = (int) (first >>> 32);
+            int lastSegment = (int) (last >>> 32);
+
+            for (int segment = firstSegment; segment <= lastSegment; ++segment) {
+                ByteBuffer reader = segmentAt(segment).duplicate();
+                int start = segment == firstSegment ? (int) first : headerLength;
+                int end = segment == lastSegment ?
+                    (int) last + 4 + reader.getInt((int) last) :
+                    endOfSegment(reader);
+
+                reader.limit(end);
+                reader.position(start);
+                out.flush();
+                while (reader.hasRemaining()) {
+                    channel.write(reader);
+                }
+            }
+        }
+
+        out.writeInt(0);
+        out.flush();
+    }
+
+    /* A reader positioned at the length of the block at height */
+    private ByteBuffer frameAt(int height) {
+        if (height < 0 || height >= length) {
+            throw new IndexOutOfBoundsException("No block at height " + height +
+                                                " in a store of " + length + " blocks");
+        }
+
+        long position = positionOf(height);
+        ByteBuffer reader = segmentAt((int) (position >>> 32)).duplicate();
+        reader.position((int) position);
+        return reader;
+    }
+
+    private synchronized long positionOf(int height) {
+        return positions[height];
+    }
+
+    private synchronized MappedByteBuffer segmentAt(int segment) {
+        return segments.get(segment);
+    }
+
+    /* The offset just past the last block in a full segment */
+    private int endOfSegment(ByteBuffer reader) {
+        int offset = headerLength;
+        int frameLength;
+
+        while (offset + 4 <= reader.capacity() && (frameLength = reader.getInt(offset)) != 0) {
+            offset += 4 + frameLength;
+        }
+
+        return offset;
+    }
+
+    private File segmentFile(int segment) {
+        return new File(directory, String.format("%s%08d%s", segmentPrefix, segment, segmentSuffix));
+    }
+
+    private void indexSegment(int segment) throws IOException {
+        File file = segmentFile(segment);
+        MappedByteBuffer buffer = map(file);
+
+        if (buffer.getInt(0) != BlockStream.magic) {
+            throw new CorruptStoreException(file, "bad magic number");
+        }
+
+        if (buffer.getLong(4) != problemDifficulty) {
+            throw new CorruptStoreException(file, "written with problem difficulty " +
+                                                  buffer.getLong(4) + ", not " +
+                                                  problemDifficulty);
+        }
+
+        int offset = headerLength;
+        while (offset + 4 <= buffer.capacity()) {
+            int frameLength = buffer.getInt(offset);
+            if (frameLength == 0) {
+                break;
+            }
+
+            if (frameLength < 0 || offset + 4 + frameLength > buffer.capacity()) {
+                throw new CorruptStoreException(file, "block at offset " + offset +
+                                                      " has bad length " + frameLength);
+            }
+
+            addToIndex(segment, offset);
+            offset += 4 + frameLength;
+        }
+
+        segments.add(buffer);
+        writeOffset = offset;
+    }
+
+    private void createSegment(int segment) throws IOException {
+        MappedByteBuffer buffer = map(segmentFile(segment));
+        buffer.putInt(0, BlockStream.magic);
+        buffer.putLong(4, problemDifficulty);
+        buffer.force();
+
+        segments.add(buffer);
+        writeOffset = headerLength;
+    }
+
+    private MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < segmentSize) {
+                raf.setLength(segmentSize);
+            }
+
+            /* The mapping stays valid after the file is closed */
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+    }
+
+    private synchronized void addToIndex(int segment, int offset) {
+        if (length == positions.length) {
+            positions = Arrays.copyOf(positions, positions.length * 2);
+        }
+
+        positions[length] = ((long) segment << 32) | offset;
+        ++length;
+    }
+}
@@ -0,0 +1,160 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * BlockStream is a compact binary encoding for sending a whole Blockchain
+ * over the wire, one block at a time.
+ *
+ * The JSON encoding of a Blockchain spells out every byte of every block
+ * as a decimal number and has to be built as one big String on both ends.
+ * Here we write a small header followed by length-prefixed blocks, so the
+ * sender never holds more than one encoded block at a time and the receiver
+ * can check each block as soon as it has arrived.
+ *
+ * The format is:
+ *
+ *     4BMagic|8BProblemDifficulty|{4BLength|*BBlock}*|4BZero
+ *
+ * where each *BBlock is what Block.serialize produces. The terminating
+ * zero length lets the reader tell the difference between a complete
+ * chain and a connection that went away halfway through.
+ */
+public class BlockStream {
+    /* What to put in the Accept and Content-Type headers when the chain
+     * is transferred in this format */
+    public static final String contentType = "application/x-simple-blockchain";
+
+    static final int magic = 0x53424331; /* "SBC1" */
+
+    /* No block that we produce is anywhere near this big, so anything
+     * longer than this is a corrupt or malicious stream */
+    private static final int maxBlockLength = 1 << 24;
+
+    public static class MalformedStreamException extends IOException {
+        public MalformedStreamException(String msg) {
+            super("Malformed block stream: " + msg);
+        }
+    }
+
+    /**
+     * write
+     *
+     * Write every block currently in the chain to stream. Blocks appended
+     * to the chain while we are writing are not included. The stream is
+     * flushed, but not closed.
+     */
+    public static void write(Blockchain chain, OutputStream stream) throws IOException {
+        write(chain, 0, stream);
+    }
+
+    /**
+     * write
+     *
+     * Write the blocks of the chain starting at index fromIndex to stream,
+     * for somebody who already has the ones before it. The result can be
+     * read with BlockStream.readInto.
+     */
+    public static void write(Blockchain chain,
+                             int fromIndex,
+                             OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        Blockchain.Snapshot snapshot = chain.snapshot();
+
+        out.writeInt(magic);
+        out.writeLong(chain.problemDifficulty());
+
+        for (int i = fromIndex; i < snapshot.length(); ++i) {
+            byte[] block = snapshot.blockAt(i).serialize();
+            out.writeInt(block.length);
+            out.write(block);
+        }
+
+        out.writeInt(0);
+        out.flush();
+    }
+
+    /**
+     * read
+     *
+     * Read a chain written by BlockStream.write. Each block is validated
+     * against its parent as soon as it is read, so a bad block stops the
+     * transfer without reading the rest of the stream.
+     */
+    public static Blockchain read(InputStream stream) throws IOException,
+                                                             NoSuchAlgorithmException,
+                                                             Blockchain.IntegrityCheckFailedException {
+        DataInputStream in = new DataInputStream(stream);
+
+        try {
+            Blockchain chain = new Blockchain(readHeader(in));
+            readBlocks(in, chain);
+            return chain;
+        } catch (EOFException e) {
+            throw new MalformedStreamException("stream ended before the last block");
+        }
+    }
+
+    /**
+     * readInto
+     *
+     * Read blocks written by BlockStream.write and append them to an
+     * existing chain, validating each one on top of the last. Returns the
+     * number of blocks that were appended. If something goes wrong part of
+     * the way through, the blocks read up to that point stay appended.
+     */
+    public static int readInto(Blockchain chain, InputStream stream) throws IOException,
+                                                                            NoSuchAlgorithmException,
+                                                                            Blockchain.IntegrityCheckFailedException {
+        DataInputStream in = new DataInputStream(stream);
+        int initialLength = chain.length();
+
+        try {
+            long problemDifficulty = readHeader(in);
+            if (problemDifficulty != chain.problemDifficulty()) {
+                throw new MalformedStreamException("problem difficulty " + problemDifficulty +
+                                                   " does not match the chain's difficulty " +
+                                                   chain.problemDifficulty());
+            }
+
+            readBlocks(in, chain);
+            return chain.length() - initialLength;
+        } catch (EOFException e) {
+            throw new MalformedStreamException("stream ended before the last block");
+        }
+    }
+
+    /* Check the magic number and return the problem difficulty */
+    private static long readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != magic) {
+            throw new MalformedStreamException("bad magic number");
+        }
+
+        return in.readLong();
+    }
+
+    private static void readBlocks(DataInputStream in, Blockchain chain) throws IOException,
+                                                                                NoSuchAlgorithmException,
+                                                                                Blockchain.IntegrityCheckFailedException {
+        while (true) {
+            int length = in.readInt();
+            if (length == 0) {
+                return;
+            }
+
+            if (length < Globals.nBytesNonce + Globals.nBytesBlockChainHash ||
+                length > maxBlockLength) {
+                throw new MalformedStreamException("block " + chain.length() +
+                                                   " has bad length " + length);
+            }
+
+            byte[] block = new byte[length];
+            in.readFully(block);
+            chain.appendValidated(new Block(block));
+        }
+    }
+}
@@ -0,0 +1,149 @@
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * A BlockView is a read-only window onto the payload of a block. A block
+ * payload is either a single SignedObject wrapping a Transaction, or a
+ * batch of them laid out back to back after a count:
+ *
+ *     4BCount|{848BSignedTransaction}*
+ *
+ * The view hands out a SignedObjectView and TransactionView over the same
+ * bytes for each transaction in the block rather than decoding and copying
+ * them. A payload that doesn't look like a batch is treated as a single
+ * transaction, which is how every block used to be laid out.
+ *
+ * Blocks cache their view, see Block.view.
+ */
+public class BlockView {
+    private final ByteBuffer buffer;
+    private final SignedObjectView[] signedObjects;
+    private final TransactionView[] transactions;
+
+    /* Worked out the first time somebody asks for it */
+    private volatile byte[] merkleRoot;
+
+    public BlockView(ByteBuffer buffer, int offset, int length) {
+        this.buffer = buffer;
+
+        int count = batchCount(buffer, offset, length);
+        if (count < 0) {
+            this.signedObjects = new SignedObjectView[] {
+                new SignedObjectView(buffer, offset, length)
+            };
+        } else {
+            this.signedObjects = new SignedObjectView[count];
+            for (int i = 0; i < count; ++i) {
+                this.signedObjects[i] = new SignedObjectView(buffer,
+                                                             offset +
+                                                             Globals.nBytesTransactionCount +
+                                                             i * Globals.nBytesSignedTransaction,
+                                                             Globals.nBytesSignedTransaction);
+            }
+        }
+
+        this.transactions = new TransactionView[this.signedObjects.length];
+        for (int i = 0; i < this.signedObjects.length; ++i) {
+            this.transactions[i] = this.signedObjects[i].transaction();
+        }
+    }
+
+    public BlockView(byte[] payload) {
+        this(ByteBuffer.wrap(payload), 0, payload.length);
+    }
+
+    /* How many transactions are in a batch payload, or -1 if the payload
+     * is not laid out as a batch */
+    private static int batchCount(ByteBuffer buffer, int offset, int length) {
+        if (length < Globals.nBytesTransactionCount ||
+            (length - Globals.nBytesTransactionCount) % Globals.nBytesSignedTransaction != 0) {
+            return -1;
+        }
+
+        int count = (length - Globals.nBytesTransactionCount) / Globals.nBytesSignedTransaction;
+        return count > 0 && buffer.getInt(offset) == count ? count : -1;
+    }
+
+    /**
+     * batchPayload
+     *
+     * Lay out some serialised SignedObjects as a single block payload. A
+     * single payload is left as it is, so that blocks with only one
+     * transaction in them look exactly like they always have.
+     */
+    public static byte[] batchPayload(List<byte[]> signedTransactions) {
+        if (signedTransactions.size() == 1) {
+            return signedTransactions.get(0);
+        }
+
+        ByteBuffer payload = ByteBuffer.allocate(Globals.nBytesTransactionCount +
+                                                 signedTransactions.size() *
+                                                 Globals.nBytesSignedTransaction);
+        payload.putInt(signedTransactions.size());
+        for (byte[] signedTransaction : signedTransactions) {
+            if (signedTransaction.length != Globals.nBytesSignedTransaction) {
+                throw new IllegalArgumentException("Only signed transactions can be batched, " +
+                                                   "got a payload of " +
+                                                   signedTransaction.length + " bytes");
+            }
+
+            payload.put(signedTransaction);
+        }
+
+        return payload.array();
+    }
+
+    /* Whether this view reads from the given array */
+    public boolean isViewOf(byte[] payload) {
+        return buffer.hasArray() && buffer.array() == payload;
+    }
+
+    public int transactionCount() {
+        return transactions.length;
+    }
+
+    public SignedObjectView signedObject(int position) {
+        return signedObjects[position];
+    }
+
+    public TransactionView transaction(int position) {
+        return transactions[position];
+    }
+
+    /**
+     * merkleTree
+     *
+     * Build the Merkle tree over the transactions in this block. There is
+     * one leaf for each signed transaction in a batch. Any other payload
+     * is a single leaf, whatever is in it.
+     */
+    public MerkleTree merkleTree() throws NoSuchAlgorithmException {
+        byte[][] leaves = new byte[signedObjects.length][];
+        for (int i = 0; i < leaves.length; ++i) {
+            leaves[i] = signedObjects[i].leafHash();
+        }
+
+        return new MerkleTree(leaves);
+    }
+
+    /* The root of merkleTree, which goes in the block header */
+    public byte[] merkleRoot() throws NoSuchAlgorithmException {
+        byte[] root = merkleRoot;
+        if (root == null) {
+            root = merkleTree().root();
+            merkleRoot = root;
+        }
+
+        return root.clone();
+    }
+
+    /* The first (and usually only) signed transaction in the block */
+    public SignedObjectView signedObject() {
+        return signedObjects[0];
+    }
+
+    public TransactionView transaction() {
+        return transactions[0];
+    }
+}
@@ -3,6 +3,7 @@ import java.util.List;
 import java.util.ArrayList;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.Collections;
 
 import javax.xml.bind.DatatypeConverter;
 
@@ -11,6 +12,12 @@ import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
 import java.security.MessageDigest;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * The Blockchain class just keeps a list of blocks and transactions.
  * It doesn't care about whether the transactions themselves are valid, it
@@ -25,10 +32,108 @@ import java.security.MessageDigest;
  * The Blockchain itself is effectively immutable in that you can't validly
  * append blocks without mining them first. See BlockMiner for a wrapper
  * class that does that (although asynchronously).
+ *
+ * The miner appends blocks while request handlers are reading them, so
+ * reads work on a Snapshot of the chain: the blocks up to some height,
+ * which never changes no matter what gets appended afterwards. Taking a
+ * snapshot is just a volatile read, so readers never wait, and appends
+ * never wait for readers. Use snapshot directly if you need to look at
+ * the chain more than once and have it agree with itself, otherwise the
+ * methods here each take a snapshot of their own.
  */
 public class Blockchain {
-    private List<Block> chain;
-    private long problemDifficulty;
+    /* The fewest blocks that we'll bother handing to another thread
+     * during validation */
+    private static final int minValidationRunLength = 16;
+
+    /* The blocks live in an array that only ever grows. Slots up to a
+     * snapshot's length are never written again, so snapshots can share
+     * the array with blocks that are appended after them. When it fills
+     * up, it is copied into a bigger one, and old snapshots keep the old
+     * one */
+    private Block[] blocks;
+    private volatile Snapshot current;
+    private final long problemDifficulty;
+
+    /* Only one append at a time. Readers never take this */
+    private final Object appendLock = new Object();
+
+    /**
+     * Snapshot
+     *
+     * The chain as it was when the snapshot was taken. Blocks appended
+     * after that are not part of it.
+     */
+    public static class Snapshot {
+        private final Block[] blocks;
+        private final int length;
+
+        Snapshot(Block[] blocks, int length) {
+            this.blocks = blocks;
+            this.length = length;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        /* The block at a given index. It is an error to pass an index
+         * that is out of bounds */
+        public Block blockAt(int index) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException("No block at " + index + " in a chain of " + length);
+            }
+
+            return blocks[index];
+        }
+
+        /* See Blockchain.parentBlockHash */
+        public byte[] parentBlockHash(int index) {
+            return index > 0 ? blockAt(index - 1).hash : null;
+        }
+
+        /* See Blockchain.tipHash */
+        public byte[] tipHash() {
+            return length > 0 ? blocks[length - 1].hash : new byte[0];
+        }
+
+        /* See Blockchain.sharesPrefix */
+        public boolean sharesPrefix(int height, byte[] tipHash) {
+            if (height < 0 || height > length) {
+                return false;
+            }
+
+            if (height == 0) {
+                return tipHash.length == 0;
+            }
+
+            return Arrays.equals(blocks[height - 1].hash, tipHash);
+        }
+
+        public void walk(BlockEnumerator enumerator) throws WalkFailedException {
+            for (int i = 0; i < length; ++i) {
+                enumerator.consume(i, blocks[i]);
+            }
+        }
+
+        /* The blocks, as a list that can't be changed */
+        public List<Block> blocks() {
+            return Collections.unmodifiableList(Arrays.asList(blocks).subList(0, length));
+        }
+    }
+
+    /* What a Blockchain looks like as JSON. The blocks are in a field
+     * called chain for the sake of chains that were serialised before
+     * there were snapshots */
+    private static class Serialised {
+        List<Block> chain;
+        long problemDifficulty;
+
+        Serialised(List<Block> chain, long problemDifficulty) {
+            this.chain = chain;
+            this.problemDifficulty = problemDifficulty;
+        }
+    }
 
     public static byte[] mkHash(byte[] message, int offset, int len) throws NoSuchAlgorithmException {
         /* Rather surprisingly, MessageDigest.getInstance does not do any
@@ -64,10 +169,17 @@ public class Blockchain {
     }
 
     public Blockchain(long problemDifficulty) {
-        this.chain = new ArrayList<Block>();
+        this.blocks = new Block[16];
+        this.current = new Snapshot(this.blocks, 0);
         this.problemDifficulty = problemDifficulty;
     }
 
+    /* The chain as it stands right now, which stays the same while more
+     * blocks are appended */
+    public Snapshot snapshot() {
+        return current;
+    }
+
     public static class WalkFailedException extends Exception {
         public WalkFailedException(String msg) {
             /* Perhaps specify block hash */
@@ -80,17 +192,21 @@ public class Blockchain {
             super("Blockchain integrity check failed at block " + index
                   + " (" + block + "). " + msg);
         }
+
+        /* For when all we have is the header, see HeaderChain */
+        public IntegrityCheckFailedException(int index, String msg) {
+            super("Blockchain integrity check failed at block " + index + ". " + msg);
+        }
     }
 
     public interface BlockEnumerator {
         void consume(int index, Block block) throws WalkFailedException;
     }
 
+    /* Walk over every block up to the child most block as it was when
+     * the walk started */
     public void walk(BlockEnumerator enumerator) throws WalkFailedException {
-        int size = chain.size();
-        for (int i = 0; i < size; ++i) {
-            enumerator.consume(i, chain.get(i));
-        }
+        current.walk(enumerator);
     }
 
     /**
@@ -107,11 +223,17 @@ public class Blockchain {
      * It is an error to pass an index that is out of bounds.
      */
     public byte[] parentBlockHash(int index) {
-        return index > 0 ? chain.get(index - 1).hash : null;
+        return current.parentBlockHash(index);
     }
 
     public int length() {
-        return chain.size();
+        return current.length();
+    }
+
+    /* The block at a given index. It is an error to pass an index that is
+     * out of bounds */
+    public Block blockAt(int index) {
+        return current.blockAt(index);
     }
 
     /* Making a getter for this isn't nice, but its the only way we can
@@ -120,46 +242,125 @@ public class Blockchain {
         return this.problemDifficulty;
     }
 
+    /* Check that a single block hashes correctly with respect to its
+     * parent and that the hash shows the block was properly mined. This
+     * only looks at the block itself and the stored hash of its parent, so
+     * blocks can be checked independently of each other. */
+    static void validateBlock(int index,
+                              Block block,
+                              byte[] parentHash,
+                              long problemDifficulty) throws NoSuchAlgorithmException,
+                                                             IntegrityCheckFailedException {
+        byte[] computedHash = block.computeContentHash(parentHash);
+        if (!Arrays.equals(block.hash, computedHash)) {
+            throw new IntegrityCheckFailedException(
+                index,
+                block,
+                " Expected hash " + DatatypeConverter.printHexBinary(computedHash) +
+                " but the block hash was instead " + DatatypeConverter.printHexBinary(block.hash)
+            );
+        }
+
+        /* Also check to see if the block was mined correctly by checking
+         * if the hash has a certain number of leading zeroes */
+        if (!Block.satisfiesProblemDifficulty(block.hash, problemDifficulty)) {
+            throw new IntegrityCheckFailedException(
+                index,
+                block,
+                " Expected hash " + DatatypeConverter.printHexBinary(block.hash) +
+                " to have at least " + problemDifficulty +
+                " leading zeroes, but it did not. The " +
+                " block was probably not mined correctly"
+            );
+        }
+    }
+
     /**
      * validate
      *
      * Validate the integrity of the underlying blockchain. This does not
      * check the payloads of each block (the transactions) but rather checks
-     * that the hash of each block (starting from the child most block to
-     * the parent most block) computes correctly. Implicit in this check
-     * is whether the nonce was a valid proof of work, since the nonce is
-     * included in the block itself.
+     * that the hash of each block computes correctly given the hash of its
+     * parent. Implicit in this check is whether the nonce was a valid proof
+     * of work, since the nonce is included in the block itself.
+     *
+     * Since each block only depends on its own contents and the stored hash
+     * of its parent, the chain is split into runs of blocks that are checked
+     * in parallel. If more than one block is broken, the one with the lowest
+     * index is always the one that gets reported.
      *
      * Throws Blockchain.IntegrityCheckFailedException if something goes wrong
+     *
+     * This is done for you by deserialise. It is only visible so that the
+     * benchmarks in jmh/ can time it on its own.
      */
-    private void validate() throws NoSuchAlgorithmException,
+    void validate() throws NoSuchAlgorithmException,
                                    IntegrityCheckFailedException {
-        int index = chain.size();
-        while (index-- > 0) {
-            Block block = chain.get(index);
-            byte[] computedHash = block.computeContentHash(parentBlockHash(index));
-            if (!Arrays.equals(block.hash, computedHash)) {
-                throw new IntegrityCheckFailedException(
-                    index,
-                    block,
-                    " Expected hash " + DatatypeConverter.printHexBinary(computedHash) +
-                    " but the block hash was instead " + DatatypeConverter.printHexBinary(block.hash)
-                );
+        final Snapshot chain = current;
+        final int size = chain.length();
+        int workers = Runtime.getRuntime().availableProcessors();
+        final int runLength = Math.max(minValidationRunLength,
+                                       (size + workers * 4 - 1) / (workers * 4));
+
+        if (size <= runLength) {
+            for (int index = 0; index < size; ++index) {
+                validateBlock(index, chain.blockAt(index), chain.parentBlockHash(index), problemDifficulty);
             }
 
-            /* Also check to see if the block was mined correctly by checking
-             * if the hash has a certain number of leading zeroes */
-            if (!Block.satisfiesProblemDifficulty(block.hash, problemDifficulty)) {
-                throw new IntegrityCheckFailedException(
-                    index,
-                    block,
-                    " Expected hash " + DatatypeConverter.printHexBinary(block.hash) +
-                    " to have at least " + problemDifficulty +
-                    " leading zeroes, but it did not. The " +
-                    " block was probably not mined correctly"
-                );
+            return;
+        }
+
+        /* Runs that get past a block which is already known to be broken
+         * can stop early, since that block is going to be reported anyway */
+        final AtomicInteger lowestFailure = new AtomicInteger(Integer.MAX_VALUE);
+        List<Future<Exception>> runs = new ArrayList<Future<Exception>>();
+
+        for (int start = 0; start < size; start += runLength) {
+            final int runStart = start;
+            final int runEnd = Math.min(start + runLength, size);
+            runs.add(ForkJoinPool.commonPool().submit(new Callable<Exception>() {
+                public Exception call() {
+                    for (int index = runStart; index < runEnd && index < lowestFailure.get(); ++index) {
+                        try {
+                            validateBlock(index, chain.blockAt(index), chain.parentBlockHash(index), problemDifficulty);
+                        } catch (IntegrityCheckFailedException e) {
+                            int lowest = lowestFailure.get();
+                            while (index < lowest && !lowestFailure.compareAndSet(lowest, index)) {
+                                lowest = lowestFailure.get();
+                            }
+                            return e;
+                        } catch (NoSuchAlgorithmException e) {
+                            return e;
+                        }
+                    }
+
+                    return null;
+                }
+            }));
+        }
+
+        /* Runs are in chain order, so the first failure we come across
+         * is the lowest failing index */
+        Exception failure = null;
+        for (Future<Exception> run : runs) {
+            try {
+                Exception result = run.get();
+                if (failure == null && result != null) {
+                    failure = result;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e.getMessage());
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
             }
         }
+
+        if (failure instanceof IntegrityCheckFailedException) {
+            throw (IntegrityCheckFailedException) failure;
+        } else if (failure instanceof NoSuchAlgorithmException) {
+            throw (NoSuchAlgorithmException) failure;
+        }
     }
 
     /**
@@ -167,7 +368,36 @@ public class Blockchain {
      * block itself, it is the responsibility of the caller to provide
      * an appropriately mined block */
     public void append(Block block) {
-        this.chain.add(block);
+        synchronized (appendLock) {
+            int length = current.length();
+            if (length == blocks.length) {
+                blocks = Arrays.copyOf(blocks, blocks.length * 2);
+            }
+
+            /* Nobody can see this slot until the new snapshot is
+             * published, which is what makes it safe to read */
+            blocks[length] = block;
+            current = new Snapshot(blocks, length + 1);
+        }
+    }
+
+    /**
+     * appendValidated
+     *
+     * Check that a block hashes correctly on top of the current child most
+     * block and that it was properly mined, then append it. This is what
+     * you want when receiving blocks from somebody else one at a time.
+     *
+     * Throws Blockchain.IntegrityCheckFailedException if the block doesn't
+     * belong on the end of this chain, in which case the chain is unchanged.
+     */
+    public void appendValidated(Block block) throws NoSuchAlgorithmException,
+                                                    IntegrityCheckFailedException {
+        synchronized (appendLock) {
+            int index = current.length();
+            validateBlock(index, block, current.parentBlockHash(index), problemDifficulty);
+            append(block);
+        }
     }
 
     /**
@@ -178,7 +408,19 @@ public class Blockchain {
      * BlockMiner.waitFor to ensure that the chain is up to date.
      */
     public byte[] tipHash() {
-        return chain.size() > 0 ? chain.get(chain.size() - 1).hash : new byte[0];
+        return current.tipHash();
+    }
+
+    /**
+     * sharesPrefix
+     *
+     * Check whether somebody else's chain of the given length and tip hash
+     * is the same as the first height blocks of this one, so that they can
+     * catch up by appending our blocks from index height onwards. An empty
+     * chain has an empty tip hash and is a prefix of every chain.
+     */
+    public boolean sharesPrefix(int height, byte[] tipHash) {
+        return current.sharesPrefix(height, tipHash);
     }
 
     /**
@@ -190,14 +432,20 @@ public class Blockchain {
     public String serialise() {
         GsonBuilder builder = new GsonBuilder();
         Gson gson = builder.create();
-        return gson.toJson(this).toString();
+        return gson.toJson(new Serialised(current.blocks(), problemDifficulty)).toString();
     }
 
     public static Blockchain deserialise(String json) throws NoSuchAlgorithmException,
                                                              IntegrityCheckFailedException {
         GsonBuilder builder = new GsonBuilder();
         Gson gson = builder.create();
-        Blockchain result = gson.fromJson(json, Blockchain.class);
+        Serialised serialised = gson.fromJson(json, Serialised.class);
+        Blockchain result = new Blockchain(serialised.problemDifficulty);
+        if (serialised.chain != null) {
+            for (Block block : serialised.chain) {
+                result.append(block);
+            }
+        }
 
         /* Call result.validate now. If something goes wrong, we'll propogate
          * an exception up to the caller */
@@ -1,8 +1,15 @@
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.InputStream;
 import java.io.FileInputStream;
 import java.io.InputStreamReader;
@@ -10,8 +17,10 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
+import java.net.URLDecoder;
 import java.nio.charset.Charset;
 
 import javax.net.ssl.KeyManagerFactory;
@@ -38,6 +47,10 @@ import java.security.spec.InvalidKeySpecException;
 
 import javax.xml.bind.DatatypeConverter;
 
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.MalformedJsonException;
+
 import com.sun.net.httpserver.HttpsConfigurator;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpsExchange;
@@ -62,6 +75,10 @@ import java.security.SignatureException;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 public class ChainMain {
+    /* The longest a client can wait on /transaction_status, so that
+     * connections don't hang around forever */
+    static final long maxStatusWaitMs = 60000;
+
     private static SSLContext createSSLContextForKeyFileStream(InputStream keyStoreStream,
                                                                char[] password) throws CertificateException,
                                                                                        NoSuchAlgorithmException,
@@ -87,25 +104,39 @@ public class ChainMain {
         AsynchronouslyMutableLedger ledger;
         Blockchain chain;
         BlockMiner miner;
-        int postedTransactionId;
+
+        /* Completes once the genesis transaction we posted, if any, is
+         * mined or rejected */
+        CompletableFuture<BlockMiner.MinedPayload> posted;
 
         public LedgerChain(AsynchronouslyMutableLedger ledger,
                            Blockchain chain,
                            BlockMiner miner,
-                           int postedTransactionId) {
+                           CompletableFuture<BlockMiner.MinedPayload> posted) {
             this.ledger = ledger;
             this.chain = chain;
             this.miner = miner;
-            this.postedTransactionId = postedTransactionId;
+            this.posted = posted;
         }
     }
 
     public static class TransactionLoggingMiningObserver implements BlockMiner.MiningObserver {
-        public void blockMined(byte[] payload) {
-            SignedObject blob = new SignedObject(payload);
-            Transaction transaction = new Transaction(blob.payload);
+        private MiningEngine.Mode mode;
 
-            System.out.println("[chain] Mined transaction " + transaction);
+        public TransactionLoggingMiningObserver(MiningEngine.Mode mode) {
+            this.mode = mode;
+        }
+
+        public void blockMined(Block block, MiningEngine.Result result) {
+            BlockView view = block.view();
+            String mined = view.transactionCount() == 1 ?
+                "transaction " + view.transaction() :
+                "block of " + view.transactionCount() + " transactions";
+
+            System.out.println("[chain] Mined " + mined +
+                               " after " + result.attempts + " attempts in " +
+                               result.elapsedMs + "ms" +
+                               (mode == MiningEngine.Mode.SIMULATED ? " (simulated)" : ""));
         }
     }
 
@@ -115,7 +146,13 @@ public class ChainMain {
                                                          String genesisBlockPublicKey,
                                                          Integer genesisBlockAmount,
                                                          String signGenesisBlockWith,
-                                                         Long problemDifficulty) throws NoSuchAlgorithmException,
+                                                         Long problemDifficulty,
+                                                         int miningThreads,
+                                                         MiningEngine.Mode miningMode,
+                                                         BlockMiner.BatchPolicy batchPolicy,
+                                                         Mempool mempool,
+                                                         BlockStore store,
+                                                         LedgerCheckpoints checkpoints) throws NoSuchAlgorithmException,
                                                                                         NoSuchProviderException,
                                                                                         IOException,
                                                                                         InvalidKeyException,
@@ -130,6 +167,45 @@ public class ChainMain {
                                                                                         UnrecoverableKeyException,
                                                                                         MalformedURLException,
                                                                                         Blockchain.IntegrityCheckFailedException {
+        if (store != null && store.length() > 0) {
+            /* We've been here before, pick up where we left off. The
+             * blocks in the store were validated when we first got them,
+             * so they don't need to be hashed again */
+            System.out.println("Resuming blockchain of " + store.length() +
+                               " blocks from the block store");
+            Blockchain chain = store.load();
+
+            if (host != null) {
+                System.out.println("Downloading new blocks from host " + host);
+                WalletOrchestrator orchestrator = new WalletOrchestrator(host, truststore, truststorePassword);
+                int storedLength = chain.length();
+
+                try {
+                    orchestrator.syncBlockchain(chain);
+                } catch (WalletOrchestrator.ChainDivergedException e) {
+                    /* Mining on top of blocks the host doesn't have would
+                     * only fork us away from it further */
+                    System.err.println("Error resuming from the block store: " +
+                                       e.getMessage() + " by clearing -data-dir");
+                    throw new RuntimeException(e.getMessage());
+                } finally {
+                    orchestrator.close();
+                }
+
+                storeBlocksFromIndex(chain, store, storedLength);
+            }
+
+            BlockMiner miner = new BlockMiner(chain,
+                                              new TransactionLoggingMiningObserver(miningMode),
+                                              problemDifficulty,
+                                              new MiningEngine(miningThreads, miningMode),
+                                              store,
+                                              batchPolicy,
+                                              mempool);
+            AsynchronouslyMutableLedger ledger = new AsynchronouslyMutableLedger(chain, miner, checkpoints);
+            return new ChainMain.LedgerChain(ledger, chain, miner, null);
+        }
+
         if (host == null) {
             System.out.println("No host specified to download blockchain from, " +
                                "creating genesis node with public key " +
@@ -142,10 +218,14 @@ public class ChainMain {
             try {
                 Blockchain chain = new Blockchain(problemDifficulty);
                 BlockMiner miner = new BlockMiner(chain,
-                                                  new TransactionLoggingMiningObserver(),
-                                                  problemDifficulty);
-                AsynchronouslyMutableLedger ledger = new AsynchronouslyMutableLedger(chain, miner);
-                int postedTransactionId = ledger.appendSignedTransaction(new SignedObject(
+                                                  new TransactionLoggingMiningObserver(miningMode),
+                                                  problemDifficulty,
+                                                  new MiningEngine(miningThreads, miningMode),
+                                                  store,
+                                                  batchPolicy,
+                                                  mempool);
+                AsynchronouslyMutableLedger ledger = new AsynchronouslyMutableLedger(chain, miner, checkpoints);
+                CompletableFuture<BlockMiner.MinedPayload> posted = ledger.appendSignedTransaction(new SignedObject(
                     new Transaction(pubKey,
                                     pubKey,
                                     50).serialize(),
@@ -156,7 +236,7 @@ public class ChainMain {
                     )
                 ));
 
-                return new ChainMain.LedgerChain(ledger, chain, miner, postedTransactionId);
+                return new ChainMain.LedgerChain(ledger, chain, miner, posted);
             } catch (FileNotFoundException e) {
                 System.err.println("Error creating genesis node, the genesis " +
                                    "block signing key was not found at " + signGenesisBlockWith +
@@ -168,12 +248,37 @@ public class ChainMain {
         /* Download and parse an existing blockchain from some other server */
         System.out.println("Downloading blockchain from host " + host);
         WalletOrchestrator orchestrator = new WalletOrchestrator(host, truststore, truststorePassword);
-        Blockchain chain = orchestrator.fetchBlockchain();
+        Blockchain chain;
+        try {
+            chain = orchestrator.fetchBlockchain();
+        } finally {
+            orchestrator.close();
+        }
+
+        storeBlocksFromIndex(chain, store, 0);
         BlockMiner miner = new BlockMiner(chain,
-                                          new TransactionLoggingMiningObserver(),
-                                          problemDifficulty);
-        AsynchronouslyMutableLedger ledger = new AsynchronouslyMutableLedger(chain, miner);
-        return new ChainMain.LedgerChain(ledger, chain, miner, 0);
+                                          new TransactionLoggingMiningObserver(miningMode),
+                                          problemDifficulty,
+                                          new MiningEngine(miningThreads, miningMode),
+                                          store,
+                                          batchPolicy,
+                                          mempool);
+        AsynchronouslyMutableLedger ledger = new AsynchronouslyMutableLedger(chain, miner, checkpoints);
+        return new ChainMain.LedgerChain(ledger, chain, miner, null);
+    }
+
+    /* Write the blocks of chain from index onwards to the block store,
+     * if there is one */
+    private static void storeBlocksFromIndex(Blockchain chain,
+                                             BlockStore store,
+                                             int index) throws IOException {
+        if (store == null) {
+            return;
+        }
+
+        for (int i = index; i < chain.length(); ++i) {
+            store.append(chain.blockAt(i));
+        }
     }
 
     public static class Arguments {
@@ -213,6 +318,66 @@ public class ChainMain {
                 metaVar="DIFFICULTY")
         public Long problemDifficulty = Long.valueOf(4);
 
+        @Option(name="-mining-threads",
+                usage="Number of threads to search for nonces on (defaults to the number of cores)",
+                metaVar="THREADS")
+        public Integer miningThreads = Integer.valueOf(Runtime.getRuntime().availableProcessors());
+
+        @Option(name="-mining-mode",
+                usage="How to mine blocks (REAL, SIMULATED)",
+                metaVar="MODE")
+        public String miningMode = "REAL";
+
+        @Option(name="-max-block-transactions",
+                usage="The most transactions to put in a single block",
+                metaVar="TRANSACTIONS")
+        public Integer maxBlockTransactions = Integer.valueOf(100);
+
+        @Option(name="-max-block-delay-ms",
+                usage="How long to wait for more transactions before mining a block that isn't full",
+                metaVar="MILLISECONDS")
+        public Long maxBlockDelayMs = Long.valueOf(200);
+
+        @Option(name="-mempool-max-mb",
+                usage="The most memory that transactions waiting to be mined may take up",
+                metaVar="MEGABYTES")
+        public Integer mempoolMaxMb = Integer.valueOf(64);
+
+        @Option(name="-data-dir",
+                usage="Directory to keep the blockchain in, so that it survives restarts",
+                metaVar="DIRECTORY")
+        public String dataDir;
+
+        @Option(name="-checkpoint-interval",
+                usage="Save the ledger balances to -data-dir every this many blocks",
+                metaVar="BLOCKS")
+        public Integer checkpointInterval = Integer.valueOf(1000);
+
+        @Option(name="-request-executor",
+                usage="What to handle requests on (PLATFORM, VIRTUAL)",
+                metaVar="MODE")
+        public String requestExecutor = "PLATFORM";
+
+        @Option(name="-request-threads",
+                usage="How many transactions and queries to handle at once, each",
+                metaVar="THREADS")
+        public Integer requestThreads = Integer.valueOf(4);
+
+        @Option(name="-bulk-request-threads",
+                usage="How many blockchain and header downloads to handle at once",
+                metaVar="THREADS")
+        public Integer bulkRequestThreads = Integer.valueOf(2);
+
+        @Option(name="-request-queue-length",
+                usage="How many requests of each kind may wait for a thread before we turn them away",
+                metaVar="REQUESTS")
+        public Integer requestQueueLength = Integer.valueOf(128);
+
+        @Option(name="-max-transaction-batch",
+                usage="How many transactions may be posted to /transactions at once",
+                metaVar="TRANSACTIONS")
+        public Integer maxTransactionBatch = Integer.valueOf(10000);
+
         @SuppressFBWarnings(value="UR_UNINIT_READ",
                             justification="Values are set by CmdLineParser")
         public Arguments(String[] args) {
@@ -246,6 +411,46 @@ public class ChainMain {
                     );
                 }
 
+                if (maxBlockTransactions < 1) {
+                    throw new CmdLineException(parser, "-max-block-transactions must be at least 1");
+                }
+
+                if (maxBlockDelayMs < 0) {
+                    throw new CmdLineException(parser, "-max-block-delay-ms must not be negative");
+                }
+
+                if (mempoolMaxMb < 1) {
+                    throw new CmdLineException(parser, "-mempool-max-mb must be at least 1");
+                }
+
+                if (checkpointInterval < 1) {
+                    throw new CmdLineException(parser, "-checkpoint-interval must be at least 1");
+                }
+
+                if (miningThreads < 1) {
+                    throw new CmdLineException(parser, "-mining-threads must be at least 1");
+                }
+
+                if (!Arrays.asList(new String[] { "REAL", "SIMULATED" }).contains(miningMode)) {
+                    throw new CmdLineException(parser, "-mining-mode must be one of REAL or SIMULATED");
+                }
+
+                if (!Arrays.asList(new String[] { "PLATFORM", "VIRTUAL" }).contains(requestExecutor)) {
+                    throw new CmdLineException(parser, "-request-executor must be one of PLATFORM or VIRTUAL");
+                }
+
+                if (requestThreads < 1 || bulkRequestThreads < 1) {
+                    throw new CmdLineException(parser, "-request-threads and -bulk-request-threads must be at least 1");
+                }
+
+                if (requestQueueLength < 0) {
+                    throw new CmdLineException(parser, "-request-queue-length must not be negative");
+                }
+
+                if (maxTransactionBatch < 1) {
+                    throw new CmdLineException(parser, "-max-transaction-batch must be at least 1");
+                }
+
                 if (corruptChainWith != null) {
                     /* Check to make sure that it is a valid operation */
                     List<String> validOps = Arrays.asList(new String[] {
@@ -301,6 +506,21 @@ public class ChainMain {
         }
     }
 
+    /* Apply mutator to the first signed transaction in a block payload,
+     * leaving any other transactions in the block alone */
+    private static byte[] withFirstSignedObjectMutated(byte[] payload,
+                                                       SignedObject.Mutator mutator) {
+        SignedObjectView first = new BlockView(payload).signedObject();
+        int offset = first.payloadOffset();
+        int length = first.payloadLength() + Globals.nBytesSig;
+        byte[] mutated = SignedObject.withMutations(Arrays.copyOfRange(payload, offset, offset + length),
+                                                    mutator);
+        byte[] result = payload.clone();
+
+        System.arraycopy(mutated, 0, result, offset, length);
+        return result;
+    }
+
     /* Perform some corruption on the underlying chain itself, such that
      * when clients download it they should be able to detect problems.
      *
@@ -325,7 +545,7 @@ public class ChainMain {
                          * one from the amount. This should be caught by the fact that
                          * the block doesn't hash correctly anymore. */
                         msg.append("subtracting 1 from the transaction amount");
-                        block.payload = SignedObject.withMutations(block.payload, new SignedObject.Mutator() {
+                        block.payload = withFirstSignedObjectMutated(block.payload, new SignedObject.Mutator() {
                             public void mutate(SignedObject blob) {
                                 blob.payload = Transaction.withMutations(blob.payload, new Transaction.Mutator() {
                                     public void mutate(Transaction transaction) {
@@ -339,7 +559,7 @@ public class ChainMain {
                          * problem should be caught by the fact that transaction
                          * is nonsensical */
                         msg.append("negating the transaction amount");
-                        block.payload = SignedObject.withMutations(block.payload, new SignedObject.Mutator() {
+                        block.payload = withFirstSignedObjectMutated(block.payload, new SignedObject.Mutator() {
                             public void mutate(SignedObject blob) {
                                 blob.payload = Transaction.withMutations(blob.payload, new Transaction.Mutator() {
                                     public void mutate(Transaction transaction) {
@@ -354,7 +574,7 @@ public class ChainMain {
                          * problem should be caught by the fact that the signature
                          * on the transaction is no longer valid */
                         msg.append("modifying the transaction amount but rehashing the block (and all children)");
-                        block.payload = SignedObject.withMutations(block.payload, new SignedObject.Mutator() {
+                        block.payload = withFirstSignedObjectMutated(block.payload, new SignedObject.Mutator() {
                             public void mutate(SignedObject blob) {
                                 blob.payload = Transaction.withMutations(blob.payload, new Transaction.Mutator() {
                                     public void mutate(Transaction transaction) {
@@ -390,6 +610,29 @@ public class ChainMain {
         });
     }
 
+    /**
+     * findInclusionProof
+     *
+     * Find the transaction whose SignedObjectView.digest is id and build
+     * the proof that it is in its block, or return null if no block has
+     * it. The block is looked up in index, so only the transactions that
+     * are new since the last lookup get hashed.
+     */
+    static Models.InclusionProof findInclusionProof(Blockchain chain,
+                                                    TransactionIndex index,
+                                                    byte[] id) throws NoSuchAlgorithmException {
+        TransactionIndex.Location location = index.find(id);
+        if (location == null) {
+            return null;
+        }
+
+        BlockView view = chain.blockAt(location.height).view();
+        return new Models.InclusionProof(location.height,
+                                         location.position,
+                                         view.signedObject(location.position).bytes(),
+                                         view.merkleTree().proof(location.position));
+    }
+
     public static byte[] readAllBytes(InputStream stream) throws IOException {
         ByteArrayOutputStream ba = new ByteArrayOutputStream();
         byte[] buffer = new byte[0xFFFF];
@@ -404,6 +647,85 @@ public class ChainMain {
         return ba.toByteArray();
     }
 
+    /* Split up a URL query string like a=b&c=d. Later values for the same
+     * key replace earlier ones */
+    static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> result = new HashMap<String, String>();
+        if (query == null) {
+            return result;
+        }
+
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals < 0) {
+                result.put(URLDecoder.decode(pair, "UTF-8"), "");
+            } else {
+                result.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                           URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+            }
+        }
+
+        return result;
+    }
+
+    static void sendTextResponse(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] response = text.getBytes(Charset.forName("UTF-8"));
+        exchange.getResponseHeaders().put("Content-Type",
+                                          Arrays.asList(new String[] { "text/plain; charset=utf-8" }));
+        exchange.sendResponseHeaders(status, response.length);
+        OutputStream stream = exchange.getResponseBody();
+        stream.write(response);
+        stream.close();
+    }
+
+    static void sendJsonResponse(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] response = json.getBytes(Charset.forName("UTF-8"));
+        exchange.getResponseHeaders().put("Content-Type",
+                                          Arrays.asList(new String[] { "application/json" }));
+        exchange.sendResponseHeaders(status, response.length);
+        OutputStream stream = exchange.getResponseBody();
+        stream.write(response);
+        stream.close();
+    }
+
+    /* Whether the client listed encoding in its Accept-Encoding header,
+     * again without bothering with quality values */
+    static boolean acceptsEncoding(HttpExchange exchange, String encoding) {
+        List<String> accept = exchange.getRequestHeaders().get("Accept-Encoding");
+        if (accept == null) {
+            return false;
+        }
+
+        for (String header : accept) {
+            for (String coding : header.split(",")) {
+                if (coding.split(";")[0].trim().equalsIgnoreCase(encoding)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /* Whether the client listed contentType in its Accept header. We
+     * don't bother with quality values, anything listed is acceptable */
+    static boolean acceptsContentType(HttpExchange exchange, String contentType) {
+        List<String> accept = exchange.getRequestHeaders().get("Accept");
+        if (accept == null) {
+            return false;
+        }
+
+        for (String header : accept) {
+            for (String range : header.split(",")) {
+                if (range.split(";")[0].trim().equalsIgnoreCase(contentType)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
     public static void main(String[] args) throws IOException,
                                                   NoSuchAlgorithmException,
                                                   NoSuchProviderException,
@@ -444,6 +766,12 @@ public class ChainMain {
             }
         });
 
+        final BlockStore store = arguments.dataDir != null ?
+            BlockStore.open(new File(arguments.dataDir), arguments.problemDifficulty) : null;
+        final LedgerCheckpoints checkpoints = arguments.dataDir != null ?
+            new LedgerCheckpoints(new File(arguments.dataDir, "checkpoints"),
+                                  arguments.checkpointInterval) : null;
+
         /* We need to create the ledger and chain at the same time so that
          * we can track all the transactions, including the genesis node */
         ChainMain.LedgerChain lc = fetchInitialLedgerAndChain(arguments.downloadBlockchainFrom,
@@ -452,63 +780,408 @@ public class ChainMain {
                                                               arguments.genesisBlockPublicKey,
                                                               arguments.genesisBlockAmount,
                                                               arguments.signGensisBlockWith,
-                                                              arguments.problemDifficulty);
+                                                              arguments.problemDifficulty,
+                                                              arguments.miningThreads,
+                                                              MiningEngine.Mode.valueOf(arguments.miningMode),
+                                                              new BlockMiner.BatchPolicy(arguments.maxBlockTransactions,
+                                                                                         arguments.maxBlockDelayMs),
+                                                              new Mempool(arguments.mempoolMaxMb * 1024L * 1024L,
+                                                                          Mempool.FIFO),
+                                                              store,
+                                                              checkpoints);
         final Blockchain chain = lc.chain;
         final AsynchronouslyMutableLedger ledger = lc.ledger;
-        BlockMiner miner = lc.miner;
-        int postedTransactionId = lc.postedTransactionId;
+        final BlockMiner miner = lc.miner;
 
         if (arguments.corruptChainWith != null) {
             /* Wait for the first transaction to complete */
-            miner.waitFor(postedTransactionId);
+            if (lc.posted != null) {
+                miner.waitFor(lc.posted);
+            }
             performChainCorruption(chain, ledger, arguments.corruptChainWith, arguments.problemDifficulty);
         }
 
-        server.createContext("/transaction", new HttpHandler () {
+        /* Blocks in the store are already in the wire format, so we can
+         * send them without encoding them again. The exception is when
+         * we have deliberately corrupted the chain in memory */
+        final boolean serveFromStore = store != null && arguments.corruptChainWith == null;
+
+        /* The chain as JSON, kept up to date as blocks are mined rather
+         * than encoded from scratch for every download */
+        final EncodedChain encodedChain = new EncodedChain(chain);
+
+        /* Which block each transaction is in, for transactions the
+         * tracker has forgotten about and for inclusion proofs */
+        final TransactionIndex transactionIndex = new TransactionIndex(chain);
+
+        final TransactionTracker tracker = new TransactionTracker();
+        final int maxTransactionBatch = arguments.maxTransactionBatch;
+
+        /* Handlers run on pools of their own, so the dispatcher thread
+         * only accepts connections and hands requests off */
+        final RequestExecutors requestExecutors = new RequestExecutors(
+            RequestExecutors.Mode.valueOf(arguments.requestExecutor),
+            arguments.requestThreads,
+            arguments.bulkRequestThreads,
+            arguments.requestQueueLength
+        );
+
+        server.createContext("/transaction", requestExecutors.wrap(RequestExecutors.EndpointClass.SUBMIT, new HttpHandler () {
             @Override
             public void handle(HttpExchange exchange) throws IOException {
                 String json = new String(readAllBytes(exchange.getRequestBody()), "UTF-8");
                 Models.Transaction record = Models.Transaction.deserialise(json);
 
-                OutputStream stream = exchange.getResponseBody();
-
+                /* Put the transaction on the queue. We won't be able to
+                 * validate it until we've finished mining all our other
+                 * blocks, so the client gets its id straight away and can
+                 * ask /transaction_status about it later */
+                Models.TransactionStatus status;
                 try {
-                    /* Put the transaction on the queue. We won't be able to
-                     * validate it until we've finished mining all our other
-                     * blocks, so the client will just have to wait */
                     Transaction transaction = new Transaction(DatatypeConverter.parseHexBinary(record.src),
                                                               DatatypeConverter.parseHexBinary(record.dst),
                                                               record.amount);
                     SignedObject blob = new SignedObject(transaction.serialize(),
                                                          DatatypeConverter.parseHexBinary(record.signature));
-                    ledger.appendSignedTransaction(blob);
+                    status = tracker.track(TransactionTracker.transactionId(blob.serialize()),
+                                           ledger.appendSignedTransaction(blob));
+                } catch (NoSuchAlgorithmException e) {
+                    sendTextResponse(exchange, 500, "false");
+                    return;
+                }
+
+                sendJsonResponse(exchange, 202, status.serialise());
+            }
+        }));
+        server.createContext("/transactions", requestExecutors.wrap(RequestExecutors.EndpointClass.SUBMIT, new HttpHandler () {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                /* Read the batch as it arrives, then hand it all to the
+                 * miner at once. Each transaction gets a status of its own,
+                 * in the same order as they were sent */
+                List<Models.Transaction> records;
+                try {
+                    records = TransactionBatch.read(new InputStreamReader(exchange.getRequestBody(), "UTF-8"),
+                                                    maxTransactionBatch);
+                } catch (TransactionBatch.TooLargeException e) {
+                    sendTextResponse(exchange, 413, e.getMessage());
+                    return;
+                } catch (MalformedJsonException e) {
+                    sendTextResponse(exchange, 400, "Expected a JSON array of transactions: " + e.getMessage());
+                    return;
+                } catch (JsonParseException e) {
+                    sendTextResponse(exchange, 400, "Expected a JSON array of transactions: " + e.getMessage());
+                    return;
+                } catch (IllegalStateException e) {
+                    sendTextResponse(exchange, 400, "Expected a JSON array of transactions: " + e.getMessage());
+                    return;
+                }
+
+                List<Models.TransactionStatus> statuses;
+                try {
+                    statuses = TransactionBatch.submit(records, ledger, tracker);
+                } catch (NoSuchAlgorithmException e) {
+                    sendTextResponse(exchange, 500, "false");
+                    return;
+                }
+
+                sendJsonResponse(exchange, 202, Models.TransactionStatus.serialiseAll(statuses));
+            }
+        }));
+        server.createContext("/transaction_status", requestExecutors.wrap(RequestExecutors.EndpointClass.QUERY, new HttpHandler () {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+                String id = query.containsKey("id") ? query.get("id").toUpperCase(Locale.ROOT) : "";
+                long waitMs;
 
-                    String response = Boolean.TRUE.toString();
+                try {
+                    waitMs = Long.parseLong(query.containsKey("wait") ? query.get("wait") : "0");
+                } catch (NumberFormatException e) {
+                    sendTextResponse(exchange, 400, "Expected a numeric wait query parameter");
+                    return;
+                }
+
+                CompletableFuture<Models.TransactionStatus> answer =
+                    tracker.await(id, Math.min(Math.max(waitMs, 0), maxStatusWaitMs));
+
+                if (answer == null) {
+                    /* We have either forgotten about it or it was never
+                     * sent to us, but it might still be in the chain */
+                    Models.InclusionProof proof;
+                    try {
+                        proof = findInclusionProof(chain, transactionIndex, DatatypeConverter.parseHexBinary(id));
+                    } catch (IllegalArgumentException e) {
+                        sendTextResponse(exchange, 400, "Expected a hex encoded id query parameter");
+                        return;
+                    } catch (NoSuchAlgorithmException e) {
+                        throw new RuntimeException(e.getMessage());
+                    }
 
-                    exchange.sendResponseHeaders(200, response.length());
+                    if (proof == null) {
+                        sendTextResponse(exchange, 404, "No transaction with that id");
+                        return;
+                    }
+
+                    Models.TransactionStatus status = new Models.TransactionStatus(id,
+                                                                                   Models.TransactionStatus.MINED);
+                    status.height = proof.height;
+                    status.blockHash = DatatypeConverter.printHexBinary(chain.blockAt(proof.height).hash);
+                    sendJsonResponse(exchange, 200, status.serialise());
+                    return;
+                }
+
+                /* Answer whenever the transaction is done or we have
+                 * waited long enough, without holding on to the server's
+                 * thread in the meantime. The answer is written on the
+                 * query pool, since the tracker's thread answers everybody
+                 * and a slow client would hold them all up */
+                answer.thenAccept(new Consumer<Models.TransactionStatus>() {
+                    public void accept(final Models.TransactionStatus status) {
+                        boolean accepted = requestExecutors.submit(RequestExecutors.EndpointClass.QUERY, new Runnable() {
+                            public void run() {
+                                try {
+                                    sendJsonResponse(exchange, 200, status.serialise());
+                                } catch (IOException e) {
+                                    /* They gave up waiting */
+                                    exchange.close();
+                                }
+                            }
+                        });
 
-                    stream.write(response.getBytes(Charset.forName("UTF-8")));
+                        if (!accepted) {
+                            /* Too busy to answer, and writing a 503 here
+                             * could block just the same */
+                            exchange.close();
+                        }
+                    }
+                });
+            }
+        }));
+        server.createContext("/download_blockchain", requestExecutors.wrap(RequestExecutors.EndpointClass.BULK, new HttpHandler () {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+                exchange.getResponseHeaders().put("Vary",
+                                                  Arrays.asList(new String[] { "Accept, Accept-Encoding" }));
+
+                if (acceptsContentType(exchange, BlockStream.contentType)) {
+                    /* If the chain grows while we are sending it, the
+                     * client gets more blocks than the tag says, which
+                     * just means that it asks for them again next time */
+                    String etag = EncodedChain.etag(chain.tipHash());
+                    exchange.getResponseHeaders().put("ETag", Arrays.asList(new String[] { etag }));
+                    if (EncodedChain.matches(ifNoneMatch, etag)) {
+                        exchange.sendResponseHeaders(304, -1);
+                        exchange.close();
+                        return;
+                    }
+
+                    /* Stream the blocks out one at a time with chunked
+                     * encoding, since we don't know the length up front */
+                    exchange.getResponseHeaders().put("Content-Type",
+                                                      Arrays.asList(new String[] { BlockStream.contentType }));
+                    exchange.sendResponseHeaders(200, 0);
+                    OutputStream stream = new BufferedOutputStream(exchange.getResponseBody());
+                    try {
+                        if (serveFromStore) {
+                            store.writeTo(0, stream);
+                        } else {
+                            BlockStream.write(chain, stream);
+                        }
+                    } finally {
+                        stream.close();
+                    }
+                    return;
+                }
+
+                EncodedChain.Snapshot snapshot = encodedChain.snapshot();
+                exchange.getResponseHeaders().put("ETag", Arrays.asList(new String[] { snapshot.etag }));
+                if (snapshot.matches(ifNoneMatch)) {
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                }
+
+                exchange.getResponseHeaders().put("Content-Type",
+                                                  Arrays.asList(new String[] { "application/json" }));
+                OutputStream stream;
+                if (acceptsEncoding(exchange, "gzip")) {
+                    exchange.getResponseHeaders().put("Content-Encoding", Arrays.asList(new String[] { "gzip" }));
+                    exchange.sendResponseHeaders(200, snapshot.gzipLength());
+                    stream = exchange.getResponseBody();
+                    try {
+                        snapshot.writeGzip(stream);
+                    } finally {
+                        stream.close();
+                    }
+                } else {
+                    exchange.sendResponseHeaders(200, snapshot.jsonLength());
+                    stream = exchange.getResponseBody();
+                    try {
+                        snapshot.writeJson(stream);
+                    } finally {
+                        stream.close();
+                    }
+                }
+            }
+        }));
+        server.createContext("/download_blockchain_since", requestExecutors.wrap(RequestExecutors.EndpointClass.BULK, new HttpHandler () {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                /* The caller tells us how many blocks it has and the hash of
+                 * the last one. If that isn't what we have at that height then
+                 * the caller's chain has diverged from ours and appending our
+                 * blocks to it would be meaningless */
+                Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+                int height;
+                byte[] tipHash;
+
+                try {
+                    height = Integer.parseInt(query.get("height"));
+                    tipHash = DatatypeConverter.parseHexBinary(query.containsKey("tip") ?
+                                                               query.get("tip") : "");
+                } catch (IllegalArgumentException e) {
+                    sendTextResponse(exchange, 400, "Expected height and tip query parameters");
+                    return;
+                }
+
+                if (!chain.sharesPrefix(height, tipHash)) {
+                    sendTextResponse(exchange, 409, "Chain does not match at height " + height);
+                    return;
+                }
+
+                exchange.getResponseHeaders().put("Content-Type",
+                                                  Arrays.asList(new String[] { BlockStream.contentType }));
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream stream = new BufferedOutputStream(exchange.getResponseBody());
+                try {
+                    if (serveFromStore) {
+                        store.writeTo(height, stream);
+                    } else {
+                        BlockStream.write(chain, height, stream);
+                    }
+                } finally {
+                    stream.close();
+                }
+            }
+        }));
+        server.createContext("/download_headers", requestExecutors.wrap(RequestExecutors.EndpointClass.BULK, new HttpHandler () {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+                int from;
+
+                try {
+                    from = Integer.parseInt(query.containsKey("from") ? query.get("from") : "0");
+                } catch (NumberFormatException e) {
+                    sendTextResponse(exchange, 400, "Expected a numeric from query parameter");
+                    return;
+                }
+
+                if (from < 0 || from > chain.length()) {
+                    sendTextResponse(exchange, 400, "No block at height " + from);
+                    return;
+                }
+
+                exchange.getResponseHeaders().put("Content-Type",
+                                                  Arrays.asList(new String[] { HeaderChain.contentType }));
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream stream = new BufferedOutputStream(exchange.getResponseBody());
+                try {
+                    HeaderChain.write(chain, from, stream);
                 } catch (NoSuchAlgorithmException e) {
-                    stream.write("false".getBytes(Charset.forName("UTF-8")));
+                    throw new RuntimeException(e.getMessage());
                 } finally {
                     stream.close();
                 }
             }
-        });
-        server.createContext("/download_blockchain", new HttpHandler () {
+        }));
+        server.createContext("/transaction_proof", requestExecutors.wrap(RequestExecutors.EndpointClass.QUERY, new HttpHandler () {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+                byte[] id;
+
+                try {
+                    id = DatatypeConverter.parseHexBinary(query.containsKey("id") ? query.get("id") : "");
+                } catch (IllegalArgumentException e) {
+                    sendTextResponse(exchange, 400, "Expected a hex encoded id query parameter");
+                    return;
+                }
+
+                Models.InclusionProof proof;
+                try {
+                    proof = findInclusionProof(chain, transactionIndex, id);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new RuntimeException(e.getMessage());
+                }
+
+                if (proof == null) {
+                    sendTextResponse(exchange, 404, "No block contains that transaction");
+                    return;
+                }
+
+                byte[] response = proof.serialise().getBytes(Charset.forName("UTF-8"));
+                exchange.getResponseHeaders().put("Content-Type",
+                                                  Arrays.asList(new String[] { "application/json" }));
+                exchange.sendResponseHeaders(200, response.length);
+                OutputStream stream = exchange.getResponseBody();
+                stream.write(response);
+                stream.close();
+            }
+        }));
+        server.createContext("/mempool", requestExecutors.wrap(RequestExecutors.EndpointClass.QUERY, new HttpHandler () {
             @Override
             public void handle(HttpExchange exchange) throws IOException {
-                String response = chain.serialise();
-                exchange.sendResponseHeaders(200, response.length());
+                /* How many transactions are waiting to be mined and how
+                 * long they have been waiting */
+                byte[] response = new GsonBuilder().create()
+                                                   .toJson(miner.mempoolStats())
+                                                   .getBytes(Charset.forName("UTF-8"));
                 exchange.getResponseHeaders().put("Content-Type",
                                                   Arrays.asList(new String[] { "application/json" }));
+                exchange.sendResponseHeaders(200, response.length);
                 OutputStream stream = exchange.getResponseBody();
-                stream.write(response.getBytes(Charset.forName("UTF-8")));
+                stream.write(response);
                 stream.close();
             }
-        });
+        }));
+        server.createContext("/request_executors", requestExecutors.wrap(RequestExecutors.EndpointClass.QUERY, new HttpHandler () {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                /* How busy each pool of request handlers is */
+                sendJsonResponse(exchange, 200, new GsonBuilder().create().toJson(requestExecutors.stats()));
+            }
+        }));
+        server.createContext("/metrics", requestExecutors.wrap(RequestExecutors.EndpointClass.QUERY, new HttpHandler () {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                /* How hard and how fast the miner is working, in the
+                 * Prometheus text format */
+                StringBuilder text = new StringBuilder();
+                miner.metrics().write(text, miner.mempoolStats());
+                MiningMetrics.gauge(text, "chain_blocks",
+                                    "Blocks on the chain.", Integer.toString(chain.length()));
+
+                byte[] response = text.toString().getBytes(Charset.forName("UTF-8"));
+                exchange.getResponseHeaders().put("Content-Type",
+                                                  Arrays.asList(new String[] { "text/plain; version=0.0.4; charset=utf-8" }));
+                exchange.sendResponseHeaders(200, response.length);
+                OutputStream stream = exchange.getResponseBody();
+                stream.write(response);
+                stream.close();
+            }
+        }));
         System.out.println("ChainMain server running, post requests to /transaction\n" +
-                           "download blockchain from /download_blockchain");
+                           "download blockchain from /download_blockchain\n" +
+                           "download new blocks from /download_blockchain_since?height=N&tip=HASH\n" +
+                           "download block headers from /download_headers?from=N\n" +
+                           "prove a transaction is in a block with /transaction_proof?id=HASH\n" +
+                           "wait for a transaction to be mined with /transaction_status?id=HASH&wait=MS\n" +
+                           "see what is waiting to be mined at /mempool\n" +
+                           "see how busy the request handlers are at /request_executors\n" +
+                           "scrape mining metrics from /metrics");
 
         /* Main loop - the server can only be stopped here if we
          * call server.stop() elsewhere in the program */
@@ -0,0 +1,284 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import javax.xml.bind.DatatypeConverter;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * An EncodedChain keeps the JSON encoding of a Blockchain, exactly as
+ * Blockchain.serialise would produce it, along with a gzip compressed copy,
+ * ready to be sent to whoever asks for it.
+ *
+ * Blocks never change once they are on the chain, so rather than encoding
+ * the whole chain for every request, only the blocks mined since the last
+ * request are encoded and compressed, and added on to what we already
+ * have. Sending the chain again when nothing has changed costs nothing but
+ * the copy to the socket.
+ *
+ * The JSON looks like:
+ *
+ *     {"chain":[BLOCK,BLOCK,...],"problemDifficulty":N}
+ *
+ * Everything up to the last block only ever grows, so that is where new
+ * blocks are added. The rest is tacked on to the end of each Snapshot.
+ *
+ * The compressed copy works the same way. Each batch of new blocks is
+ * deflated and flushed to a byte boundary, without finishing the stream.
+ * Each Snapshot then finishes it off with the rest of the JSON in a final
+ * stored (uncompressed) deflate block and the gzip trailer.
+ *
+ * This only works if nobody changes the blocks behind our back, which is
+ * only ever done on purpose, see ChainMain.performChainCorruption.
+ */
+public class EncodedChain {
+    private static final Charset utf8 = Charset.forName("UTF-8");
+    private static final Gson gson = new GsonBuilder().create();
+
+    /* The fixed part of a gzip header: magic, deflate, no flags, no
+     * modification time, no extra flags, unknown OS */
+    private static final byte[] gzipHeader = new byte[] {
+        0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+
+    private static final int[] crcTable = new int[256];
+
+    static {
+        for (int n = 0; n < 256; ++n) {
+            int c = n;
+            for (int k = 0; k < 8; ++k) {
+                c = (c & 1) != 0 ? 0xedb88320 ^ (c >>> 1) : c >>> 1;
+            }
+            crcTable[n] = c;
+        }
+    }
+
+    /* Carry on a CRC-32 from crc over some more bytes. java.util.zip.CRC32
+     * can't be copied, and we need to carry on from the same point more
+     * than once */
+    static int updateCrc(int crc, byte[] bytes, int offset, int length) {
+        int c = ~crc;
+        for (int i = offset; i < offset + length; ++i) {
+            c = crcTable[(c ^ bytes[i]) & 0xff] ^ (c >>> 8);
+        }
+        return ~c;
+    }
+
+    /**
+     * Buffer
+     *
+     * A byte array that only ever grows. The bytes up to a given length
+     * are never touched again, so a Snapshot can hang on to the array and
+     * a length while more bytes are added after it. If the array has to
+     * grow, it is copied and the snapshot keeps the old one.
+     */
+    private static class Buffer {
+        byte[] bytes = new byte[4096];
+        int length;
+
+        void write(byte[] data, int offset, int count) {
+            if (length + count > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + count));
+            }
+
+            System.arraycopy(data, offset, bytes, length, count);
+            length += count;
+        }
+
+        void write(byte[] data) {
+            write(data, 0, data.length);
+        }
+    }
+
+    /**
+     * Snapshot
+     *
+     * The encoded chain as it was when the snapshot was taken, with its
+     * first length blocks. etag is the hex encoded hash of its child most
+     * block, quoted as an HTTP entity tag.
+     */
+    public static class Snapshot {
+        public final int length;
+        public final String etag;
+
+        private final byte[] json;
+        private final int jsonLength;
+        private final byte[] jsonEnd;
+        private final byte[] gzip;
+        private final int gzipLength;
+        private final byte[] gzipEnd;
+
+        Snapshot(int length,
+                 byte[] tipHash,
+                 byte[] json,
+                 int jsonLength,
+                 byte[] jsonEnd,
+                 byte[] gzip,
+                 int gzipLength,
+                 byte[] gzipEnd) {
+            this.length = length;
+            this.etag = EncodedChain.etag(tipHash);
+            this.json = json;
+            this.jsonLength = jsonLength;
+            this.jsonEnd = jsonEnd;
+            this.gzip = gzip;
+            this.gzipLength = gzipLength;
+            this.gzipEnd = gzipEnd;
+        }
+
+        public long jsonLength() {
+            return (long) jsonLength + jsonEnd.length;
+        }
+
+        public void writeJson(OutputStream stream) throws IOException {
+            stream.write(json, 0, jsonLength);
+            stream.write(jsonEnd);
+        }
+
+        public long gzipLength() {
+            return (long) gzipLength + gzipEnd.length;
+        }
+
+        public void writeGzip(OutputStream stream) throws IOException {
+            stream.write(gzip, 0, gzipLength);
+            stream.write(gzipEnd);
+        }
+
+        /* Whether an If-None-Match header lists this snapshot's etag */
+        public boolean matches(String ifNoneMatch) {
+            return EncodedChain.matches(ifNoneMatch, etag);
+        }
+    }
+
+    /* The entity tag for a chain with the given tip hash */
+    public static String etag(byte[] tipHash) {
+        return "\"" + DatatypeConverter.printHexBinary(tipHash) + "\"";
+    }
+
+    /* Whether an If-None-Match header lists etag, or says anything will
+     * do. Weak tags are as good as strong ones here, since we only ever
+     * compare them to decide whether to send a 304 */
+    public static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private final Blockchain chain;
+    private final Buffer json = new Buffer();
+    private final Buffer gzip = new Buffer();
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final byte[] deflated = new byte[8192];
+    private int crc;
+    private long uncompressedLength;
+    private int encodedBlocks;
+
+    private volatile Snapshot latest;
+
+    public EncodedChain(Blockchain chain) {
+        this.chain = chain;
+        this.gzip.write(gzipHeader);
+        append(("{\"chain\":[").getBytes(utf8));
+    }
+
+    /* Add some JSON to the part that only grows, compressing it as we
+     * go */
+    private void append(byte[] data) {
+        json.write(data);
+        crc = updateCrc(crc, data, 0, data.length);
+        uncompressedLength += data.length;
+
+        deflater.setInput(data);
+        while (!deflater.needsInput()) {
+            gzip.write(deflated, 0, deflater.deflate(deflated, 0, deflated.length, Deflater.NO_FLUSH));
+        }
+    }
+
+    /* Flush what has been compressed so far to a byte boundary, so that a
+     * snapshot can finish the stream off on its own */
+    private void flush() {
+        int count;
+        do {
+            count = deflater.deflate(deflated, 0, deflated.length, Deflater.SYNC_FLUSH);
+            gzip.write(deflated, 0, count);
+        } while (count == deflated.length);
+    }
+
+    /* A final stored deflate block holding end, and the gzip trailer for
+     * everything that went before it */
+    private byte[] gzipEnd(byte[] end) {
+        int endCrc = updateCrc(crc, end, 0, end.length);
+        long total = uncompressedLength + end.length;
+        byte[] result = new byte[5 + end.length + 8];
+
+        result[0] = 1; /* BFINAL set, BTYPE 00 (stored) */
+        result[1] = (byte) end.length;
+        result[2] = (byte) (end.length >>> 8);
+        result[3] = (byte) ~end.length;
+        result[4] = (byte) (~end.length >>> 8);
+        System.arraycopy(end, 0, result, 5, end.length);
+
+        int trailer = 5 + end.length;
+        for (int i = 0; i < 4; ++i) {
+            result[trailer + i] = (byte) (endCrc >>> (8 * i));
+            result[trailer + 4 + i] = (byte) (total >>> (8 * i));
+        }
+
+        return result;
+    }
+
+    /**
+     * snapshot
+     *
+     * The chain as it stands, encoded. Only blocks that were mined since
+     * the last snapshot need encoding.
+     */
+    public Snapshot snapshot() {
+        Snapshot current = latest;
+        if (current != null && current.length == chain.length()) {
+            return current;
+        }
+
+        synchronized (this) {
+            Blockchain.Snapshot blocks = chain.snapshot();
+            int length = blocks.length();
+            if (latest != null && latest.length == length) {
+                return latest;
+            }
+
+            for (; encodedBlocks < length; ++encodedBlocks) {
+                String block = gson.toJson(blocks.blockAt(encodedBlocks));
+                append(((encodedBlocks > 0 ? "," : "") + block).getBytes(utf8));
+            }
+            flush();
+
+            byte[] end = ("],\"problemDifficulty\":" + chain.problemDifficulty() + "}").getBytes(utf8);
+            latest = new Snapshot(length,
+                                  blocks.tipHash(),
+                                  json.bytes,
+                                  json.length,
+                                  end,
+                                  gzip.bytes,
+                                  gzip.length,
+                                  gzipEnd(end));
+            return latest;
+        }
+    }
+}
@@ -9,16 +9,25 @@ import java.security.NoSuchAlgorithmException;
 
 public class Globals {
 
-// 294BSenderPubKey|294ByteRecPubKey|4BAmount|256ByteSig|4BNonce|64BBlockchainHash
+// 294BSenderPubKey|294ByteRecPubKey|4BAmount|256ByteSig|4BNonce|32BBlockchainHash
 
     public static final int nBytesKeys = 294;
 
     public static final int nBytesNonce = 4;
     public static final int nBytesAmount = 4;
     public static final int nBytesSig = 256;
-    public static final int nBytesBlockChainHash = 4;
+    public static final int nBytesBlockChainHash = 32;
 
 
+    /* A signed transaction is a Transaction followed by its signature. A
+     * block payload is either one of those, or a batch of them preceded by
+     * how many there are:
+     *
+     * 4BCount|{848BSignedTransaction}* */
+    public static final int nBytesTransaction = nBytesKeys * 2 + nBytesAmount;
+    public static final int nBytesSignedTransaction = nBytesTransaction + nBytesSig;
+    public static final int nBytesTransactionCount = 4;
+
     public static final int nBytesSPubKeyOffset=0;
     public static final int nBytesRPubKeyOffset=nBytesKeys;
     public static final int nBytesAmountOffset=nBytesKeys * 2;
@@ -0,0 +1,181 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * A HeaderChain is a Blockchain with the payloads left out. It is enough
+ * to check that every block was mined and that they all link up, and with
+ * a MerkleTree.Proof, that a particular transaction made it into one of
+ * the blocks. That is what a wallet needs without downloading the whole
+ * chain.
+ *
+ * Headers are sent over the wire as:
+ *
+ *     4BMagic|8BProblemDifficulty|4BFromIndex|4BCount|{68BHeader}*
+ *
+ * where each header is what BlockHeader.serialize produces.
+ */
+public class HeaderChain {
+    /* What to put in the Content-Type header when headers are sent */
+    public static final String contentType = "application/x-simple-blockchain-headers";
+
+    static final int magic = 0x53424831; /* "SBH1" */
+
+    private final List<BlockHeader> headers;
+    private final List<byte[]> hashes;
+    private final long problemDifficulty;
+
+    public HeaderChain(long problemDifficulty) {
+        this.headers = new ArrayList<BlockHeader>();
+        this.hashes = new ArrayList<byte[]>();
+        this.problemDifficulty = problemDifficulty;
+    }
+
+    public int length() {
+        return headers.size();
+    }
+
+    public long problemDifficulty() {
+        return problemDifficulty;
+    }
+
+    public BlockHeader headerAt(int index) {
+        return headers.get(index);
+    }
+
+    /* The hash of the block at index, which is the hash of its header */
+    public byte[] hashAt(int index) {
+        return hashes.get(index).clone();
+    }
+
+    /**
+     * appendValidated
+     *
+     * Check that a header comes straight after the last one and that it
+     * was properly mined, then append it.
+     *
+     * Throws Blockchain.IntegrityCheckFailedException if the header doesn't
+     * belong on the end of this chain, in which case the chain is unchanged.
+     */
+    public void appendValidated(BlockHeader header) throws NoSuchAlgorithmException,
+                                                           Blockchain.IntegrityCheckFailedException {
+        int index = headers.size();
+        byte[] previousHash = index > 0 ? hashes.get(index - 1) : null;
+
+        if (!header.follows(previousHash)) {
+            throw new Blockchain.IntegrityCheckFailedException(index,
+                                                               "Header does not follow the previous block");
+        }
+
+        byte[] hash = header.hash();
+        if (!Block.satisfiesProblemDifficulty(hash, problemDifficulty)) {
+            throw new Blockchain.IntegrityCheckFailedException(
+                index,
+                "Expected hash " + DatatypeConverter.printHexBinary(hash) +
+                " to have at least " + problemDifficulty + " leading zeroes"
+            );
+        }
+
+        headers.add(header);
+        hashes.add(hash);
+    }
+
+    /**
+     * includes
+     *
+     * Check that the serialised SignedObject transaction is in the block at
+     * height, using the proof of its position in that block's Merkle tree.
+     * Only the header at height is needed, not the block.
+     */
+    public boolean includes(int height,
+                            byte[] transaction,
+                            MerkleTree.Proof proof) throws NoSuchAlgorithmException {
+        if (height < 0 || height >= headers.size()) {
+            return false;
+        }
+
+        byte[] leafHash = MerkleTree.leafHash(transaction, 0, transaction.length);
+        return MessageDigest.isEqual(leafHash, proof.leafHash) &&
+               proof.verify(headers.get(height).merkleRoot);
+    }
+
+    /**
+     * write
+     *
+     * Write the headers of the blocks of chain from fromIndex onwards to
+     * stream. Blocks appended while we are writing are not included. The
+     * stream is flushed, but not closed.
+     */
+    public static void write(Blockchain chain,
+                             int fromIndex,
+                             OutputStream stream) throws IOException,
+                                                         NoSuchAlgorithmException {
+        DataOutputStream out = new DataOutputStream(stream);
+        Blockchain.Snapshot snapshot = chain.snapshot();
+        int length = snapshot.length();
+        int count = Math.max(0, length - fromIndex);
+
+        out.writeInt(magic);
+        out.writeLong(chain.problemDifficulty());
+        out.writeInt(fromIndex);
+        out.writeInt(count);
+
+        for (int i = fromIndex; i < length; ++i) {
+            out.write(snapshot.blockAt(i).header(snapshot.parentBlockHash(i)).serialize());
+        }
+
+        out.flush();
+    }
+
+    /**
+     * readInto
+     *
+     * Read headers written by HeaderChain.write and append them to chain,
+     * validating each one on top of the last. The headers have to start
+     * right where chain ends. Returns the number of headers appended.
+     */
+    public static int readInto(HeaderChain chain, InputStream stream) throws IOException,
+                                                                             NoSuchAlgorithmException,
+                                                                             Blockchain.IntegrityCheckFailedException {
+        DataInputStream in = new DataInputStream(stream);
+
+        try {
+            if (in.readInt() != magic) {
+                throw new BlockStream.MalformedStreamException("bad magic number on headers");
+            }
+
+            long problemDifficulty = in.readLong();
+            if (problemDifficulty != chain.problemDifficulty) {
+                throw new BlockStream.MalformedStreamException("problem difficulty " + problemDifficulty +
+                                                               " does not match the chain's difficulty " +
+                                                               chain.problemDifficulty);
+            }
+
+            int fromIndex = in.readInt();
+            int count = in.readInt();
+            if (fromIndex != chain.length() || count < 0) {
+                throw new BlockStream.MalformedStreamException("expected headers from " + chain.length() +
+                                                               " but got " + count + " from " + fromIndex);
+            }
+
+            byte[] header = new byte[BlockHeader.nBytesHeader];
+            for (int i = 0; i < count; ++i) {
+                in.readFully(header);
+                chain.appendValidated(BlockHeader.deserialize(header, 0));
+            }
+
+            return count;
+        } catch (EOFException e) {
+            throw new BlockStream.MalformedStreamException("stream ended before the last header");
+        }
+    }
+}
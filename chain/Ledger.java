@@ -1,9 +1,11 @@
-import java.util.HashMap;
-import java.util.Map;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Arrays;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import java.security.NoSuchAlgorithmException;
 import java.security.InvalidKeyException;
@@ -29,15 +31,11 @@ import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
  */
 public class Ledger {
     protected Blockchain chain;
-    protected Map<String, Long> ownership;
+    protected BalanceTable ownership;
 
-    protected static <K, V> void maybeInitialiseMapEntry(Map<K, V> map,
-                                                       K key,
-                                                       V init) {
-        if (!map.containsKey(key)) {
-            map.put(key, init);
-        }
-    }
+    /* How many blocks at the start of the chain were covered by a
+     * checkpoint, rather than replayed, when this ledger was built */
+    protected int checkpointHeight;
 
     public static class TransactionValidationFailedException extends Blockchain.WalkFailedException {
         @SuppressFBWarnings
@@ -55,7 +53,7 @@ public class Ledger {
 
     public static class BlobSignatureValidationFailedException extends Blockchain.WalkFailedException {
         @SuppressFBWarnings
-        public BlobSignatureValidationFailedException(Transaction transaction,
+        public BlobSignatureValidationFailedException(TransactionView transaction,
                                                       byte[] signature) {
             super("Signature validation failed: signature " +
                   DatatypeConverter.printHexBinary(signature) + " " +
@@ -64,75 +62,62 @@ public class Ledger {
         }
     }
 
+    /* Observers see a view over each transaction as it gets processed.
+     * The view reads from the block itself, so keeping hold of it is cheap,
+     * but call TransactionView.decode if you need a copy you can modify */
     public interface TransactionObserver {
-        void consume(Transaction transaction);
+        void consume(TransactionView transaction);
     }
 
-    /* Check that a payload makes sense. This function returns normally
-     * if everything is fine, but throws exceptions in cases where
-     * a payload is malformed or nonsensical.
+    /* How many blocks get their signatures verified together as a single
+     * task when replaying a chain */
+    private static final int signatureRunLength = 32;
+
+    /**
+     * SignatureCheck
      *
-     * If the payload made sense, update our internal view of
-     * the blockchain state. */
-    protected static void validateAndProcessPayload(byte[] payload,
-                                                    int index,
-                                                    Map<String, Long> ownership,
-                                                    List<TransactionObserver> observers) throws TransactionValidationFailedException,
-                                                                                                Blockchain.WalkFailedException,
-                                                                                                BlobSignatureValidationFailedException {
-        SignedObject blob = new SignedObject(payload);
-        Transaction transaction = new Transaction(blob.payload);
-
-        String srcMapKey = DatatypeConverter.printHexBinary(transaction.sPubKey);
-        String dstMapKey = DatatypeConverter.printHexBinary(transaction.rPubKey);
-
-        /* If the map doesn't contain an address, then add it with
-         * a balance of zero chriscoins.
-         *
-         * NOTE: Converting from byte arrays to digest strings like
-         * this is a pretty lazy way to get into a map, but perhaps
-         * later we can make the public keys a first class object */
-        Ledger.maybeInitialiseMapEntry(ownership,
-                                       srcMapKey,
-                                       0L);
-        Ledger.maybeInitialiseMapEntry(ownership,
-                                       dstMapKey,
-                                       0L);
-
-        long srcCoins = ownership.get(srcMapKey);
+     * Decides whether a transaction carries a valid signature, throwing if
+     * it does not. Signature checks are by far the most expensive part of
+     * processing a payload and don't depend on anybody's balance, so when
+     * replaying a whole chain we do them ahead of time on other threads and
+     * the check just reports what was found.
+     */
+    protected interface SignatureCheck {
+        /* position is where the transaction is within its block */
+        void check(SignedObjectView blob,
+                   TransactionView transaction,
+                   int position) throws Blockchain.WalkFailedException;
+    }
 
-        /* Reverse transactions are never allowed */
-        if (transaction.amount < 0) {
-            throw new TransactionValidationFailedException(transaction.sPubKey,
-                                                           srcCoins,
-                                                           transaction.rPubKey,
-                                                           transaction.amount);
+    protected static final SignatureCheck verifySignatureInline = new SignatureCheck() {
+        public void check(SignedObjectView blob,
+                          TransactionView transaction,
+                          int position) throws Blockchain.WalkFailedException {
+            verifySignature(blob, transaction);
         }
+    };
 
-        /* On non-genesis blocks we need to perform transaction
-         * validation to ensure that nobody spends money that they
-         * don't have. On the genesis block however, we don't deduct
-         * money, only add it */
-        if (index > 0 &&
-            ownership.get(srcMapKey) < transaction.amount) {
-            throw new TransactionValidationFailedException(transaction.sPubKey,
-                                                           srcCoins,
-                                                           transaction.rPubKey,
-                                                           transaction.amount);
-        }
+    /* The first transaction in a block whose signature didn't verify,
+     * and why */
+    static class SignatureFailure {
+        final int position;
+        final Blockchain.WalkFailedException reason;
 
-        /* Self-transactions are not valid on genesis blocks */
-        if (index > 0 && srcMapKey.equals(dstMapKey)) {
-            throw new Blockchain.WalkFailedException(transaction +
-                                                     " is a self transaction on a non-genesis block");
+        SignatureFailure(int position, Blockchain.WalkFailedException reason) {
+            this.position = position;
+            this.reason = reason;
         }
+    }
 
+    /* Check that the transaction in blob was signed by its sender, throwing
+     * an exception otherwise */
+    protected static void verifySignature(SignedObjectView blob,
+                                          TransactionView transaction) throws Blockchain.WalkFailedException,
+                                                                          BlobSignatureValidationFailedException {
         boolean signatureVerificationResult = false;
 
         try {
-            signatureVerificationResult = SignedObject.signatureIsValid(blob.payload,
-                                                                        blob.signature,
-                                                                        transaction.sPubKey);
+            signatureVerificationResult = blob.signedBySender();
         } catch (NoSuchAlgorithmException e) {
             /* Not much we can do here other than re-throw and abort
              * the walk process */
@@ -154,44 +139,244 @@ public class Ledger {
         /* Check to make sure that the signature is valid on the blob */
         if (!signatureVerificationResult) {
             throw new BlobSignatureValidationFailedException(transaction,
-                                                             blob.signature);
+                                                             blob.signature());
+        }
+    }
+
+    /* Check that a payload makes sense. This function returns normally
+     * if everything is fine, but throws exceptions in cases where
+     * a payload is malformed or nonsensical.
+     *
+     * If the payload made sense, update our internal view of
+     * the blockchain state. */
+    protected static void validateAndProcessPayload(byte[] payload,
+                                                    int index,
+                                                    BalanceTable ownership,
+                                                    List<TransactionObserver> observers) throws TransactionValidationFailedException,
+                                                                                                Blockchain.WalkFailedException,
+                                                                                                BlobSignatureValidationFailedException {
+        validateAndProcessBlock(new BlockView(payload), index, ownership, observers, verifySignatureInline);
+    }
+
+    /* Check and apply every transaction in a block, in order. A block
+     * is only valid if all of its transactions are, but the transactions
+     * before the one that failed will already have been applied */
+    protected static void validateAndProcessBlock(BlockView block,
+                                                  int index,
+                                                  BalanceTable ownership,
+                                                  List<TransactionObserver> observers,
+                                                  SignatureCheck signatureCheck) throws TransactionValidationFailedException,
+                                                                                        Blockchain.WalkFailedException,
+                                                                                        BlobSignatureValidationFailedException {
+        int count = block.transactionCount();
+        for (int position = 0; position < count; ++position) {
+            validateAndProcessTransaction(block.signedObject(position),
+                                          block.transaction(position),
+                                          position,
+                                          index,
+                                          ownership,
+                                          observers,
+                                          signatureCheck);
+        }
+    }
+
+    private static void validateAndProcessTransaction(SignedObjectView blob,
+                                                      TransactionView transaction,
+                                                      int position,
+                                                      int index,
+                                                      BalanceTable ownership,
+                                                      List<TransactionObserver> observers,
+                                                      SignatureCheck signatureCheck) throws TransactionValidationFailedException,
+                                                                                            Blockchain.WalkFailedException,
+                                                                                            BlobSignatureValidationFailedException {
+        int amount = transaction.amount();
+
+        /* If we haven't seen a wallet before, it starts out with a
+         * balance of zero chriscoins */
+        int src = transaction.internSender(ownership);
+        int dst = transaction.internRecipient(ownership);
+
+        long srcCoins = ownership.balance(src);
+
+        /* Reverse transactions are never allowed */
+        if (amount < 0) {
+            throw new TransactionValidationFailedException(transaction.sPubKey(),
+                                                           srcCoins,
+                                                           transaction.rPubKey(),
+                                                           amount);
         }
 
+        /* On non-genesis blocks we need to perform transaction
+         * validation to ensure that nobody spends money that they
+         * don't have. On the genesis block however, we don't deduct
+         * money, only add it */
+        if (index > 0 &&
+            srcCoins < amount) {
+            throw new TransactionValidationFailedException(transaction.sPubKey(),
+                                                           srcCoins,
+                                                           transaction.rPubKey(),
+                                                           amount);
+        }
+
+        /* Self-transactions are not valid on genesis blocks */
+        if (index > 0 && src == dst) {
+            throw new Blockchain.WalkFailedException(transaction +
+                                                     " is a self transaction on a non-genesis block");
+        }
+
+        signatureCheck.check(blob, transaction, position);
+
         /* Transaction would have been successful. Allow this transaction
          * on the chain and update our view */
         if (index > 0) {
-            ownership.put(srcMapKey,
-                          Math.max(ownership.get(srcMapKey) -
-                                   transaction.amount, 0L));
+            ownership.setBalance(src,
+                                 Math.max(ownership.balance(src) -
+                                          amount, 0L));
         }
 
-        ownership.put(dstMapKey,
-                      ownership.get(dstMapKey) + transaction.amount);
+        ownership.setBalance(dst,
+                             ownership.balance(dst) + amount);
 
         for (TransactionObserver observer : observers) {
             observer.consume(transaction);
         }
     }
 
+    /* Verify the signatures on blocks [start, end) of blocks, returning
+     * the first transaction in each block whose signature failed, or null
+     * if every signature was fine. Anything else that goes wrong, like a
+     * payload that can't even be decoded, counts as a failure at the
+     * transaction we got to, so that nothing from there on is applied
+     * without its signature being checked. validateAndProcessBlock will
+     * usually complain about a bad payload before it gets that far. */
+    static SignatureFailure[] verifySignatureRun(List<Block> blocks,
+                                                 int start,
+                                                 int end) {
+        SignatureFailure[] failures = new SignatureFailure[end - start];
+
+        for (int index = start; index < end; ++index) {
+            int position = 0;
+            try {
+                BlockView view = blocks.get(index).view();
+                for (; position < view.transactionCount(); ++position) {
+                    try {
+                        verifySignature(view.signedObject(position), view.transaction(position));
+                    } catch (Blockchain.WalkFailedException e) {
+                        failures[index - start] = new SignatureFailure(position, e);
+                        break;
+                    }
+                }
+            } catch (RuntimeException e) {
+                failures[index - start] = new SignatureFailure(position, new Blockchain.WalkFailedException(
+                    "could not check the signature of transaction " + position +
+                    " in block " + index + ": " + e
+                ));
+            }
+        }
+
+        return failures;
+    }
+
     /* Build up a view the transaction history for each public key and
      * address, optionally calling out to a TransactionObserver for each
-     * transaction */
-    private static Map<String, Long> walkTransactions(Blockchain chain,
-                                                      final List<TransactionObserver> observers) throws Blockchain.WalkFailedException {
-        final Map<String, Long> ownership = new HashMap<String, Long>();
+     * transaction.
+     *
+     * This works as a two stage pipeline. The first stage verifies the
+     * signatures on runs of blocks on the fork-join pool, since those
+     * checks don't depend on each other. The second stage applies each
+     * transaction to the balances strictly in chain order on this thread,
+     * picking up the signature verdicts as they become available. Errors
+     * and observer calls happen in exactly the same order as they would
+     * if we verified every signature inline. */
+    private static BalanceTable walkTransactions(Blockchain chain,
+                                                 final List<TransactionObserver> observers) throws Blockchain.WalkFailedException {
+        return walkTransactions(chain, observers, new BalanceTable(), 0);
+    }
+
+    /* The same as above, but start from the balances after the first
+     * fromIndex blocks instead of from nothing. The blocks before
+     * fromIndex are not looked at, or checked, at all */
+    private static BalanceTable walkTransactions(Blockchain chain,
+                                                 final List<TransactionObserver> observers,
+                                                 final BalanceTable ownership,
+                                                 final int fromIndex) throws Blockchain.WalkFailedException {
+        final List<Block> blocks = new ArrayList<Block>(Math.max(chain.length() - fromIndex, 0));
 
         chain.walk(new Blockchain.BlockEnumerator() {
-            public void consume(int index, Block block) throws Blockchain.WalkFailedException {
-                validateAndProcessPayload(block.payload,
-                                          index,
-                                          ownership,
-                                          observers);
+            public void consume(int index, Block block) {
+                if (index >= fromIndex) {
+                    blocks.add(block);
+                }
             }
         });
 
+        if (blocks.size() <= signatureRunLength) {
+            for (int index = 0; index < blocks.size(); ++index) {
+                validateAndProcessBlock(blocks.get(index).view(),
+                                        fromIndex + index,
+                                        ownership,
+                                        observers,
+                                        verifySignatureInline);
+            }
+
+            return ownership;
+        }
+
+        List<Future<SignatureFailure[]>> runs = new ArrayList<Future<SignatureFailure[]>>();
+        for (int start = 0; start < blocks.size(); start += signatureRunLength) {
+            final int runStart = start;
+            final int runEnd = Math.min(start + signatureRunLength, blocks.size());
+            runs.add(ForkJoinPool.commonPool().submit(new Callable<SignatureFailure[]>() {
+                public SignatureFailure[] call() {
+                    return verifySignatureRun(blocks, runStart, runEnd);
+                }
+            }));
+        }
+
+        try {
+            for (int run = 0; run < runs.size(); ++run) {
+                final SignatureFailure[] failures = waitForRun(runs.get(run));
+                final int runStart = run * signatureRunLength;
+
+                for (int index = runStart; index < runStart + failures.length; ++index) {
+                    final SignatureFailure failure = failures[index - runStart];
+                    validateAndProcessBlock(blocks.get(index).view(),
+                                            fromIndex + index,
+                                            ownership,
+                                            observers,
+                                            new SignatureCheck() {
+                        public void check(SignedObjectView blob,
+                                          TransactionView transaction,
+                                          int position) throws Blockchain.WalkFailedException {
+                            if (failure != null && failure.position == position) {
+                                throw failure.reason;
+                            }
+                        }
+                    });
+                }
+            }
+        } finally {
+            /* If we bailed out early, nobody cares about the remaining
+             * signatures any more */
+            for (Future<SignatureFailure[]> run : runs) {
+                run.cancel(false);
+            }
+        }
+
         return ownership;
     }
 
+    private static SignatureFailure[] waitForRun(Future<SignatureFailure[]> run) {
+        try {
+            return run.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e.getMessage());
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
     /* Construct a new ledger from a Blockchain. */
     public Ledger(Blockchain chain) throws Blockchain.WalkFailedException {
         this.chain = chain;
@@ -215,4 +400,24 @@ public class Ledger {
         this.chain = chain;
         this.ownership = Ledger.walkTransactions(this.chain, observers);
     }
+
+    /* Construct a new ledger from a Blockchain, starting from the balances
+     * in a checkpoint so that only the blocks after it need to be replayed.
+     * Observers only see those blocks. If checkpoint is null or doesn't
+     * match the chain, the whole chain is replayed as usual */
+    public Ledger(Blockchain chain,
+                  List<TransactionObserver> observers,
+                  LedgerCheckpoints.Checkpoint checkpoint) throws Blockchain.WalkFailedException {
+        this.chain = chain;
+
+        if (checkpoint != null && checkpoint.matches(chain)) {
+            this.ownership = Ledger.walkTransactions(this.chain,
+                                                     observers,
+                                                     checkpoint.balances(),
+                                                     checkpoint.height());
+            this.checkpointHeight = checkpoint.height();
+        } else {
+            this.ownership = Ledger.walkTransactions(this.chain, observers);
+        }
+    }
 }
\ No newline at end of file
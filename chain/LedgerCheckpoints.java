@@ -0,0 +1,351 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * LedgerCheckpoints keeps snapshots of a Ledger's balances in a directory,
+ * so that a node which already has most of the chain doesn't have to replay
+ * (and verify the signature on) every single block again when it starts up.
+ *
+ * Each checkpoint is stamped with the height and the tip hash of the chain
+ * it was taken from. A checkpoint is only used for a chain that has the same
+ * block at that height, and only the blocks after it are replayed.
+ *
+ * The file format is:
+ *
+ *     4BMagic|4BHeight|4BTipLength|*BTip|4BWallets|{4BKeyLength|*BKey|8BBalance}*|8BCRC32
+ *
+ * Checkpoints are written on a background thread from a copy of the
+ * balances, so taking one costs the caller no more than copying two arrays.
+ * Files are written under a temporary name and renamed into place, so a
+ * reader never sees half a checkpoint.
+ */
+public class LedgerCheckpoints {
+    private static final int magic = 0x53424c31; /* "SBL1" */
+    private static final String checkpointPrefix = "checkpoint-";
+    private static final String checkpointSuffix = ".ledger";
+
+    /* How many of the newest checkpoints to keep around */
+    private static final int retainedCheckpoints = 2;
+
+    private final File directory;
+    private final int interval;
+    private final ExecutorService writer;
+
+    /* The height of the last checkpoint taken by maybeCheckpoint. When
+     * several payloads go into the same block, we get asked more than once
+     * for the same height and only the first time is the right one */
+    private int lastCheckpointHeight;
+
+    /* Balances for a checkpoint whose last block hadn't been mined yet
+     * when maybeCheckpoint was called, see blockMined */
+    private int pendingHeight;
+    private BalanceTable pendingBalances;
+
+    public static class Checkpoint {
+        private final int height;
+        private final byte[] tipHash;
+        private final BalanceTable balances;
+
+        public Checkpoint(int height, byte[] tipHash, BalanceTable balances) {
+            this.height = height;
+            this.tipHash = tipHash.clone();
+            this.balances = balances;
+        }
+
+        public int height() {
+            return height;
+        }
+
+        public byte[] tipHash() {
+            return tipHash.clone();
+        }
+
+        /* A copy of the balances, which the caller is free to change */
+        public BalanceTable balances() {
+            return balances.copy();
+        }
+
+        /* Whether this checkpoint was taken from the first height blocks
+         * of chain */
+        public boolean matches(Blockchain chain) {
+            return chain.sharesPrefix(height, tipHash);
+        }
+    }
+
+    public static class CorruptCheckpointException extends IOException {
+        public CorruptCheckpointException(File file, String msg) {
+            super("Ledger checkpoint " + file + " is corrupt: " + msg);
+        }
+    }
+
+    /* Keep checkpoints in directory, taking a new one every interval
+     * blocks */
+    public LedgerCheckpoints(File directory, int interval) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create checkpoint directory " + directory);
+        }
+
+        this.directory = directory;
+        this.interval = interval;
+        this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ledger-checkpoint");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public int interval() {
+        return interval;
+    }
+
+    /**
+     * newestMatching
+     *
+     * Find the newest checkpoint that was taken from some prefix of chain,
+     * or null if there isn't one. Checkpoints that can't be read are
+     * skipped over.
+     */
+    public Checkpoint newestMatching(Blockchain chain) {
+        for (File file : checkpointFiles()) {
+            try {
+                Checkpoint checkpoint = read(file);
+                if (checkpoint.matches(chain)) {
+                    return checkpoint;
+                }
+            } catch (IOException e) {
+                System.err.println("Ignoring unreadable ledger checkpoint: " + e.getMessage());
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * maybeCheckpoint
+     *
+     * Called with the balances after the first height blocks of chain. If
+     * height is a multiple of the checkpoint interval, the balances are
+     * copied and written out in the background. Only the first call for
+     * each height counts.
+     *
+     * Balances are worked out ahead of mining, so the block at height - 1
+     * might not be on chain yet. In that case the copy is held on to until
+     * blockMined hears about that block, since the checkpoint has to
+     * record its hash, or until discardPending says it never will be.
+     */
+    public synchronized void maybeCheckpoint(int height, Blockchain chain, BalanceTable balances) {
+        if (height == 0 || interval <= 0 || height % interval != 0 ||
+            height == lastCheckpointHeight) {
+            return;
+        }
+
+        lastCheckpointHeight = height;
+        if (chain.length() >= height) {
+            checkpoint(height, chain.blockAt(height - 1).hash, balances);
+        } else {
+            pendingHeight = height;
+            pendingBalances = balances.copy();
+        }
+    }
+
+    /* The block at height was mined and has hash. If a checkpoint was
+     * waiting for it, it is written out with that hash. A checkpoint still
+     * waiting for an earlier block missed it, so it is dropped rather than
+     * stamped with some other block's hash */
+    public synchronized void blockMined(int height, byte[] hash) {
+        if (pendingBalances == null || height + 1 < pendingHeight) {
+            return;
+        }
+
+        if (height + 1 == pendingHeight) {
+            checkpointCopy(pendingHeight, hash, pendingBalances);
+        }
+
+        pendingBalances = null;
+    }
+
+    /* A block couldn't be mined, so the balances held for a checkpoint
+     * count payloads that aren't on the chain. They are dropped, and the
+     * checkpoint will be taken again once the balances for its height
+     * have been worked out again */
+    public synchronized void discardPending() {
+        if (pendingBalances != null) {
+            pendingBalances = null;
+            lastCheckpointHeight = 0;
+        }
+    }
+
+    /* Copy the balances after the first height blocks of the chain and
+     * write them out in the background, whatever the height */
+    public void checkpoint(int height, byte[] tipHash, BalanceTable balances) {
+        checkpointCopy(height, tipHash, balances.copy());
+    }
+
+    /* Write out balances that nobody else is going to change */
+    private void checkpointCopy(int height, byte[] tipHash, BalanceTable balances) {
+        final Checkpoint checkpoint = new Checkpoint(height, tipHash, balances);
+        writer.submit(new Runnable() {
+            public void run() {
+                try {
+                    write(checkpoint);
+                    prune();
+                } catch (IOException e) {
+                    System.err.println("Failed to write ledger checkpoint at height " +
+                                       checkpoint.height() + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /* Wait until every checkpoint asked for so far has been written */
+    public void flush() {
+        try {
+            writer.submit(new Runnable() {
+                public void run() {
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    public void shutdown() {
+        writer.shutdown();
+    }
+
+    public void write(Checkpoint checkpoint) throws IOException {
+        File file = checkpointFile(checkpoint.height());
+        File temporary = new File(directory, file.getName() + ".tmp");
+        CheckedOutputStream checked = new CheckedOutputStream(
+            new BufferedOutputStream(new FileOutputStream(temporary)),
+            new CRC32()
+        );
+        DataOutputStream out = new DataOutputStream(checked);
+
+        try {
+            BalanceTable balances = checkpoint.balances;
+            out.writeInt(magic);
+            out.writeInt(checkpoint.height);
+            out.writeInt(checkpoint.tipHash.length);
+            out.write(checkpoint.tipHash);
+            out.writeInt(balances.size());
+
+            for (int id = 0; id < balances.size(); ++id) {
+                byte[] key = balances.wallet(id).key();
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeLong(balances.balance(id));
+            }
+
+            out.writeLong(checked.getChecksum().getValue());
+        } finally {
+            out.close();
+        }
+
+        if (!temporary.renameTo(file)) {
+            throw new IOException("Could not move " + temporary + " to " + file);
+        }
+    }
+
+    public static Checkpoint read(File file) throws IOException {
+        CheckedInputStream checked = new CheckedInputStream(
+            new BufferedInputStream(new FileInputStream(file)),
+            new CRC32()
+        );
+        DataInputStream in = new DataInputStream(checked);
+
+        try {
+            if (in.readInt() != magic) {
+                throw new CorruptCheckpointException(file, "bad magic number");
+            }
+
+            int height = in.readInt();
+            byte[] tipHash = readBytes(in, file);
+            int wallets = in.readInt();
+            if (wallets < 0) {
+                throw new CorruptCheckpointException(file, "negative wallet count");
+            }
+
+            BalanceTable balances = new BalanceTable();
+            for (int i = 0; i < wallets; ++i) {
+                int id = balances.intern(readBytes(in, file));
+                balances.setBalance(id, in.readLong());
+            }
+
+            long expectedChecksum = checked.getChecksum().getValue();
+            if (in.readLong() != expectedChecksum) {
+                throw new CorruptCheckpointException(file, "checksum mismatch");
+            }
+
+            return new Checkpoint(height, tipHash, balances);
+        } catch (EOFException e) {
+            throw new CorruptCheckpointException(file, "truncated");
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in, File file) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > 1 << 16) {
+            throw new CorruptCheckpointException(file, "bad field length " + length);
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private File checkpointFile(int height) {
+        return new File(directory, String.format("%s%010d%s", checkpointPrefix, height, checkpointSuffix));
+    }
+
+    /* Checkpoint files, newest first. The heights are zero padded so
+     * sorting by name sorts by height */
+    private List<File> checkpointFiles() {
+        List<File> files = new ArrayList<File>();
+        File[] entries = directory.listFiles();
+
+        if (entries != null) {
+            for (File file : entries) {
+                String name = file.getName();
+                if (name.startsWith(checkpointPrefix) && name.endsWith(checkpointSuffix)) {
+                    files.add(file);
+                }
+            }
+        }
+
+        Collections.sort(files, Collections.reverseOrder());
+        return files;
+    }
+
+    private void prune() {
+        List<File> files = checkpointFiles();
+        for (int i = retainedCheckpoints; i < files.size(); ++i) {
+            if (!files.get(i).delete()) {
+                System.err.println("Could not remove old ledger checkpoint " + files.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,438 @@
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The Mempool holds the payloads that are waiting to be mined, and decides
+ * which ones go into the next block.
+ *
+ * - The same payload (by its SHA-256 digest, see SignedObjectView.digest)
+ *   is only held once. A copy that turns up while the original is still
+ *   waiting or being mined is dropped.
+ *
+ * - Each sender gets a queue of their own, ordered by a pluggable Priority
+ *   and then by arrival. The next payload comes from the sender whose best
+ *   payload has the highest priority. Among equals, the sender who has had
+ *   the fewest payloads taken so far goes first, so one busy sender can't
+ *   starve everyone else. A sender who has been quiet for a while starts
+ *   level with whoever was served last, rather than getting to catch up on
+ *   all the turns they missed.
+ *
+ * - The payloads held can take up to maxBytes. When there isn't room, the
+ *   sender holding the most bytes loses their lowest priority, newest
+ *   payload until there is. That might well be the payload that was just
+ *   added.
+ *
+ * Payloads that aren't single signed transactions have no sender as far as
+ * the mempool is concerned, and share one queue.
+ *
+ * A Mempool is thread safe. take and poll block like a BlockingQueue until
+ * something is available or the mempool is closed.
+ */
+public class Mempool {
+    public static final long defaultMaxBytes = 64L * 1024 * 1024;
+
+    /**
+     * Priority
+     *
+     * Decides which payloads get mined first. Payloads with a higher
+     * priority are taken first. Payloads with the same priority are taken
+     * in the order they arrived.
+     */
+    public static interface Priority {
+        public long of(byte[] payload);
+    }
+
+    /* Everything is equal, so payloads are mined in arrival order */
+    public static final Priority FIFO = new Priority() {
+        public long of(byte[] payload) {
+            return 0;
+        }
+    };
+
+    /* What happened to a payload handed to add */
+    public static enum Admission {
+        ADDED,
+        DUPLICATE,
+        EVICTED
+    }
+
+    /**
+     * Stats
+     *
+     * A snapshot of what is in the mempool. Ages are in milliseconds,
+     * measured from when each payload was added.
+     */
+    public static class Stats {
+        public int size;
+        public long bytes;
+        public long maxBytes;
+        public int senders;
+        public long oldestAgeMs;
+        public long medianAgeMs;
+        public long p90AgeMs;
+        public long p99AgeMs;
+        public long duplicatesDropped;
+        public long evicted;
+    }
+
+    private static class Entry {
+        final BlockMiner.HashWorker.HashJob job;
+        final ByteBuffer digest;
+        final long priority;
+        final long sequence;
+        final long addedMs;
+
+        Entry(BlockMiner.HashWorker.HashJob job,
+              ByteBuffer digest,
+              long priority,
+              long sequence,
+              long addedMs) {
+            this.job = job;
+            this.digest = digest;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.addedMs = addedMs;
+        }
+    }
+
+    private static final Comparator<Entry> entryOrder = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            if (a.priority != b.priority) {
+                return a.priority > b.priority ? -1 : 1;
+            }
+
+            return Long.compare(a.sequence, b.sequence);
+        }
+    };
+
+    private static class SenderQueue {
+        final ByteBuffer sender;
+        final long id;
+        final TreeSet<Entry> entries = new TreeSet<Entry>(entryOrder);
+        long served;
+        long bytes;
+
+        SenderQueue(ByteBuffer sender, long id) {
+            this.sender = sender;
+            this.id = id;
+        }
+    }
+
+    private static final Comparator<SenderQueue> senderOrder = new Comparator<SenderQueue>() {
+        public int compare(SenderQueue a, SenderQueue b) {
+            Entry headA = a.entries.first();
+            Entry headB = b.entries.first();
+
+            if (headA.priority != headB.priority) {
+                return headA.priority > headB.priority ? -1 : 1;
+            }
+
+            if (a.served != b.served) {
+                return Long.compare(a.served, b.served);
+            }
+
+            if (headA.sequence != headB.sequence) {
+                return Long.compare(headA.sequence, headB.sequence);
+            }
+
+            return Long.compare(a.id, b.id);
+        }
+    };
+
+    private final long maxBytes;
+    private final Priority priority;
+
+    private final Map<ByteBuffer, Entry> pending = new HashMap<ByteBuffer, Entry>();
+    private final Set<ByteBuffer> inFlight = new HashSet<ByteBuffer>();
+    private final Map<ByteBuffer, SenderQueue> senders = new HashMap<ByteBuffer, SenderQueue>();
+
+    /* Senders with something waiting, best first. A sender has to be taken
+     * out before its head or served count changes and put back after */
+    private final TreeSet<SenderQueue> ready = new TreeSet<SenderQueue>(senderOrder);
+
+    private long bytes;
+    private long sequence;
+    private long nextSenderId;
+    private long virtualTime;
+    private long duplicatesDropped;
+    private long evicted;
+    private boolean closed;
+
+    public Mempool() {
+        this(defaultMaxBytes, FIFO);
+    }
+
+    public Mempool(long maxBytes, Priority priority) {
+        this.maxBytes = maxBytes;
+        this.priority = priority;
+    }
+
+    /* The key that identifies who sent a payload */
+    private static ByteBuffer senderOf(byte[] payload) {
+        if (payload.length != Globals.nBytesSignedTransaction) {
+            return ByteBuffer.wrap(new byte[0]);
+        }
+
+        return ByteBuffer.wrap(new TransactionView(payload).sPubKey());
+    }
+
+    private static ByteBuffer digestOf(byte[] payload) {
+        try {
+            return ByteBuffer.wrap(Blockchain.mkHash(payload, 0, payload.length));
+        } catch (NoSuchAlgorithmException e) {
+            /* Should never happen */
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    /**
+     * add
+     *
+     * Add a job to the mempool. Returns what happened to it: if it was a
+     * DUPLICATE or had to be EVICTED straight away to stay within the
+     * memory budget, it isn't held and will never be handed out. Adding
+     * jobs to a closed mempool is an error.
+     *
+     * Jobs pushed out to make room for this one are added to evictedJobs,
+     * so the caller can tell whoever was waiting for them.
+     */
+    public synchronized Admission add(BlockMiner.HashWorker.HashJob job,
+                                      List<BlockMiner.HashWorker.HashJob> evictedJobs) {
+        if (closed) {
+            throw new IllegalStateException("Cannot add to a closed mempool");
+        }
+
+        Admission admission = admit(job, evictedJobs);
+        notifyAll();
+        return admission;
+    }
+
+    /**
+     * addAll
+     *
+     * Add a batch of jobs at once, as if each were passed to add in turn,
+     * but without anybody taking jobs out in between. Returns what
+     * happened to each job, in the same order.
+     *
+     * A job that was ADDED can still be pushed out by a later job in the
+     * same batch, in which case it is in evictedJobs as well.
+     */
+    public synchronized List<Admission> addAll(List<BlockMiner.HashWorker.HashJob> jobs,
+                                               List<BlockMiner.HashWorker.HashJob> evictedJobs) {
+        if (closed) {
+            throw new IllegalStateException("Cannot add to a closed mempool");
+        }
+
+        List<Admission> admissions = new ArrayList<Admission>(jobs.size());
+        for (BlockMiner.HashWorker.HashJob job : jobs) {
+            admissions.add(admit(job, evictedJobs));
+        }
+
+        notifyAll();
+        return admissions;
+    }
+
+    private Admission admit(BlockMiner.HashWorker.HashJob job,
+                            List<BlockMiner.HashWorker.HashJob> evictedJobs) {
+        ByteBuffer digest = digestOf(job.payload);
+        if (pending.containsKey(digest) || inFlight.contains(digest)) {
+            ++duplicatesDropped;
+            return Admission.DUPLICATE;
+        }
+
+        Entry entry = new Entry(job,
+                                digest,
+                                priority.of(job.payload),
+                                sequence++,
+                                System.currentTimeMillis());
+        ByteBuffer sender = senderOf(job.payload);
+        SenderQueue queue = senders.get(sender);
+        if (queue == null) {
+            queue = new SenderQueue(sender, nextSenderId++);
+            senders.put(sender, queue);
+        }
+
+        if (queue.entries.isEmpty()) {
+            /* Don't let a sender bank the turns they didn't need */
+            queue.served = virtualTime;
+        } else {
+            ready.remove(queue);
+        }
+
+        queue.entries.add(entry);
+        queue.bytes += job.payload.length;
+        ready.add(queue);
+        pending.put(digest, entry);
+        bytes += job.payload.length;
+
+        boolean admitted = true;
+        while (bytes > maxBytes && !pending.isEmpty()) {
+            Entry victim = evictOne();
+            if (victim == entry) {
+                admitted = false;
+            } else {
+                evictedJobs.add(victim.job);
+            }
+        }
+
+        return admitted ? Admission.ADDED : Admission.EVICTED;
+    }
+
+    /* Throw out the lowest priority, newest payload of whichever sender
+     * is taking up the most room. If senders are taking up the same room,
+     * the one with the newest payload loses it */
+    private Entry evictOne() {
+        SenderQueue heaviest = null;
+        for (SenderQueue queue : senders.values()) {
+            if (queue.entries.isEmpty()) {
+                continue;
+            }
+
+            if (heaviest == null ||
+                queue.bytes > heaviest.bytes ||
+                (queue.bytes == heaviest.bytes &&
+                 queue.entries.last().sequence > heaviest.entries.last().sequence)) {
+                heaviest = queue;
+            }
+        }
+
+        ready.remove(heaviest);
+        Entry victim = heaviest.entries.pollLast();
+        forget(heaviest, victim);
+        if (!heaviest.entries.isEmpty()) {
+            ready.add(heaviest);
+        }
+
+        ++evicted;
+        return victim;
+    }
+
+    private void forget(SenderQueue queue, Entry entry) {
+        queue.bytes -= entry.job.payload.length;
+        bytes -= entry.job.payload.length;
+        pending.remove(entry.digest);
+
+        if (queue.entries.isEmpty()) {
+            /* When they come back they start level with everyone else
+             * anyway, so there is nothing to remember about them */
+            senders.remove(queue.sender);
+        }
+    }
+
+    /* Hand out the next job, which now counts as being mined until it is
+     * passed to done */
+    private BlockMiner.HashWorker.HashJob next() {
+        SenderQueue queue = ready.pollFirst();
+        Entry entry = queue.entries.pollFirst();
+
+        virtualTime = Math.max(virtualTime, queue.served);
+        queue.served++;
+        forget(queue, entry);
+        if (!queue.entries.isEmpty()) {
+            ready.add(queue);
+        }
+
+        inFlight.add(entry.digest);
+        return entry.job;
+    }
+
+    /**
+     * take
+     *
+     * Wait for the next job. Returns null once the mempool has been closed
+     * and everything in it has been handed out.
+     */
+    public synchronized BlockMiner.HashWorker.HashJob take() throws InterruptedException {
+        while (ready.isEmpty() && !closed) {
+            wait();
+        }
+
+        return ready.isEmpty() ? null : next();
+    }
+
+    /**
+     * poll
+     *
+     * Wait up to timeoutMs for the next job, returning null if nothing
+     * turned up in time or the mempool is closed and empty. A timeout of
+     * zero or less doesn't wait at all.
+     */
+    public synchronized BlockMiner.HashWorker.HashJob poll(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        long remaining = timeoutMs;
+
+        while (ready.isEmpty() && !closed && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+
+        return ready.isEmpty() ? null : next();
+    }
+
+    /* The given jobs have been mined or thrown away, so the same payloads
+     * are welcome again */
+    public synchronized void done(List<BlockMiner.HashWorker.HashJob> jobs) {
+        for (BlockMiner.HashWorker.HashJob job : jobs) {
+            inFlight.remove(digestOf(job.payload));
+        }
+    }
+
+    /* Stop accepting jobs. Jobs already in the mempool are still handed
+     * out by take and poll */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    public synchronized Stats stats() {
+        Stats stats = new Stats();
+        long now = System.currentTimeMillis();
+        long[] ages = new long[pending.size()];
+        int i = 0;
+
+        for (Entry entry : pending.values()) {
+            ages[i++] = now - entry.addedMs;
+        }
+        Arrays.sort(ages);
+
+        stats.size = ages.length;
+        stats.bytes = bytes;
+        stats.maxBytes = maxBytes;
+        stats.senders = ready.size();
+        stats.oldestAgeMs = percentile(ages, 100);
+        stats.medianAgeMs = percentile(ages, 50);
+        stats.p90AgeMs = percentile(ages, 90);
+        stats.p99AgeMs = percentile(ages, 99);
+        stats.duplicatesDropped = duplicatesDropped;
+        stats.evicted = evicted;
+        return stats;
+    }
+
+    /* Nearest rank percentile of some sorted values */
+    private static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+}
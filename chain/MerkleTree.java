@@ -0,0 +1,145 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A MerkleTree is a binary tree of hashes over the transactions in a block.
+ * Each leaf is the hash of one transaction and each node above that is the
+ * hash of its two children, up to a single root hash. The root goes in the
+ * block header, so it commits to every transaction in the block.
+ *
+ * Anybody who has the block headers can check that a transaction is in a
+ * block with just the hashes along the path from its leaf up to the root
+ * (an "inclusion proof"), without having the rest of the block.
+ *
+ * Leaves and nodes are hashed with a different prefix byte, so that a node
+ * can never be passed off as a leaf or the other way around. When a level
+ * has an odd number of hashes, the last one moves up to the next level
+ * as it is.
+ */
+public class MerkleTree {
+    private static final byte leafPrefix = 0x00;
+    private static final byte nodePrefix = 0x01;
+
+    /* levels.get(0) are the leaves, the last level is just the root */
+    private final List<byte[][]> levels;
+
+    public MerkleTree(byte[][] leafHashes) throws NoSuchAlgorithmException {
+        if (leafHashes.length == 0) {
+            throw new IllegalArgumentException("A MerkleTree needs at least one leaf");
+        }
+
+        this.levels = new ArrayList<byte[][]>();
+        this.levels.add(leafHashes);
+
+        byte[][] level = leafHashes;
+        while (level.length > 1) {
+            byte[][] parents = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < parents.length; ++i) {
+                parents[i] = 2 * i + 1 < level.length ?
+                    nodeHash(level[2 * i], level[2 * i + 1]) :
+                    level[2 * i];
+            }
+
+            this.levels.add(parents);
+            level = parents;
+        }
+    }
+
+    public static byte[] leafHash(byte[] buf, int offset, int length) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance(Globals.hashAlg);
+        digest.update(leafPrefix);
+        digest.update(buf, offset, length);
+        return digest.digest();
+    }
+
+    static byte[] nodeHash(byte[] left, byte[] right) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance(Globals.hashAlg);
+        digest.update(nodePrefix);
+        digest.update(left);
+        digest.update(right);
+        return digest.digest();
+    }
+
+    public byte[] root() {
+        return levels.get(levels.size() - 1)[0].clone();
+    }
+
+    public int leafCount() {
+        return levels.get(0).length;
+    }
+
+    /* The proof that the leaf at position is part of this tree */
+    public Proof proof(int position) {
+        if (position < 0 || position >= leafCount()) {
+            throw new IndexOutOfBoundsException("No leaf at position " + position);
+        }
+
+        List<byte[]> siblings = new ArrayList<byte[]>();
+        List<Boolean> siblingOnLeft = new ArrayList<Boolean>();
+        int index = position;
+
+        for (int level = 0; level < levels.size() - 1; ++level) {
+            byte[][] hashes = levels.get(level);
+            if (index % 2 == 1) {
+                siblings.add(hashes[index - 1].clone());
+                siblingOnLeft.add(Boolean.TRUE);
+            } else if (index + 1 < hashes.length) {
+                siblings.add(hashes[index + 1].clone());
+                siblingOnLeft.add(Boolean.FALSE);
+            }
+
+            /* Otherwise this hash moves up a level on its own, so there is
+             * nothing to record */
+            index /= 2;
+        }
+
+        boolean[] onLeft = new boolean[siblingOnLeft.size()];
+        for (int i = 0; i < onLeft.length; ++i) {
+            onLeft[i] = siblingOnLeft.get(i);
+        }
+
+        return new Proof(levels.get(0)[position].clone(),
+                         siblings.toArray(new byte[siblings.size()][]),
+                         onLeft);
+    }
+
+    /**
+     * Proof
+     *
+     * The hashes needed to get from a leaf to the root. At each step the
+     * sibling is hashed together with what we have so far, on the left or
+     * right hand side as recorded.
+     */
+    public static class Proof {
+        public final byte[] leafHash;
+        public final byte[][] siblings;
+        public final boolean[] siblingOnLeft;
+
+        public Proof(byte[] leafHash, byte[][] siblings, boolean[] siblingOnLeft) {
+            if (siblings.length != siblingOnLeft.length) {
+                throw new IllegalArgumentException("Every sibling needs a side");
+            }
+
+            this.leafHash = leafHash;
+            this.siblings = siblings;
+            this.siblingOnLeft = siblingOnLeft;
+        }
+
+        public byte[] computeRoot() throws NoSuchAlgorithmException {
+            byte[] hash = leafHash;
+            for (int i = 0; i < siblings.length; ++i) {
+                hash = siblingOnLeft[i] ?
+                    nodeHash(siblings[i], hash) :
+                    nodeHash(hash, siblings[i]);
+            }
+
+            return hash;
+        }
+
+        public boolean verify(byte[] root) throws NoSuchAlgorithmException {
+            return MessageDigest.isEqual(computeRoot(), root);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+import java.security.NoSuchAlgorithmException;
+
+import java.util.List;
+import java.util.ArrayList;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The MiningEngine searches the nonce space for a block on a pool of
+ * worker threads. Each worker scans every nth nonce (where n is the number
+ * of workers), so the space is split evenly without any coordination
+ * beyond a shared stop flag. The first worker to find a valid nonce raises
+ * the flag and the remaining workers are cancelled.
+ *
+ * With a single thread, mining just happens on the calling thread.
+ *
+ * The engine runs in one of two modes. In Mode.REAL, the only cost of
+ * mining a block is the hashing itself and block times are measured on the
+ * wall clock. In Mode.SIMULATED, the hashing is still done (otherwise the
+ * blocks wouldn't validate), but every attempt is also charged a fixed cost
+ * on a VirtualClock. That lets tests and capacity experiments run at full
+ * speed while still reporting the block times that a network mining at
+ * that difficulty would see.
+ */
+public class MiningEngine {
+    public static enum Mode {
+        REAL,
+        SIMULATED
+    }
+
+    /**
+     * VirtualClock
+     *
+     * A clock that only moves when somebody tells it to. In simulated
+     * mode, the engine advances it by the modelled cost of each block.
+     */
+    public static class VirtualClock {
+        private AtomicLong nowMs = new AtomicLong(0);
+
+        public long now() {
+            return nowMs.get();
+        }
+
+        public long advance(long ms) {
+            return nowMs.addAndGet(ms);
+        }
+    }
+
+    /**
+     * Result
+     *
+     * What happened when we mined a block: the nonce that was found,
+     * how many nonces we tried across all the workers and how long it took
+     * (in milliseconds of virtual time in simulated mode).
+     */
+    public static class Result {
+        public int nonce;
+        public long attempts;
+        public long elapsedMs;
+
+        public Result(int nonce, long attempts, long elapsedMs) {
+            this.nonce = nonce;
+            this.attempts = attempts;
+            this.elapsedMs = elapsedMs;
+        }
+    }
+
+    private int nThreads;
+    private Mode mode;
+    private VirtualClock clock;
+    private ExecutorService pool;
+
+    public MiningEngine(int nThreads) {
+        this(nThreads, Mode.REAL);
+    }
+
+    public MiningEngine(int nThreads, Mode mode) {
+        if (nThreads < 1) {
+            throw new IllegalArgumentException("A MiningEngine needs at least one thread, got " +
+                                               nThreads);
+        }
+
+        this.nThreads = nThreads;
+        this.mode = mode;
+        this.clock = new VirtualClock();
+        this.pool = nThreads > 1 ? Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                /* Mining threads should never keep the process alive on
+                 * their own */
+                Thread thread = new Thread(runnable, "mining-worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }) : null;
+    }
+
+    public int threads() {
+        return this.nThreads;
+    }
+
+    public Mode mode() {
+        return this.mode;
+    }
+
+    /* The clock that simulated block times are charged to. It never moves
+     * in Mode.REAL */
+    public VirtualClock clock() {
+        return this.clock;
+    }
+
+    /* The modelled cost of a single attempt in simulated mode. Every extra
+     * bit of difficulty halves the chance of an attempt succeeding, so we
+     * double the cost of each attempt to keep the expected block time
+     * growing as it would on a network of fixed hash power. */
+    public static long simulatedAttemptCostMs(long problemDifficulty) {
+        return 1L << problemDifficulty;
+    }
+
+    public int mineNonce(byte[] payload,
+                         byte[] parentHash,
+                         long problemDifficulty) throws NoSuchAlgorithmException,
+                                                        Block.MiningException {
+        return mine(payload, parentHash, problemDifficulty).nonce;
+    }
+
+    public Result mine(byte[] payload,
+                       byte[] parentHash,
+                       long problemDifficulty) throws NoSuchAlgorithmException,
+                                                      Block.MiningException {
+        long startTime = System.currentTimeMillis();
+        AtomicLong attempts = new AtomicLong(0);
+        int nonce = search(new BlockView(payload).merkleRoot(), parentHash, problemDifficulty, attempts);
+
+        long elapsedMs;
+        if (mode == Mode.SIMULATED) {
+            /* The workers run side by side, so the block takes as long as
+             * the busiest worker's share of the attempts */
+            long attemptsPerWorker = (attempts.get() + nThreads - 1) / nThreads;
+            elapsedMs = attemptsPerWorker * simulatedAttemptCostMs(problemDifficulty);
+            clock.advance(elapsedMs);
+        } else {
+            elapsedMs = System.currentTimeMillis() - startTime;
+        }
+
+        return new Result(nonce, attempts.get(), elapsedMs);
+    }
+
+    private int search(final byte[] merkleRoot,
+                       final byte[] parentHash,
+                       final long problemDifficulty,
+                       final AtomicLong attempts) throws NoSuchAlgorithmException,
+                                                         Block.MiningException {
+        if (pool == null) {
+            int nonce = Block.scanNonces(merkleRoot, parentHash, problemDifficulty, 0, 1, null, attempts);
+            if (nonce < 0) {
+                throw new Block.MiningException();
+            }
+
+            return nonce;
+        }
+
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        CompletionService<Integer> completion = new ExecutorCompletionService<Integer>(pool);
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>(nThreads);
+
+        for (int i = 0; i < nThreads; ++i) {
+            final int firstNonce = i;
+            futures.add(completion.submit(new Callable<Integer>() {
+                public Integer call() {
+                    int nonce = Block.scanNonces(merkleRoot,
+                                                 parentHash,
+                                                 problemDifficulty,
+                                                 firstNonce,
+                                                 nThreads,
+                                                 stop,
+                                                 attempts);
+                    if (nonce >= 0) {
+                        /* Tell everyone else to give up */
+                        stop.set(true);
+                    }
+
+                    return nonce;
+                }
+            }));
+        }
+
+        /* Wait for every worker to stop, not just the winner, so that the
+         * attempt count is complete and the pool is idle for the next block */
+        int found = -1;
+        try {
+            for (int i = 0; i < nThreads; ++i) {
+                int nonce = completion.take().get();
+                if (nonce >= 0 && found < 0) {
+                    found = nonce;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stop.set(true);
+            for (Future<Integer> future : futures) {
+                future.cancel(true);
+            }
+        } catch (ExecutionException e) {
+            stop.set(true);
+            throw new RuntimeException(e.getCause());
+        }
+
+        if (found < 0) {
+            /* Every worker exhausted its share of the nonce space */
+            throw new Block.MiningException();
+        }
+
+        return found;
+    }
+
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * The MiningHasher computes SHA-256(parentHash | merkleRoot | nonce), which
+ * is the hash of a BlockHeader, over and over again with different nonces.
+ * That is all that mining really does.
+ *
+ * Since the parent hash and Merkle root never change between attempts, we
+ * run SHA-256 over all the complete 64 byte chunks of that prefix once up
+ * front and remember the intermediate state (the "midstate"). For a header
+ * that is exactly one chunk. Each attempt then only needs to restore the
+ * midstate and compress the last chunk, which holds the nonce and the
+ * SHA-256 padding. All buffers are allocated once per MiningHasher, so
+ * trying a nonce does not create any garbage.
+ *
+ * The hasher works for a prefix of any length, so it doesn't care what
+ * actually comes before the nonce.
+ *
+ * A MiningHasher is not thread safe. Each mining worker should have its own.
+ */
+public class MiningHasher {
+    private static final int[] K = {
+        0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+        0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+        0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+        0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+        0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+        0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+        0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+        0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    private static final int[] IV = {
+        0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    private static final int nBytesChunk = 64;
+
+    private final int[] midstate = new int[8];
+    private final int[] state = new int[8];
+    private final int[] schedule = new int[64];
+    private final byte[] digest = new byte[32];
+
+    /* The trailing chunks of the message: whatever is left of the prefix,
+     * then the nonce, then the padding and message length. Only the nonce
+     * bytes change between attempts */
+    private final byte[] tail;
+    private final int nonceOffset;
+
+    public MiningHasher(byte[] parentHash, byte[] merkleRoot) {
+        parentHash = parentHash != null ? parentHash : new byte[0];
+        byte[] prefix = Globals.concatByteArrays(new byte[][] {
+            parentHash,
+            merkleRoot
+        });
+
+        System.arraycopy(IV, 0, midstate, 0, IV.length);
+
+        int fullChunks = prefix.length / nBytesChunk;
+        for (int i = 0; i < fullChunks; ++i) {
+            compress(midstate, prefix, i * nBytesChunk);
+        }
+
+        int remaining = prefix.length - fullChunks * nBytesChunk;
+        long messageBits = (prefix.length + (long) Globals.nBytesNonce) * 8;
+
+        /* We need room for the rest of the prefix, the nonce, the 0x80
+         * terminator and the 8 byte length */
+        int tailLength = remaining + Globals.nBytesNonce + 1 + 8 <= nBytesChunk ?
+                         nBytesChunk : nBytesChunk * 2;
+        this.tail = new byte[tailLength];
+        this.nonceOffset = remaining;
+
+        System.arraycopy(prefix, fullChunks * nBytesChunk, tail, 0, remaining);
+        tail[remaining + Globals.nBytesNonce] = (byte) 0x80;
+        for (int i = 0; i < 8; ++i) {
+            tail[tailLength - 1 - i] = (byte) (messageBits >>> (8 * i));
+        }
+    }
+
+    /* Compute the hash of the block contents with the given nonce. The
+     * returned array is owned by the MiningHasher and gets overwritten on
+     * the next call, so copy it if you need to keep it around */
+    public byte[] hash(int nonce) {
+        tail[nonceOffset] = (byte) (nonce >>> 24);
+        tail[nonceOffset + 1] = (byte) (nonce >>> 16);
+        tail[nonceOffset + 2] = (byte) (nonce >>> 8);
+        tail[nonceOffset + 3] = (byte) nonce;
+
+        System.arraycopy(midstate, 0, state, 0, state.length);
+        for (int offset = 0; offset < tail.length; offset += nBytesChunk) {
+            compress(state, tail, offset);
+        }
+
+        for (int i = 0; i < state.length; ++i) {
+            digest[i * 4] = (byte) (state[i] >>> 24);
+            digest[i * 4 + 1] = (byte) (state[i] >>> 16);
+            digest[i * 4 + 2] = (byte) (state[i] >>> 8);
+            digest[i * 4 + 3] = (byte) state[i];
+        }
+
+        return digest;
+    }
+
+    /* The SHA-256 compression function, as described in FIPS 180-4 */
+    private void compress(int[] h, byte[] chunk, int offset) {
+        int[] w = schedule;
+        for (int t = 0; t < 16; ++t) {
+            int i = offset + t * 4;
+            w[t] = ((chunk[i] & 0xff) << 24) |
+                   ((chunk[i + 1] & 0xff) << 16) |
+                   ((chunk[i + 2] & 0xff) << 8) |
+                   (chunk[i + 3] & 0xff);
+        }
+
+        for (int t = 16; t < 64; ++t) {
+            int s0 = Integer.rotateRight(w[t - 15], 7) ^
+                     Integer.rotateRight(w[t - 15], 18) ^
+                     (w[t - 15] >>> 3);
+            int s1 = Integer.rotateRight(w[t - 2], 17) ^
+                     Integer.rotateRight(w[t - 2], 19) ^
+                     (w[t - 2] >>> 10);
+            w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+        }
+
+        int a = h[0], b = h[1], c = h[2], d = h[3];
+        int e = h[4], f = h[5], g = h[6], k = h[7];
+
+        for (int t = 0; t < 64; ++t) {
+            int sigma1 = Integer.rotateRight(e, 6) ^
+                         Integer.rotateRight(e, 11) ^
+                         Integer.rotateRight(e, 25);
+            int choice = (e & f) ^ (~e & g);
+            int t1 = k + sigma1 + choice + K[t] + w[t];
+            int sigma0 = Integer.rotateRight(a, 2) ^
+                         Integer.rotateRight(a, 13) ^
+                         Integer.rotateRight(a, 22);
+            int majority = (a & b) ^ (a & c) ^ (b & c);
+            int t2 = sigma0 + majority;
+
+            k = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+
+        h[0] += a;
+        h[1] += b;
+        h[2] += c;
+        h[3] += d;
+        h[4] += e;
+        h[5] += f;
+        h[6] += g;
+        h[7] += k;
+    }
+}
@@ -0,0 +1,265 @@
+import java.util.Locale;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * MiningMetrics keeps count of what a BlockMiner has been doing: how many
+ * nonces it has tried, how fast, how long blocks and payloads take and how
+ * long validators hold things up. Everything is a counter or a histogram
+ * with fixed buckets, so recording something is only ever a few atomic
+ * increments on the mining and validator threads. Totals are only added up
+ * when somebody asks for them, see write.
+ *
+ * Block times are whatever MiningEngine.Result says they are, so in
+ * MiningEngine.Mode.SIMULATED they are simulated too. The time payloads
+ * spend waiting and being validated is always on the wall clock.
+ */
+public class MiningMetrics {
+    private static final long nanosPerSecond = 1000000000L;
+    private static final long msPerSecond = 1000L;
+
+    /**
+     * Histogram
+     *
+     * Counts observations into buckets with fixed upper bounds, plus one
+     * for everything above the last bound. Observations and bounds are
+     * longs in whatever unit is convenient to record in. They are divided
+     * by scale when written out, so that times recorded in nanoseconds can
+     * be reported in seconds.
+     */
+    public static class Histogram {
+        private final long[] bounds;
+        private final long scale;
+        private final AtomicLongArray buckets;
+        private final AtomicLong sum = new AtomicLong(0);
+
+        public Histogram(long[] bounds, long scale) {
+            this.bounds = bounds.clone();
+            this.scale = scale;
+            this.buckets = new AtomicLongArray(bounds.length + 1);
+        }
+
+        public void observe(long value) {
+            int lo = 0;
+            int hi = bounds.length;
+
+            /* The first bucket whose bound is at least value */
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (bounds[mid] < value) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+
+            buckets.incrementAndGet(lo);
+            sum.addAndGet(value);
+        }
+
+        public long count() {
+            long count = 0;
+            for (int i = 0; i < buckets.length(); ++i) {
+                count += buckets.get(i);
+            }
+
+            return count;
+        }
+
+        public long sum() {
+            return sum.get();
+        }
+
+        /* Write the histogram in the Prometheus text format, with
+         * cumulative buckets */
+        void write(StringBuilder out, String name, String help) {
+            header(out, name, help, "histogram");
+
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; ++i) {
+                cumulative += buckets.get(i);
+                out.append(name).append("_bucket{le=\"")
+                   .append(format(bounds[i], scale)).append("\"} ")
+                   .append(cumulative).append('\n');
+            }
+
+            cumulative += buckets.get(bounds.length);
+            out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+            out.append(name).append("_sum ").append(format(sum.get(), scale)).append('\n');
+            out.append(name).append("_count ").append(cumulative).append('\n');
+        }
+    }
+
+    /* Bounds that grow by factor each time, starting at first */
+    static long[] exponentialBounds(long first, long factor, int count) {
+        long[] bounds = new long[count];
+        long bound = first;
+        for (int i = 0; i < count; ++i) {
+            bounds[i] = bound;
+            bound *= factor;
+        }
+
+        return bounds;
+    }
+
+    /* 1ms up to about 65 seconds */
+    private static long[] secondsBounds(long unitsPerMs) {
+        return exponentialBounds(unitsPerMs, 2, 17);
+    }
+
+    private final AtomicLong attempts = new AtomicLong(0);
+    private final AtomicLong blocks = new AtomicLong(0);
+    private final AtomicLong payloads = new AtomicLong(0);
+    private final AtomicLong failures = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+    private final AtomicLong miningMs = new AtomicLong(0);
+    private final AtomicLong lastAttempts = new AtomicLong(0);
+    private final AtomicLong lastElapsedMs = new AtomicLong(0);
+
+    /* Nonces tried for each block, 1 up to about 4 billion */
+    private final Histogram attemptsPerBlock = new Histogram(exponentialBounds(1, 4, 17), 1);
+    private final Histogram blockTime = new Histogram(secondsBounds(1), msPerSecond);
+    private final Histogram payloadLatency = new Histogram(secondsBounds(1000000), nanosPerSecond);
+    private final Histogram validationTime = new Histogram(exponentialBounds(1000, 4, 12), nanosPerSecond);
+
+    /* A block was mined with result and put on the chain */
+    public void blockMined(MiningEngine.Result result, int payloadCount) {
+        attempts.addAndGet(result.attempts);
+        blocks.incrementAndGet();
+        payloads.addAndGet(payloadCount);
+        miningMs.addAndGet(result.elapsedMs);
+        lastAttempts.set(result.attempts);
+        lastElapsedMs.set(result.elapsedMs);
+        attemptsPerBlock.observe(result.attempts);
+        blockTime.observe(result.elapsedMs);
+    }
+
+    /* A payload that was handed to the miner waitedNanos ago is on the
+     * chain */
+    public void payloadMined(long waitedNanos) {
+        payloadLatency.observe(waitedNanos);
+    }
+
+    /* A validator took nanos to look at a payload, and either accepted it
+     * or not */
+    public void payloadValidated(long nanos, boolean accepted) {
+        validationTime.observe(nanos);
+        if (!accepted) {
+            rejected.incrementAndGet();
+        }
+    }
+
+    /* No block could be mined or stored for a batch of payloads */
+    public void miningFailed() {
+        failures.incrementAndGet();
+    }
+
+    public long attempts() {
+        return attempts.get();
+    }
+
+    public long blocks() {
+        return blocks.get();
+    }
+
+    public long failures() {
+        return failures.get();
+    }
+
+    public Histogram attemptsPerBlock() {
+        return attemptsPerBlock;
+    }
+
+    public Histogram payloadLatency() {
+        return payloadLatency;
+    }
+
+    public Histogram validationTime() {
+        return validationTime;
+    }
+
+    /* How many nonces a second the last block was mined at, across every
+     * mining thread. Zero until a block has taken long enough to tell */
+    public double hashRate() {
+        long elapsedMs = lastElapsedMs.get();
+        if (elapsedMs == 0) {
+            return 0;
+        }
+
+        return lastAttempts.get() * (double) msPerSecond / elapsedMs;
+    }
+
+    /* Write everything in the Prometheus text format. The mempool's stats
+     * are passed in, since how many payloads are waiting is only known
+     * there */
+    public void write(StringBuilder out, Mempool.Stats mempool) {
+        counter(out, "chain_mining_attempts_total",
+                "Nonces tried across all mining threads.", attempts.get());
+        counter(out, "chain_mining_seconds_total",
+                "Time spent searching for nonces.", format(miningMs.get(), msPerSecond));
+        gauge(out, "chain_mining_hashes_per_second",
+              "Nonces tried per second while mining the last block.", format(hashRate()));
+        counter(out, "chain_mining_blocks_total",
+                "Blocks mined and appended to the chain.", blocks.get());
+        counter(out, "chain_mining_payloads_total",
+                "Payloads mined into blocks.", payloads.get());
+        counter(out, "chain_mining_payloads_rejected_total",
+                "Payloads turned down by their validators.", rejected.get());
+        counter(out, "chain_mining_failures_total",
+                "Batches of payloads that no block could be mined or stored for.", failures.get());
+        attemptsPerBlock.write(out, "chain_mining_attempts_per_block",
+                               "Nonces tried to mine each block.");
+        blockTime.write(out, "chain_mining_block_seconds",
+                        "Time spent searching for each block's nonce.");
+        payloadLatency.write(out, "chain_mining_payload_latency_seconds",
+                             "Time from a payload being handed to the miner to it being on the chain.");
+        validationTime.write(out, "chain_mining_validation_seconds",
+                             "Time validators spent on each payload.");
+        gauge(out, "chain_mempool_payloads",
+              "Payloads waiting to be mined.", Long.toString(mempool.size));
+        gauge(out, "chain_mempool_bytes",
+              "Bytes held by payloads waiting to be mined.", Long.toString(mempool.bytes));
+        gauge(out, "chain_mempool_oldest_age_seconds",
+              "How long the oldest waiting payload has been waiting.",
+              format(mempool.oldestAgeMs, msPerSecond));
+        counter(out, "chain_mempool_duplicates_dropped_total",
+                "Payloads dropped because they were already waiting.", mempool.duplicatesDropped);
+        counter(out, "chain_mempool_evicted_total",
+                "Payloads pushed out of the mempool to make room.", mempool.evicted);
+    }
+
+    static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    static void counter(StringBuilder out, String name, String help, long value) {
+        counter(out, name, help, Long.toString(value));
+    }
+
+    static void counter(StringBuilder out, String name, String help, String value) {
+        header(out, name, help, "counter");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    static void gauge(StringBuilder out, String name, String help, String value) {
+        header(out, name, help, "gauge");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    /* value / scale, without trailing zeros or an exponent */
+    static String format(long value, long scale) {
+        if (value % scale == 0) {
+            return Long.toString(value / scale);
+        }
+
+        return format(value / (double) scale);
+    }
+
+    static String format(double value) {
+        String formatted = String.format(Locale.ROOT, "%.9f", value);
+        formatted = formatted.replaceAll("0+$", "");
+        return formatted.endsWith(".") ? formatted.substring(0, formatted.length() - 1) : formatted;
+    }
+}
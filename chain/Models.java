@@ -1,3 +1,9 @@
+import java.security.NoSuchAlgorithmException;
+
+import java.util.List;
+
+import javax.xml.bind.DatatypeConverter;
+
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
@@ -35,4 +41,112 @@ public class Models {
             return gson.toJson(this).toString();
         }
     }
-}
\ No newline at end of file
+
+    /* Proof that a transaction is in the block at height, see
+     * MerkleTree.Proof. Hashes and the transaction are hex encoded */
+    public static class InclusionProof {
+        public int height;
+        public int position;
+        public String transaction;
+        public String[] siblings;
+        public boolean[] siblingOnLeft;
+
+        public InclusionProof(int height,
+                              int position,
+                              byte[] transaction,
+                              MerkleTree.Proof proof) {
+            this.height = height;
+            this.position = position;
+            this.transaction = DatatypeConverter.printHexBinary(transaction);
+            this.siblings = new String[proof.siblings.length];
+            for (int i = 0; i < proof.siblings.length; ++i) {
+                this.siblings[i] = DatatypeConverter.printHexBinary(proof.siblings[i]);
+            }
+            this.siblingOnLeft = proof.siblingOnLeft.clone();
+        }
+
+        /* The serialised SignedObject this proof is for */
+        public byte[] transactionBytes() {
+            return DatatypeConverter.parseHexBinary(transaction);
+        }
+
+        /* The Merkle proof, with the leaf hash worked out from the
+         * transaction rather than taken on trust */
+        public MerkleTree.Proof proof() throws NoSuchAlgorithmException {
+            byte[] bytes = transactionBytes();
+            byte[][] hashes = new byte[siblings.length][];
+            for (int i = 0; i < siblings.length; ++i) {
+                hashes[i] = DatatypeConverter.parseHexBinary(siblings[i]);
+            }
+
+            return new MerkleTree.Proof(MerkleTree.leafHash(bytes, 0, bytes.length),
+                                        hashes,
+                                        siblingOnLeft);
+        }
+
+        public static InclusionProof deserialise(String json) {
+            GsonBuilder builder = new GsonBuilder();
+            Gson gson = builder.create();
+            return gson.fromJson(json, InclusionProof.class);
+        }
+
+        public String serialise() {
+            GsonBuilder builder = new GsonBuilder();
+            Gson gson = builder.create();
+            return gson.toJson(this).toString();
+        }
+    }
+
+    /* Where a submitted transaction has got to. The id is the hex encoded
+     * SignedObjectView.digest of the transaction. Once it is MINED, height
+     * and blockHash say which block it went into. If it was REJECTED,
+     * rejection is one of BlockMiner.PayloadRejectedException.Reason and
+     * reason is whatever the validator had to say about it */
+    public static class TransactionStatus {
+        public static final String PENDING = "PENDING";
+        public static final String MINED = "MINED";
+        public static final String REJECTED = "REJECTED";
+
+        public String id;
+        public String status;
+        public int height;
+        public String blockHash;
+        public String rejection;
+        public String reason;
+
+        public TransactionStatus(String id, String status) {
+            this.id = id;
+            this.status = status;
+            this.height = -1;
+        }
+
+        public boolean isPending() {
+            return PENDING.equals(status);
+        }
+
+        public static TransactionStatus deserialise(String json) {
+            GsonBuilder builder = new GsonBuilder();
+            Gson gson = builder.create();
+            return gson.fromJson(json, TransactionStatus.class);
+        }
+
+        public String serialise() {
+            GsonBuilder builder = new GsonBuilder();
+            Gson gson = builder.create();
+            return gson.toJson(this).toString();
+        }
+
+        /* The answer to a batch of transactions, see TransactionBatch */
+        public static TransactionStatus[] deserialiseAll(String json) {
+            GsonBuilder builder = new GsonBuilder();
+            Gson gson = builder.create();
+            return gson.fromJson(json, TransactionStatus[].class);
+        }
+
+        public static String serialiseAll(List<TransactionStatus> statuses) {
+            GsonBuilder builder = new GsonBuilder();
+            Gson gson = builder.create();
+            return gson.toJson(statuses.toArray(new TransactionStatus[statuses.size()]));
+        }
+    }
+}
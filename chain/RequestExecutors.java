@@ -0,0 +1,288 @@
+import java.io.IOException;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * RequestExecutors runs the server's request handlers off the HttpServer's
+ * dispatcher thread, with a separate pool for each EndpointClass. That way
+ * a handful of clients downloading the whole chain can't hold up somebody
+ * posting a transaction.
+ *
+ * Each pool runs up to threads handlers at once and holds up to
+ * queueLength more that are waiting for a thread. Requests that don't fit
+ * are turned away with a 503 straight away rather than piling up.
+ *
+ * In Mode.VIRTUAL, every request gets a virtual thread of its own, so
+ * there is no queue as such, but each pool still only takes on as many
+ * requests at once as it would in Mode.PLATFORM. Virtual threads need a
+ * JVM that has them. On older JVMs we fall back to Mode.PLATFORM.
+ */
+public class RequestExecutors {
+    public static enum Mode {
+        PLATFORM,
+        VIRTUAL
+    }
+
+    /* Which pool a request is handled on */
+    public static enum EndpointClass {
+        /* Posting transactions, which should always be quick */
+        SUBMIT,
+        /* Small lookups, like the status of a transaction */
+        QUERY,
+        /* Anything that sends a lot of blocks */
+        BULK
+    }
+
+    /**
+     * Stats
+     *
+     * A snapshot of one pool. queueDepth is how many requests are waiting
+     * for a thread and active is how many are being handled right now.
+     */
+    public static class Stats {
+        public String mode;
+        public int threads;
+        public int queueLength;
+        public int queueDepth;
+        public int active;
+        public long completed;
+        public long rejected;
+    }
+
+    private static class Pool {
+        final ExecutorService executor;
+        final int threads;
+        final int queueLength;
+        final AtomicInteger queued = new AtomicInteger(0);
+        final AtomicInteger active = new AtomicInteger(0);
+        final AtomicLong completed = new AtomicLong(0);
+        final AtomicLong rejected = new AtomicLong(0);
+
+        Pool(ExecutorService executor, int threads, int queueLength) {
+            this.executor = executor;
+            this.threads = threads;
+            this.queueLength = queueLength;
+        }
+    }
+
+    private final Mode mode;
+    private final Map<EndpointClass, Pool> pools;
+
+    /* Pools with threads threads each, except for EndpointClass.BULK,
+     * which gets bulkThreads */
+    public RequestExecutors(Mode mode, int threads, int bulkThreads, int queueLength) {
+        if (threads < 1 || bulkThreads < 1 || queueLength < 0) {
+            throw new IllegalArgumentException("Request pools need at least one thread and a " +
+                                               "queue length that isn't negative");
+        }
+
+        if (mode == Mode.VIRTUAL && !virtualThreadsAvailable()) {
+            System.err.println("[chain] Virtual threads are not available on this JVM, " +
+                               "handling requests on platform threads");
+            mode = Mode.PLATFORM;
+        }
+
+        this.mode = mode;
+        this.pools = new EnumMap<EndpointClass, Pool>(EndpointClass.class);
+        for (EndpointClass endpointClass : EndpointClass.values()) {
+            int poolThreads = endpointClass == EndpointClass.BULK ? bulkThreads : threads;
+            String name = "request-" + endpointClass.name().toLowerCase(Locale.ROOT);
+
+            pools.put(endpointClass,
+                      new Pool(mode == Mode.VIRTUAL ?
+                               newVirtualThreadPerTaskExecutor() :
+                               newPlatformPool(name, poolThreads, queueLength),
+                               poolThreads,
+                               queueLength));
+        }
+    }
+
+    private static ExecutorService newPlatformPool(final String name, int threads, int queueLength) {
+        ThreadFactory factory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+
+        /* A queue of length zero means handing requests straight to a
+         * thread or not at all */
+        return new ThreadPoolExecutor(threads,
+                                      threads,
+                                      60,
+                                      TimeUnit.SECONDS,
+                                      queueLength > 0 ?
+                                      new ArrayBlockingQueue<Runnable>(queueLength) :
+                                      new SynchronousQueue<Runnable>(),
+                                      factory);
+    }
+
+    /* Executors.newVirtualThreadPerTaskExecutor, if this JVM has it. We
+     * build against an older JDK, so it has to be looked up at runtime */
+    private static Method virtualThreadPerTaskExecutor() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    public static boolean virtualThreadsAvailable() {
+        Method method = virtualThreadPerTaskExecutor();
+        if (method == null) {
+            return false;
+        }
+
+        /* Virtual threads were a preview feature before they were final,
+         * in which case the method is there but throws */
+        try {
+            ((ExecutorService) method.invoke(null)).shutdown();
+            return true;
+        } catch (IllegalAccessException e) {
+            return false;
+        } catch (InvocationTargetException e) {
+            return false;
+        }
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) virtualThreadPerTaskExecutor().invoke(null);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e.getMessage());
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause().getMessage());
+        }
+    }
+
+    public Mode mode() {
+        return mode;
+    }
+
+    /**
+     * submit
+     *
+     * Run task on the pool for endpointClass. Returns false if the pool
+     * is already as busy as it is allowed to get, in which case task is
+     * never run.
+     */
+    public boolean submit(EndpointClass endpointClass, final Runnable task) {
+        final Pool pool = pools.get(endpointClass);
+
+        /* Platform pools enforce their own limits, but nothing stops a
+         * virtual thread executor from taking on every request */
+        if (mode == Mode.VIRTUAL &&
+            pool.queued.get() + pool.active.get() >= pool.threads + pool.queueLength) {
+            pool.rejected.incrementAndGet();
+            return false;
+        }
+
+        pool.queued.incrementAndGet();
+        try {
+            pool.executor.execute(new Runnable() {
+                public void run() {
+                    pool.queued.decrementAndGet();
+                    pool.active.incrementAndGet();
+                    try {
+                        task.run();
+                    } finally {
+                        pool.active.decrementAndGet();
+                        pool.completed.incrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pool.queued.decrementAndGet();
+            pool.rejected.incrementAndGet();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * wrap
+     *
+     * An HttpHandler that hands each request to handler on the pool for
+     * endpointClass, or answers 503 if that pool is too busy. The
+     * dispatcher thread only ever does the hand off.
+     */
+    public HttpHandler wrap(final EndpointClass endpointClass, final HttpHandler handler) {
+        return new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                boolean accepted = submit(endpointClass, new Runnable() {
+                    public void run() {
+                        try {
+                            handler.handle(exchange);
+                        } catch (IOException e) {
+                            /* Most likely the client went away */
+                            exchange.close();
+                        } catch (RuntimeException e) {
+                            System.err.println("[chain] Failed to handle " + exchange.getRequestURI() +
+                                               ": " + e);
+                            exchange.close();
+                        }
+                    }
+                });
+
+                if (!accepted) {
+                    ChainMain.sendTextResponse(exchange, 503, "Too busy, try again later");
+                }
+            }
+        };
+    }
+
+    public Stats stats(EndpointClass endpointClass) {
+        Pool pool = pools.get(endpointClass);
+        Stats stats = new Stats();
+
+        stats.mode = mode.name();
+        stats.threads = pool.threads;
+        stats.queueLength = pool.queueLength;
+        stats.queueDepth = pool.queued.get();
+        stats.active = pool.active.get();
+        stats.completed = pool.completed.get();
+        stats.rejected = pool.rejected.get();
+        return stats;
+    }
+
+    /* Stats for every pool, by the lower case name of its EndpointClass */
+    public Map<String, Stats> stats() {
+        Map<String, Stats> stats = new LinkedHashMap<String, Stats>();
+        for (EndpointClass endpointClass : EndpointClass.values()) {
+            stats.put(endpointClass.name().toLowerCase(Locale.ROOT), stats(endpointClass));
+        }
+
+        return stats;
+    }
+
+    public void shutdown() {
+        for (Pool pool : pools.values()) {
+            pool.executor.shutdown();
+        }
+    }
+}
@@ -1,4 +1,9 @@
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+
 import java.security.KeyFactory;
+import java.security.MessageDigest;
 import java.security.PublicKey;
 import java.security.PrivateKey;
 import java.security.Signature;
@@ -16,6 +21,25 @@ class SignedObject {
     public byte[] payload;
     public byte[] signature;
 
+    /* Parsing an X509 encoded public key is surprisingly expensive, and the
+     * same few wallets turn up over and over again, so we keep the parsed
+     * keys around, keyed by their encoded bytes */
+    private static final BoundedCache<ByteBuffer, PublicKey> publicKeys =
+        new BoundedCache<ByteBuffer, PublicKey>(4096);
+
+    /* Digests of (payload, signature, key) triples that we have already
+     * seen verify successfully. A chain that was checked on the way in
+     * doesn't need to pay for RSA again when a Ledger is rebuilt from it.
+     * Only successful verifications are remembered. */
+    private static final BoundedCache<ByteBuffer, Boolean> verifiedSignatures =
+        new BoundedCache<ByteBuffer, Boolean>(65536);
+
+    private static volatile boolean verificationCacheEnabled = true;
+
+    /* Signature objects are not thread safe, but can be reused for many
+     * verifications, so keep one per thread */
+    private static final ThreadLocal<Signature> verifiers = new ThreadLocal<Signature>();
+
     /* Construct a signed object from some payload and a signing key. The
      * signature is generated and written to on the spot */
     public SignedObject(byte[] payload,
@@ -62,11 +86,113 @@ class SignedObject {
                                                                                                        InvalidKeyException,
                                                                                                        InvalidKeySpecException,
                                                                                                        SignatureException {
-        Signature signature = Signature.getInstance("SHA1WithRSA");
-        PublicKey key = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(keyBytes));
-        signature.initVerify(key);
-        signature.update(data);
-        return signature.verify(signatureBytes);
+        return signatureIsValid(data, 0, data.length,
+                                signatureBytes, 0, signatureBytes.length,
+                                keyBytes, 0, keyBytes.length);
+    }
+
+    /* Same as above, but the data, signature and key are ranges of some
+     * larger arrays, so that callers don't need to copy them out first */
+    public static boolean signatureIsValid(byte[] data,
+                                           int dataOffset,
+                                           int dataLength,
+                                           byte[] signatureBytes,
+                                           int signatureOffset,
+                                           int signatureLength,
+                                           byte[] keyBytes,
+                                           int keyOffset,
+                                           int keyLength) throws NoSuchAlgorithmException,
+                                                                 InvalidKeyException,
+                                                                 InvalidKeySpecException,
+                                                                 SignatureException {
+        ByteBuffer verification = null;
+        if (verificationCacheEnabled) {
+            verification = ByteBuffer.wrap(verificationDigest(data, dataOffset, dataLength,
+                                                              signatureBytes, signatureOffset, signatureLength,
+                                                              keyBytes, keyOffset, keyLength));
+            if (verifiedSignatures.get(verification) != null) {
+                return true;
+            }
+        }
+
+        Signature signature = verifier();
+        signature.initVerify(publicKey(keyBytes, keyOffset, keyLength));
+        signature.update(data, dataOffset, dataLength);
+
+        boolean valid = signature.verify(signatureBytes, signatureOffset, signatureLength);
+        if (valid && verification != null) {
+            verifiedSignatures.put(verification, Boolean.TRUE);
+        }
+
+        return valid;
+    }
+
+    private static Signature verifier() throws NoSuchAlgorithmException {
+        Signature signature = verifiers.get();
+        if (signature == null) {
+            signature = Signature.getInstance("SHA1WithRSA");
+            verifiers.set(signature);
+        }
+
+        return signature;
+    }
+
+    private static PublicKey publicKey(byte[] keyBytes,
+                                       int keyOffset,
+                                       int keyLength) throws NoSuchAlgorithmException,
+                                                             InvalidKeySpecException {
+        /* ByteBuffer equality only looks at the remaining bytes, so we
+         * can look the key up without copying it out */
+        PublicKey key = publicKeys.get(ByteBuffer.wrap(keyBytes, keyOffset, keyLength));
+        if (key == null) {
+            /* Copy the key bytes, since the caller is free to modify them */
+            byte[] encoded = Arrays.copyOfRange(keyBytes, keyOffset, keyOffset + keyLength);
+            key = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(encoded));
+            publicKeys.put(ByteBuffer.wrap(encoded), key);
+        }
+
+        return key;
+    }
+
+    /* A digest that identifies a particular (payload, signature, key)
+     * triple. The lengths are included so that bytes can't be shuffled
+     * from one part to another without changing the digest */
+    private static byte[] verificationDigest(byte[] data,
+                                             int dataOffset,
+                                             int dataLength,
+                                             byte[] signatureBytes,
+                                             int signatureOffset,
+                                             int signatureLength,
+                                             byte[] keyBytes,
+                                             int keyOffset,
+                                             int keyLength) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance(Globals.hashAlg);
+        digest.update(ByteBuffer.allocate(12)
+                                .putInt(dataLength)
+                                .putInt(signatureLength)
+                                .putInt(keyLength)
+                                .array());
+        digest.update(data, dataOffset, dataLength);
+        digest.update(signatureBytes, signatureOffset, signatureLength);
+        digest.update(keyBytes, keyOffset, keyLength);
+        return digest.digest();
+    }
+
+    /* Turn caching of successful verifications on or off. When it is off,
+     * every call to signatureIsValid does the RSA verification */
+    public static void setVerificationCacheEnabled(boolean enabled) {
+        verificationCacheEnabled = enabled;
+        if (!enabled) {
+            verifiedSignatures.clear();
+        }
+    }
+
+    public static BoundedCache<ByteBuffer, PublicKey> publicKeyCache() {
+        return publicKeys;
+    }
+
+    public static BoundedCache<ByteBuffer, Boolean> verifiedSignatureCache() {
+        return verifiedSignatures;
     }
 
     public byte[] serialize() {
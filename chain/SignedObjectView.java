@@ -0,0 +1,117 @@
+import java.nio.ByteBuffer;
+
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.security.spec.InvalidKeySpecException;
+
+/**
+ * A SignedObjectView is a read-only window onto a serialised SignedObject,
+ * which is some payload followed by its signature. Like TransactionView,
+ * nothing is copied, the payload and signature are just ranges of the
+ * underlying buffer.
+ */
+public class SignedObjectView {
+    private final ByteBuffer buffer;
+    private final int offset;
+    private final int length;
+
+    public SignedObjectView(ByteBuffer buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public SignedObjectView(byte[] blob) {
+        this(ByteBuffer.wrap(blob), 0, blob.length);
+    }
+
+    public int payloadOffset() {
+        return offset;
+    }
+
+    public int payloadLength() {
+        return length - Globals.nBytesSig;
+    }
+
+    public int signatureOffset() {
+        return offset + payloadLength();
+    }
+
+    /* The signed payload, interpreted as a transaction */
+    public TransactionView transaction() {
+        return new TransactionView(buffer, offset);
+    }
+
+    /* The SHA-256 digest of the whole signed object, payload and signature,
+     * which identifies it */
+    public byte[] digest() throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance(Globals.hashAlg);
+        ByteBuffer source = buffer.duplicate();
+        source.limit(offset + length);
+        source.position(offset);
+        digest.update(source);
+        return digest.digest();
+    }
+
+    /* The hash of this object as a leaf of its block's MerkleTree */
+    public byte[] leafHash() throws NoSuchAlgorithmException {
+        if (buffer.hasArray()) {
+            return MerkleTree.leafHash(buffer.array(), buffer.arrayOffset() + offset, length);
+        }
+
+        return MerkleTree.leafHash(bytes(), 0, length);
+    }
+
+    /* A copy of the whole signed object, payload and signature */
+    public byte[] bytes() {
+        byte[] bytes = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.position(offset);
+        source.get(bytes);
+        return bytes;
+    }
+
+    /* A copy of the signature bytes */
+    public byte[] signature() {
+        byte[] signature = new byte[Globals.nBytesSig];
+        ByteBuffer source = buffer.duplicate();
+        source.position(signatureOffset());
+        source.get(signature);
+        return signature;
+    }
+
+    /* Check that the payload, which must be a transaction, was signed by
+     * the private key belonging to its sender. On heap buffers, this reads
+     * the payload, signature and sender key in place. */
+    public boolean signedBySender() throws NoSuchAlgorithmException,
+                                           InvalidKeyException,
+                                           InvalidKeySpecException,
+                                           SignatureException {
+        byte[] array;
+        int base;
+
+        if (buffer.hasArray()) {
+            array = buffer.array();
+            base = buffer.arrayOffset();
+        } else {
+            /* Off-heap buffers need copying out, but only this object */
+            array = new byte[length];
+            ByteBuffer source = buffer.duplicate();
+            source.position(offset);
+            source.get(array);
+            base = -offset;
+        }
+
+        return SignedObject.signatureIsValid(array,
+                                             base + payloadOffset(),
+                                             payloadLength(),
+                                             array,
+                                             base + signatureOffset(),
+                                             Globals.nBytesSig,
+                                             array,
+                                             base + payloadOffset() + Globals.nBytesSPubKeyOffset,
+                                             Globals.nBytesKeys);
+    }
+}
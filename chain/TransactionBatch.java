@@ -0,0 +1,128 @@
+import java.io.IOException;
+import java.io.Reader;
+
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.CompletableFuture;
+
+import javax.xml.bind.DatatypeConverter;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonReader;
+
+/**
+ * TransactionBatch handles a batch of transactions posted to
+ * /transactions all at once, as a JSON array of Models.Transaction.
+ *
+ * The array is read one transaction at a time as it comes off the wire,
+ * rather than read into one big string first, and everything that makes
+ * sense is handed to the miner in one go. Transactions that can't even be
+ * turned into a SignedObject, say because a key isn't valid hex, are
+ * rejected straight away without holding up the rest of the batch.
+ */
+public class TransactionBatch {
+    private static final Gson gson = new GsonBuilder().create();
+
+    public static class TooLargeException extends Exception {
+        public TooLargeException(int maxTransactions) {
+            super("A batch can have at most " + maxTransactions + " transactions in it");
+        }
+    }
+
+    /**
+     * read
+     *
+     * Read a JSON array of transactions from reader. Throws
+     * TooLargeException as soon as there are more than maxTransactions of
+     * them, without reading the rest. Malformed JSON throws an IOException
+     * or a com.google.gson.JsonParseException.
+     */
+    public static List<Models.Transaction> read(Reader reader,
+                                                int maxTransactions) throws IOException,
+                                                                            TooLargeException {
+        List<Models.Transaction> transactions = new ArrayList<Models.Transaction>();
+        JsonReader json = new JsonReader(reader);
+
+        json.beginArray();
+        while (json.hasNext()) {
+            if (transactions.size() == maxTransactions) {
+                throw new TooLargeException(maxTransactions);
+            }
+
+            transactions.add(gson.<Models.Transaction>fromJson(json, Models.Transaction.class));
+        }
+        json.endArray();
+
+        return transactions;
+    }
+
+    /* The SignedObject a transaction record stands for. Throws
+     * IllegalArgumentException if the record is missing something or has
+     * something that isn't hex, or isn't the right length, where it
+     * should be */
+    static SignedObject signedObject(Models.Transaction record) throws NoSuchAlgorithmException {
+        if (record == null || record.src == null || record.dst == null || record.signature == null) {
+            throw new IllegalArgumentException("Transactions need a src, dst and signature");
+        }
+
+        byte[] src = DatatypeConverter.parseHexBinary(record.src);
+        byte[] dst = DatatypeConverter.parseHexBinary(record.dst);
+        byte[] signature = DatatypeConverter.parseHexBinary(record.signature);
+        if (src.length != Globals.nBytesKeys ||
+            dst.length != Globals.nBytesKeys ||
+            signature.length != Globals.nBytesSig) {
+            throw new IllegalArgumentException("Keys must be " + Globals.nBytesKeys + " bytes and " +
+                                               "signatures " + Globals.nBytesSig + " bytes");
+        }
+
+        return new SignedObject(new Transaction(src, dst, record.amount).serialize(), signature);
+    }
+
+    /**
+     * submit
+     *
+     * Append every transaction that makes sense to ledger at once, and
+     * start tracking them with tracker. Returns the status of each
+     * transaction, in the same order as records. The ones that were
+     * turned away straight away are already REJECTED and have no id.
+     */
+    public static List<Models.TransactionStatus> submit(List<Models.Transaction> records,
+                                                        AsynchronouslyMutableLedger ledger,
+                                                        TransactionTracker tracker) throws NoSuchAlgorithmException {
+        Models.TransactionStatus[] statuses = new Models.TransactionStatus[records.size()];
+        List<SignedObject> blobs = new ArrayList<SignedObject>(records.size());
+        List<Integer> positions = new ArrayList<Integer>(records.size());
+
+        for (int i = 0; i < records.size(); ++i) {
+            try {
+                blobs.add(signedObject(records.get(i)));
+                positions.add(i);
+            } catch (IllegalArgumentException e) {
+                AsynchronouslyMutableLedger.logTransactionRejectionFailure(e.getMessage());
+                statuses[i] = TransactionTracker.statusOf(
+                    null,
+                    null,
+                    new BlockMiner.PayloadRejectedException(BlockMiner.PayloadRejectedException.Reason.INVALID,
+                                                            e.getMessage())
+                );
+            }
+        }
+
+        List<CompletableFuture<BlockMiner.MinedPayload>> completions = ledger.appendSignedTransactions(blobs);
+        for (int i = 0; i < blobs.size(); ++i) {
+            statuses[positions.get(i)] = tracker.track(TransactionTracker.transactionId(blobs.get(i).serialize()),
+                                                       completions.get(i));
+        }
+
+        List<Models.TransactionStatus> result = new ArrayList<Models.TransactionStatus>(statuses.length);
+        for (Models.TransactionStatus status : statuses) {
+            result.add(status);
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,70 @@
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * TransactionIndex finds which block a transaction is in by its
+ * SignedObjectView.digest, without hashing every transaction on the chain
+ * each time somebody asks.
+ *
+ * The index catches up with the chain whenever it is looked at, so each
+ * block only ever gets indexed once, however it got onto the chain. The
+ * chain can only grow, so nothing indexed goes out of date. If the same
+ * transaction is in more than one block, the newest one wins.
+ *
+ * A TransactionIndex is thread safe.
+ */
+public class TransactionIndex {
+    /**
+     * Location
+     *
+     * Where a transaction is: the height of its block and its position
+     * among the transactions in that block.
+     */
+    public static class Location {
+        public final int height;
+        public final int position;
+
+        public Location(int height, int position) {
+            this.height = height;
+            this.position = position;
+        }
+    }
+
+    private final Blockchain chain;
+    private final Map<ByteBuffer, Location> locations = new HashMap<ByteBuffer, Location>();
+    private int indexedHeight;
+
+    public TransactionIndex(Blockchain chain) {
+        this.chain = chain;
+    }
+
+    /* Where the transaction whose digest is id is, or null if no block on
+     * the chain has it */
+    public synchronized Location find(byte[] id) throws NoSuchAlgorithmException {
+        Blockchain.Snapshot snapshot = chain.snapshot();
+        for (; indexedHeight < snapshot.length(); ++indexedHeight) {
+            index(snapshot.blockAt(indexedHeight), indexedHeight);
+        }
+
+        return locations.get(ByteBuffer.wrap(id));
+    }
+
+    private void index(Block block, int height) throws NoSuchAlgorithmException {
+        BlockView view;
+        try {
+            view = block.view();
+        } catch (RuntimeException e) {
+            /* Not every block has transactions in it, the genesis block of
+             * a test chain might not for instance */
+            return;
+        }
+
+        for (int position = 0; position < view.transactionCount(); ++position) {
+            locations.put(ByteBuffer.wrap(view.signedObject(position).digest()),
+                          new Location(height, position));
+        }
+    }
+}
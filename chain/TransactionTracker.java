@@ -0,0 +1,187 @@
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Map;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * A TransactionTracker remembers what happened to the transactions that
+ * were submitted to this node, by their transaction id, so that clients
+ * can ask about them later without downloading the chain.
+ *
+ * Transactions are tracked until they are mined or rejected, and then the
+ * outcome is kept for the most recent maxFinished of them. Older outcomes
+ * are forgotten, at which point the only way to find a mined transaction
+ * is to look for it in the chain.
+ *
+ * Clients can wait for a pending transaction with await, which doesn't tie
+ * up a thread while it waits.
+ */
+public class TransactionTracker {
+    public static final int defaultMaxFinished = 100000;
+
+    private final Map<String, CompletableFuture<Models.TransactionStatus>> pending;
+    private final BoundedCache<String, Models.TransactionStatus> finished;
+
+    /* Hands out answers to await, so that whoever is waiting isn't called
+     * back on the mining thread, and also gives up on them when they have
+     * waited long enough */
+    private final ScheduledExecutorService responder;
+
+    public TransactionTracker() {
+        this(defaultMaxFinished);
+    }
+
+    public TransactionTracker(int maxFinished) {
+        this.pending = new ConcurrentHashMap<String, CompletableFuture<Models.TransactionStatus>>();
+        this.finished = new BoundedCache<String, Models.TransactionStatus>(maxFinished);
+        this.responder = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "transaction-tracker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /* The id of a serialised SignedObject, which is its digest in hex */
+    public static String transactionId(byte[] signedObject) throws NoSuchAlgorithmException {
+        return DatatypeConverter.printHexBinary(new SignedObjectView(signedObject).digest());
+    }
+
+    /* What a finished payload future amounts to for the transaction id */
+    static Models.TransactionStatus statusOf(String id,
+                                             BlockMiner.MinedPayload mined,
+                                             Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+
+        if (error == null) {
+            Models.TransactionStatus status = new Models.TransactionStatus(id, Models.TransactionStatus.MINED);
+            status.height = mined.height;
+            status.blockHash = DatatypeConverter.printHexBinary(mined.hash);
+            return status;
+        }
+
+        Models.TransactionStatus status = new Models.TransactionStatus(id, Models.TransactionStatus.REJECTED);
+        if (error instanceof BlockMiner.PayloadRejectedException) {
+            status.rejection = ((BlockMiner.PayloadRejectedException) error).reason().name();
+        } else {
+            status.rejection = BlockMiner.PayloadRejectedException.Reason.MINING_FAILED.name();
+        }
+
+        status.reason = error.getMessage();
+        return status;
+    }
+
+    /**
+     * track
+     *
+     * Start tracking the transaction with the given id, which is on its way
+     * to being mined by completion, and return where it has got to.
+     *
+     * Sending a transaction that is already pending again doesn't lose
+     * track of the original. The copy is turned away as a duplicate, but
+     * the status is still that of the one being mined.
+     */
+    public Models.TransactionStatus track(final String id,
+                                          CompletableFuture<BlockMiner.MinedPayload> completion) {
+        final CompletableFuture<Models.TransactionStatus> outcome = new CompletableFuture<Models.TransactionStatus>();
+
+        while (true) {
+            CompletableFuture<Models.TransactionStatus> existing = pending.putIfAbsent(id, outcome);
+            if (existing == null) {
+                break;
+            }
+
+            /* The original is still on its way, so this copy will have
+             * been turned away as a duplicate */
+            if (!existing.isDone()) {
+                return new Models.TransactionStatus(id, Models.TransactionStatus.PENDING);
+            }
+
+            /* The original only just finished, so this really is being
+             * sent again */
+            pending.remove(id, existing);
+        }
+
+        completion.whenComplete(new BiConsumer<BlockMiner.MinedPayload, Throwable>() {
+            public void accept(BlockMiner.MinedPayload mined, Throwable error) {
+                Models.TransactionStatus status = statusOf(id, mined, error);
+
+                /* Remember it before we stop tracking it, so anyone who
+                 * asks in between still gets an answer */
+                finished.put(id, status);
+                pending.remove(id, outcome);
+                outcome.complete(status);
+            }
+        });
+
+        return status(id);
+    }
+
+    /* Where the transaction with the given id has got to, or null if we
+     * don't know about it */
+    public Models.TransactionStatus status(String id) {
+        if (pending.containsKey(id)) {
+            return new Models.TransactionStatus(id, Models.TransactionStatus.PENDING);
+        }
+
+        return finished.get(id);
+    }
+
+    /**
+     * await
+     *
+     * Wait up to timeoutMs for the transaction with the given id to be
+     * mined or rejected. The returned future completes with its status
+     * once it is, or with a PENDING status if it is still waiting after
+     * timeoutMs. Either way, it completes on a thread belonging to the
+     * tracker, which is never the mining thread.
+     *
+     * Returns null if we don't know about the transaction.
+     */
+    public CompletableFuture<Models.TransactionStatus> await(final String id, long timeoutMs) {
+        CompletableFuture<Models.TransactionStatus> outcome = pending.get(id);
+        if (outcome == null) {
+            Models.TransactionStatus status = finished.get(id);
+            return status != null ? CompletableFuture.completedFuture(status) : null;
+        }
+
+        final CompletableFuture<Models.TransactionStatus> answer = new CompletableFuture<Models.TransactionStatus>();
+        final ScheduledFuture<?> timeout = responder.schedule(new Runnable() {
+            public void run() {
+                answer.complete(new Models.TransactionStatus(id, Models.TransactionStatus.PENDING));
+            }
+        }, Math.max(0, timeoutMs), TimeUnit.MILLISECONDS);
+        outcome.thenAcceptAsync(new Consumer<Models.TransactionStatus>() {
+            public void accept(Models.TransactionStatus status) {
+                timeout.cancel(false);
+                answer.complete(status);
+            }
+        }, responder);
+
+        return answer;
+    }
+
+    public int pendingCount() {
+        return pending.size();
+    }
+
+    public void shutdown() {
+        responder.shutdownNow();
+    }
+}
@@ -0,0 +1,96 @@
+import java.nio.ByteBuffer;
+
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * A TransactionView is a read-only window onto a serialised Transaction
+ * that lives somewhere inside a larger buffer (usually a block payload).
+ * Fields are read straight out of the buffer at their fixed offsets
+ * whenever they are asked for, so creating a view doesn't copy anything.
+ *
+ * Use Transaction if you need to build or modify a transaction.
+ */
+public class TransactionView {
+    private final ByteBuffer buffer;
+    private final int offset;
+
+    public TransactionView(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+    }
+
+    public TransactionView(byte[] contents) {
+        this(ByteBuffer.wrap(contents), 0);
+    }
+
+    public int amount() {
+        return buffer.getInt(offset + Globals.nBytesAmountOffset);
+    }
+
+    public boolean senderIs(WalletId wallet) {
+        return keyMatches(wallet, offset + Globals.nBytesSPubKeyOffset);
+    }
+
+    public boolean recipientIs(WalletId wallet) {
+        return keyMatches(wallet, offset + Globals.nBytesRPubKeyOffset);
+    }
+
+    /* Look up the sender and recipient in a BalanceTable, creating them
+     * if they aren't there yet */
+    public int internSender(BalanceTable table) {
+        return internKey(table, offset + Globals.nBytesSPubKeyOffset);
+    }
+
+    public int internRecipient(BalanceTable table) {
+        return internKey(table, offset + Globals.nBytesRPubKeyOffset);
+    }
+
+    /* Copies of the key bytes, for when somebody really needs an array
+     * of their own */
+    public byte[] sPubKey() {
+        return copyOf(offset + Globals.nBytesSPubKeyOffset, Globals.nBytesKeys);
+    }
+
+    public byte[] rPubKey() {
+        return copyOf(offset + Globals.nBytesRPubKeyOffset, Globals.nBytesKeys);
+    }
+
+    /* Decode into a full, mutable, Transaction */
+    public Transaction decode() {
+        return new Transaction(sPubKey(), rPubKey(), amount());
+    }
+
+    private boolean keyMatches(WalletId wallet, int keyOffset) {
+        if (buffer.hasArray()) {
+            return wallet.matches(buffer.array(),
+                                  buffer.arrayOffset() + keyOffset,
+                                  Globals.nBytesKeys);
+        }
+
+        return wallet.matches(copyOf(keyOffset, Globals.nBytesKeys));
+    }
+
+    private int internKey(BalanceTable table, int keyOffset) {
+        if (buffer.hasArray()) {
+            return table.intern(buffer.array(),
+                                buffer.arrayOffset() + keyOffset,
+                                Globals.nBytesKeys);
+        }
+
+        return table.intern(copyOf(keyOffset, Globals.nBytesKeys));
+    }
+
+    private byte[] copyOf(int from, int len) {
+        byte[] copy = new byte[len];
+        ByteBuffer source = buffer.duplicate();
+        source.position(from);
+        source.get(copy);
+        return copy;
+    }
+
+    public String toString() {
+        return DatatypeConverter.printHexBinary(sPubKey()) +
+               " -(" + amount() +")> " +
+               DatatypeConverter.printHexBinary(rPubKey());
+    }
+}
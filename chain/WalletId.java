@@ -0,0 +1,90 @@
+import java.util.Arrays;
+
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * A WalletId identifies a wallet by the bytes of its public key. Comparing
+ * and hashing the key bytes directly is much cheaper than turning them into
+ * a hexadecimal string first, which is what we used to do every time we
+ * wanted to look somebody up. The hash is computed once, up front.
+ *
+ * The hexadecimal form is still what users see and type in, so toString
+ * and fromHex convert to and from it.
+ */
+public final class WalletId {
+    private final byte[] key;
+    private final int hash;
+
+    public WalletId(byte[] key) {
+        this.key = key.clone();
+        this.hash = hashOf(this.key, 0, this.key.length);
+    }
+
+    public static WalletId fromHex(String hex) {
+        return new WalletId(DatatypeConverter.parseHexBinary(hex));
+    }
+
+    /* Hash len bytes of buf starting at offset, the same way that a WalletId
+     * for those bytes would be hashed */
+    public static int hashOf(byte[] buf, int offset, int len) {
+        int result = 1;
+        for (int i = offset; i < offset + len; ++i) {
+            result = 31 * result + buf[i];
+        }
+
+        return result;
+    }
+
+    /* Check whether len bytes of buf starting at offset are this wallet's
+     * key, without copying them anywhere */
+    public boolean matches(byte[] buf, int offset, int len) {
+        if (len != key.length) {
+            return false;
+        }
+
+        for (int i = 0; i < len; ++i) {
+            if (key[i] != buf[offset + i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public boolean matches(byte[] otherKey) {
+        return Arrays.equals(key, otherKey);
+    }
+
+    /* A copy of the key bytes. Callers can't change the WalletId through it */
+    public byte[] key() {
+        return key.clone();
+    }
+
+    public int length() {
+        return key.length;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+
+        if (!(other instanceof WalletId)) {
+            return false;
+        }
+
+        WalletId otherId = (WalletId) other;
+        return hash == otherId.hash && Arrays.equals(key, otherId.key);
+    }
+
+    @Override
+    public String toString() {
+        return DatatypeConverter.printHexBinary(key);
+    }
+}
@@ -0,0 +1,239 @@
+import java.nio.ByteBuffer;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import benchmarks.Workload;
+
+/**
+ * The work that the benchmarks in jmh/benchmarks time, see
+ * benchmarks.Workload for why it lives out here.
+ *
+ * Chains are generated rather than mined at any real difficulty. Each
+ * block after the first has transactionsPerBlock transactions in it, going
+ * back and forth between two wallets so that they always have something
+ * to spend, and is mined at difficulty 0, which takes a couple of tries.
+ */
+public class BenchmarkWorkloads {
+    static final int transactionsPerBlock = 4;
+
+    private static KeyPair sender;
+    private static KeyPair receiver;
+
+    static synchronized void generateKeys() throws Exception {
+        if (sender != null) {
+            return;
+        }
+
+        Security.addProvider(new BouncyCastleProvider());
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA", "BC");
+        generator.initialize(2048);
+        sender = generator.generateKeyPair();
+        receiver = generator.generateKeyPair();
+    }
+
+    /* Keys have to be generated first */
+    static SignedObject transaction(KeyPair from, KeyPair to, int amount) throws Exception {
+        Transaction transaction = new Transaction(from.getPublic().getEncoded(),
+                                                  to.getPublic().getEncoded(),
+                                                  amount);
+        return new SignedObject(transaction.serialize(), from.getPrivate());
+    }
+
+    static byte[] randomPayload(int length) {
+        byte[] payload = new byte[length];
+        new Random(length).nextBytes(payload);
+        return payload;
+    }
+
+    static void appendMined(Blockchain chain, byte[] payload) throws Exception {
+        byte[] parentHash = chain.length() > 0 ? chain.tipHash() : null;
+        chain.append(new Block(payload,
+                               Block.mineNonce(payload, parentHash, chain.problemDifficulty()),
+                               parentHash));
+    }
+
+    /* A valid chain of the given number of blocks, at difficulty 0 */
+    static Blockchain generateChain(int blocks) throws Exception {
+        generateKeys();
+
+        /* Signatures are deterministic, so the same two transactions can
+         * be used over and over again */
+        byte[] there = transaction(sender, receiver, 1).serialize();
+        byte[] back = transaction(receiver, sender, 1).serialize();
+        List<byte[]> batch = new ArrayList<byte[]>();
+        for (int i = 0; i < transactionsPerBlock; ++i) {
+            batch.add(i % 2 == 0 ? there : back);
+        }
+        byte[] payload = BlockView.batchPayload(batch);
+
+        Blockchain chain = new Blockchain(0);
+        appendMined(chain, transaction(sender, sender, 50).serialize());
+        for (int i = 1; i < blocks; ++i) {
+            appendMined(chain, payload);
+        }
+
+        return chain;
+    }
+
+    /* A single attempt at a nonce, as BlockMiner makes them. size is ignored */
+    public static class MiningAttempt implements Workload {
+        private MiningHasher hasher;
+        private int nonce;
+
+        public void setUp(int size) throws Exception {
+            generateKeys();
+            hasher = new MiningHasher(BlockHeader.parentHashOrGenesis(null),
+                                      new BlockView(transaction(sender, receiver, 1).serialize()).merkleRoot());
+        }
+
+        public Object run() {
+            return Block.leadingZeroBits(hasher.hash(nonce++));
+        }
+    }
+
+    /* Mining a whole block at difficulty size */
+    public static class MineNonce implements Workload {
+        private byte[] payload;
+        private long problemDifficulty;
+
+        public void setUp(int size) throws Exception {
+            generateKeys();
+            payload = transaction(sender, receiver, 1).serialize();
+            problemDifficulty = size;
+        }
+
+        public Object run() throws Exception {
+            return Block.mineNonce(payload, null, problemDifficulty);
+        }
+    }
+
+    /* Hashing a message of size bytes */
+    public static class MkHash implements Workload {
+        private byte[] message;
+
+        public void setUp(int size) {
+            message = randomPayload(size);
+        }
+
+        public Object run() throws Exception {
+            return Blockchain.mkHash(message, 0, message.length);
+        }
+    }
+
+    /* Checking the hashes of a chain of size blocks */
+    public static class Validate implements Workload {
+        private Blockchain chain;
+
+        public void setUp(int size) throws Exception {
+            chain = generateChain(size);
+        }
+
+        public Object run() throws Exception {
+            chain.validate();
+            return chain;
+        }
+    }
+
+    /* Working out the balances from a chain of size blocks. Remembering
+     * signatures that were already checked would make every replay after
+     * the first one free, so that is turned off */
+    public static class LedgerReplay implements Workload {
+        private Blockchain chain;
+
+        public void setUp(int size) throws Exception {
+            chain = generateChain(size);
+            SignedObject.setVerificationCacheEnabled(false);
+        }
+
+        public Object run() throws Exception {
+            return new Ledger(chain);
+        }
+    }
+
+    /* Checking one transaction's signature, with nothing cached. size is
+     * ignored */
+    public static class VerifySignature implements Workload {
+        private SignedObject signed;
+        private byte[] key;
+
+        public void setUp(int size) throws Exception {
+            generateKeys();
+            signed = transaction(sender, receiver, 1);
+            key = sender.getPublic().getEncoded();
+            SignedObject.setVerificationCacheEnabled(false);
+        }
+
+        public Object run() throws Exception {
+            return SignedObject.signatureIsValid(signed.payload, signed.signature, key);
+        }
+    }
+
+    /* Writing a chain of size blocks as JSON */
+    public static class Serialise implements Workload {
+        private Blockchain chain;
+
+        public void setUp(int size) throws Exception {
+            chain = generateChain(size);
+        }
+
+        public Object run() {
+            return chain.serialise();
+        }
+    }
+
+    /* Reading a chain of size blocks from JSON, which also validates it */
+    public static class Deserialise implements Workload {
+        private String json;
+
+        public void setUp(int size) throws Exception {
+            json = generateChain(size).serialise();
+        }
+
+        public Object run() throws Exception {
+            return Blockchain.deserialise(json);
+        }
+    }
+
+    /* Encoding and decoding a transaction. size is ignored */
+    public static class TransactionEncoding implements Workload {
+        private byte[] encoded;
+
+        public void setUp(int size) throws Exception {
+            generateKeys();
+            encoded = transaction(sender, receiver, 1).serialize();
+        }
+
+        public Object run() {
+            return new Transaction(encoded).serialize();
+        }
+    }
+
+    /* Encoding and decoding a block of size transactions */
+    public static class BlockEncoding implements Workload {
+        private byte[] encoded;
+
+        public void setUp(int size) throws Exception {
+            generateKeys();
+            List<byte[]> batch = new ArrayList<byte[]>();
+            byte[] signed = transaction(sender, receiver, 1).serialize();
+            for (int i = 0; i < size; ++i) {
+                batch.add(signed);
+            }
+
+            byte[] payload = BlockView.batchPayload(batch);
+            encoded = new Block(payload, Block.mineNonce(payload, null, 0), null).serialize();
+        }
+
+        public Object run() {
+            return ByteBuffer.wrap(new Block(encoded).serialize());
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole chain operations over generated chains: checking every block's
+ * hash, and writing and reading the chain as JSON the way
+ * /download_blockchain and WalletOrchestrator.fetchBlockchain do for
+ * clients that don't ask for the binary encoding.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ChainBenchmark {
+    @State(Scope.Thread)
+    public static class Chain {
+        @Param({ "100", "1000" })
+        public int blocks;
+
+        Workload validate;
+        Workload serialise;
+        Workload deserialise;
+
+        @Setup
+        public void setUp() throws Exception {
+            validate = Workloads.load("Validate", blocks);
+            serialise = Workloads.load("Serialise", blocks);
+            deserialise = Workloads.load("Deserialise", blocks);
+        }
+    }
+
+    @Benchmark
+    public Object validate(Chain state) throws Exception {
+        return state.validate.run();
+    }
+
+    @Benchmark
+    public Object serialise(Chain state) throws Exception {
+        return state.serialise.run();
+    }
+
+    @Benchmark
+    public Object deserialise(Chain state) throws Exception {
+        return state.deserialise.run();
+    }
+}
@@ -0,0 +1,59 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding and encoding again the binary forms of a Transaction and of a
+ * Block with a few different numbers of transactions in it.
+ */
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EncodingBenchmark {
+    @State(Scope.Thread)
+    public static class EncodedTransaction {
+        Workload workload;
+
+        @Setup
+        public void setUp() throws Exception {
+            workload = Workloads.load("TransactionEncoding", 0);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class EncodedBlock {
+        @Param({ "1", "100" })
+        public int transactions;
+
+        Workload workload;
+
+        @Setup
+        public void setUp() throws Exception {
+            workload = Workloads.load("BlockEncoding", transactions);
+        }
+    }
+
+    @Benchmark
+    public Object transaction(EncodedTransaction state) throws Exception {
+        return state.workload.run();
+    }
+
+    @Benchmark
+    public Object block(EncodedBlock state) throws Exception {
+        return state.workload.run();
+    }
+}
@@ -0,0 +1,44 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Blockchain.mkHash over messages of a few sizes, from a single hash up
+ * to a full block of transactions.
+ */
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HashBenchmark {
+    @State(Scope.Thread)
+    public static class Message {
+        @Param({ "32", "848", "4096" })
+        public int bytes;
+
+        Workload workload;
+
+        @Setup
+        public void setUp() throws Exception {
+            workload = Workloads.load("MkHash", bytes);
+        }
+    }
+
+    @Benchmark
+    public Object mkHash(Message state) throws Exception {
+        return state.workload.run();
+    }
+}
@@ -0,0 +1,63 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How fast we can look for a nonce. attempt is the number of nonces a
+ * single thread can try per second, which is what MiningEngine spends
+ * nearly all of its time doing. mineNonce is how long it takes to actually
+ * find one at a few problem difficulties.
+ */
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MiningBenchmark {
+    @State(Scope.Thread)
+    public static class Attempt {
+        Workload workload;
+
+        @Setup
+        public void setUp() throws Exception {
+            workload = Workloads.load("MiningAttempt", 0);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Mine {
+        @Param({ "4", "8", "12" })
+        public int problemDifficulty;
+
+        Workload workload;
+
+        @Setup
+        public void setUp() throws Exception {
+            workload = Workloads.load("MineNonce", problemDifficulty);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public Object attempt(Attempt state) throws Exception {
+        return state.workload.run();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Object mineNonce(Mine state) throws Exception {
+        return state.workload.run();
+    }
+}
@@ -0,0 +1,40 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * SignedObject.signatureIsValid on a single transaction, without the
+ * cache of signatures that were already checked.
+ */
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SignatureBenchmark {
+    @State(Scope.Thread)
+    public static class Signed {
+        Workload workload;
+
+        @Setup
+        public void setUp() throws Exception {
+            workload = Workloads.load("VerifySignature", 0);
+        }
+    }
+
+    @Benchmark
+    public Object signatureIsValid(Signed state) throws Exception {
+        return state.workload.run();
+    }
+}
@@ -0,0 +1,24 @@
+package benchmarks;
+
+/**
+ * Workload
+ *
+ * Something to benchmark. JMH won't generate benchmarks for classes in the
+ * default package, which is where everything else in this tree lives, and
+ * classes in a package can't refer to classes in the default package. So
+ * the benchmarks in this package each run a Workload, and the workloads
+ * themselves live in the default package, in BenchmarkWorkloads, where
+ * they can get at the real classes.
+ *
+ * Each benchmark only ever sees one implementation, so the JIT inlines
+ * the calls through this interface and they don't show up in the results.
+ */
+public interface Workload {
+    /* Get ready to run. What size means is up to the workload, for
+     * instance the number of blocks in a chain */
+    void setUp(int size) throws Exception;
+
+    /* Do the work once, returning something that depends on the result
+     * so that JMH can make sure it isn't optimised away */
+    Object run() throws Exception;
+}
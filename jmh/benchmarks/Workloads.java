@@ -0,0 +1,15 @@
+package benchmarks;
+
+/* Finds workloads in BenchmarkWorkloads by name, see Workload */
+final class Workloads {
+    private Workloads() {
+    }
+
+    static Workload load(String name, int size) throws Exception {
+        Workload workload = (Workload) Class.forName("BenchmarkWorkloads$" + name)
+                                            .getDeclaredConstructor()
+                                            .newInstance();
+        workload.setUp(size);
+        return workload;
+    }
+}
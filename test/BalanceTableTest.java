@@ -0,0 +1,60 @@
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class BalanceTableTest {
+  static byte[] keyFor(int i) {
+    /* Real keys share a long common prefix, so make these do the same */
+    byte[] key = new byte[Globals.nBytesKeys];
+    new Random(i).nextBytes(key);
+    for (int j = 0; j < 32; ++j) {
+      key[j] = 0x30;
+    }
+    return key;
+  }
+
+  @Test
+  public void testInternGivesDenseStableIds() {
+    BalanceTable table = new BalanceTable();
+
+    for (int i = 0; i < 1000; ++i) {
+      assertThat(table.intern(keyFor(i)), equalTo(i));
+    }
+
+    /* Growing the table shouldn't have moved anybody */
+    for (int i = 0; i < 1000; ++i) {
+      assertThat(table.find(keyFor(i)), equalTo(i));
+      assertThat(table.wallet(i).matches(keyFor(i)), equalTo(true));
+    }
+
+    assertThat(table.size(), equalTo(1000));
+    assertThat(table.find(keyFor(1000)), equalTo(-1));
+  }
+
+  @Test
+  public void testInternFromOffsetMatchesWholeKey() {
+    BalanceTable table = new BalanceTable();
+    byte[] key = keyFor(7);
+    byte[] buf = Globals.concatByteArrays(new byte[][] { keyFor(8), key });
+
+    int id = table.intern(key);
+    assertThat(table.find(buf, Globals.nBytesKeys, Globals.nBytesKeys), equalTo(id));
+  }
+
+  @Test
+  public void testCopyIsIndependent() {
+    BalanceTable table = new BalanceTable();
+    int id = table.intern(keyFor(1));
+    table.setBalance(id, 50);
+
+    BalanceTable copy = table.copy();
+    table.setBalance(id, 20);
+    table.intern(keyFor(2));
+
+    assertThat(copy.balanceOf(keyFor(1)), equalTo(50L));
+    assertThat(copy.find(keyFor(2)), equalTo(-1));
+  }
+}
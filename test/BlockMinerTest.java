@@ -0,0 +1,244 @@
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.junit.Assert.assertThat;
+
+public class BlockMinerTest extends TestBase {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  static BlockMiner.PayloadValidator recordingValidator(final List<Integer> indices,
+                                                        final CountDownLatch validated) {
+    return new BlockMiner.PayloadValidator() {
+      public boolean validate(byte[] payload, int index) {
+        indices.add(index);
+        validated.countDown();
+        return payload[0] != 0;
+      }
+
+      public void onMiningFailure(byte[] payload) {
+      }
+    };
+  }
+
+  @Test
+  public void testNextPayloadIsValidatedWhileMining() {
+    final List<Integer> indices = Collections.synchronizedList(new ArrayList<Integer>());
+    final CountDownLatch secondValidated = new CountDownLatch(1);
+    final List<Boolean> overlapped = Collections.synchronizedList(new ArrayList<Boolean>());
+    Blockchain chain = new Blockchain(problemDifficulty);
+
+    /* Hold up the block at index 1 until the payload for index 2 has been
+     * validated, which can only happen if validation doesn't wait for it */
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, new BlockMiner.MiningObserver() {
+      public void blockMined(Block block, MiningEngine.Result result) {
+        if (block.payload[0] == 2) {
+          try {
+            overlapped.add(secondValidated.await(10, TimeUnit.SECONDS));
+          } catch (InterruptedException e) {
+            overlapped.add(false);
+          }
+        }
+      }
+    }, problemDifficulty));
+
+    miner.waitFor(miner.appendPayload(new byte[] { 1 }, recordingValidator(indices, new CountDownLatch(1))));
+    miner.appendPayload(new byte[] { 2 }, recordingValidator(indices, new CountDownLatch(1)));
+    miner.waitFor(miner.appendPayload(new byte[] { 3 }, recordingValidator(indices, secondValidated)));
+
+    assertThat(overlapped, equalTo(Collections.singletonList(true)));
+    assertThat(indices, equalTo(Arrays.asList(0, 1, 2)));
+    assertThat(chain.length(), equalTo(3));
+  }
+
+  @Test
+  public void testRejectedPayloadDoesNotTakeAnIndex() {
+    final List<Integer> indices = Collections.synchronizedList(new ArrayList<Integer>());
+    Blockchain chain = new Blockchain(problemDifficulty);
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, problemDifficulty));
+
+    miner.waitFor(miner.appendPayload(new byte[] { 1 }, recordingValidator(indices, new CountDownLatch(1))));
+    miner.appendPayload(new byte[] { 2 }, recordingValidator(indices, new CountDownLatch(1)));
+    miner.appendPayload(new byte[] { 0 }, recordingValidator(indices, new CountDownLatch(1)));
+    miner.waitFor(miner.appendPayload(new byte[] { 4 }, recordingValidator(indices, new CountDownLatch(1))));
+
+    /* The payload starting with zero gets rejected, so the one after it
+     * is validated for the same block */
+    assertThat(indices, equalTo(Arrays.asList(0, 1, 2, 2)));
+    assertThat(chain.length(), equalTo(3));
+    assertThat(chain.blockAt(2).payload, equalTo(new byte[] { 4 }));
+  }
+
+  static BlockMiner.PayloadRejectedException.Reason rejectionReason(CompletableFuture<BlockMiner.MinedPayload> completion)
+      throws InterruptedException {
+    try {
+      completion.get();
+    } catch (ExecutionException e) {
+      assertThat(e.getCause(), instanceOf(BlockMiner.PayloadRejectedException.class));
+      return ((BlockMiner.PayloadRejectedException) e.getCause()).reason();
+    }
+
+    return null;
+  }
+
+  @Test
+  public void testCompletesWithTheMinedBlock() throws InterruptedException,
+                                                      ExecutionException {
+    Blockchain chain = new Blockchain(problemDifficulty);
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, problemDifficulty));
+
+    miner.appendPayload(new byte[] { 1 });
+    BlockMiner.MinedPayload mined = miner.appendPayload(new byte[] { 2 }).get();
+
+    assertThat(mined.height, equalTo(1));
+    assertThat(mined.position, equalTo(0));
+    assertThat(mined.hash, equalTo(chain.blockAt(1).hash));
+    assertThat(mined.block.payload, equalTo(new byte[] { 2 }));
+  }
+
+  @Test
+  public void testRejectionsSayWhy() throws InterruptedException {
+    final List<Integer> indices = Collections.synchronizedList(new ArrayList<Integer>());
+    Blockchain chain = new Blockchain(problemDifficulty);
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, problemDifficulty));
+
+    miner.waitFor(miner.appendPayload(new byte[] { 1 }));
+    CompletableFuture<BlockMiner.MinedPayload> invalid =
+      miner.appendPayload(new byte[] { 0 }, recordingValidator(indices, new CountDownLatch(1)));
+    CompletableFuture<BlockMiner.MinedPayload> thrown =
+      miner.appendPayload(new byte[] { 3 }, new BlockMiner.PayloadValidator() {
+        public boolean validate(byte[] payload, int index) throws BlockMiner.PayloadRejectedException {
+          throw new BlockMiner.PayloadRejectedException(BlockMiner.PayloadRejectedException.Reason.INVALID,
+                                                        "not today");
+        }
+
+        public void onMiningFailure(byte[] payload) {
+        }
+      });
+
+    assertThat(rejectionReason(invalid), equalTo(BlockMiner.PayloadRejectedException.Reason.INVALID));
+    assertThat(rejectionReason(thrown), equalTo(BlockMiner.PayloadRejectedException.Reason.INVALID));
+
+    try {
+      thrown.get();
+    } catch (ExecutionException e) {
+      assertThat(e.getCause().getMessage(), equalTo("not today"));
+    }
+
+    assertThat(chain.length(), equalTo(1));
+  }
+
+  @Test
+  public void testDuplicateIsRejectedStraightAway() throws InterruptedException {
+    final CountDownLatch release = new CountDownLatch(1);
+    Blockchain chain = new Blockchain(problemDifficulty);
+
+    /* Hold up the first block so the copy turns up while it is mining */
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, new BlockMiner.MiningObserver() {
+      public void blockMined(Block block, MiningEngine.Result result) {
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+        }
+      }
+    }, problemDifficulty));
+
+    CompletableFuture<BlockMiner.MinedPayload> original = miner.appendPayload(new byte[] { 1 });
+    CompletableFuture<BlockMiner.MinedPayload> copy = miner.appendPayload(new byte[] { 1 });
+
+    assertThat(copy.isDone(), equalTo(true));
+    assertThat(rejectionReason(copy), equalTo(BlockMiner.PayloadRejectedException.Reason.DUPLICATE));
+
+    release.countDown();
+    assertThat(rejectionReason(original), equalTo((BlockMiner.PayloadRejectedException.Reason) null));
+  }
+
+  @Test
+  public void testListenerHearsBothOutcomes() throws InterruptedException {
+    final List<String> outcomes = Collections.synchronizedList(new ArrayList<String>());
+    final List<Integer> indices = Collections.synchronizedList(new ArrayList<Integer>());
+    BlockMiner.CompletionListener listener = new BlockMiner.CompletionListener() {
+      public void mined(BlockMiner.MinedPayload mined) {
+        outcomes.add("mined " + mined.height);
+      }
+
+      public void rejected(BlockMiner.PayloadRejectedException rejection) {
+        outcomes.add("rejected " + rejection.reason());
+      }
+    };
+    Blockchain chain = new Blockchain(problemDifficulty);
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, problemDifficulty));
+
+    miner.waitFor(BlockMiner.whenDone(miner.appendPayload(new byte[] { 1 }), listener));
+    miner.waitFor(BlockMiner.whenDone(miner.appendPayload(new byte[] { 0 },
+                                                          recordingValidator(indices, new CountDownLatch(1))),
+                                      listener));
+
+    assertThat(outcomes, equalTo(Arrays.asList("mined 0", "rejected INVALID")));
+  }
+
+  @Test
+  public void testValidatesForTheRealHeightAfterMiningFailure() throws IOException,
+                                                                       InterruptedException,
+                                                                       ExecutionException {
+    final List<Integer> indices = Collections.synchronizedList(new ArrayList<Integer>());
+    final CountDownLatch nextValidated = new CountDownLatch(1);
+    Blockchain chain = new Blockchain(problemDifficulty);
+
+    /* A block too big for a segment can't be stored, so it never makes
+     * it onto the chain */
+    BlockStore store = BlockStore.open(folder.newFolder(), problemDifficulty, 256);
+    byte[] tooBig = new byte[512];
+    tooBig[0] = 2;
+
+    /* Hold up the block that fails until the payload behind it has been
+     * validated, as if it was going in the block after it */
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, null, problemDifficulty, new MiningEngine(1) {
+      public MiningEngine.Result mine(byte[] payload,
+                                      byte[] parentHash,
+                                      long problemDifficulty) throws NoSuchAlgorithmException,
+                                                                     Block.MiningException {
+        if (payload.length > 256) {
+          try {
+            nextValidated.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+          }
+        }
+
+        return super.mine(payload, parentHash, problemDifficulty);
+      }
+    }, store));
+
+    miner.waitFor(miner.appendPayload(new byte[] { 1 }, recordingValidator(indices, new CountDownLatch(1))));
+    CompletableFuture<BlockMiner.MinedPayload> failed =
+      miner.appendPayload(tooBig, recordingValidator(indices, new CountDownLatch(1)));
+    CompletableFuture<BlockMiner.MinedPayload> behind =
+      miner.appendPayload(new byte[] { 3 }, recordingValidator(indices, nextValidated));
+
+    assertThat(rejectionReason(failed), equalTo(BlockMiner.PayloadRejectedException.Reason.MINING_FAILED));
+    assertThat(behind.get().height, equalTo(1));
+    assertThat(miner.appendPayload(new byte[] { 4 }, recordingValidator(indices, new CountDownLatch(1))).get().height,
+               equalTo(2));
+
+    /* The payload behind the failed block is validated again for the
+     * block it really goes in, and everything after it follows on */
+    assertThat(indices, equalTo(Arrays.asList(0, 1, 2, 1, 2)));
+    assertThat(chain.length(), equalTo(3));
+  }
+}
@@ -0,0 +1,143 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.security.NoSuchAlgorithmException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class BlockStoreTest extends TestBase {
+  /* Small enough that a few dozen blocks need several segments */
+  private static final int segmentSize = 512;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  Blockchain mineChain(int length, BlockStore store) {
+    Blockchain chain = new Blockchain(problemDifficulty);
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain,
+                                                         null,
+                                                         problemDifficulty,
+                                                         new MiningEngine(1),
+                                                         store));
+    minePayloads(miner, 0, length);
+    return chain;
+  }
+
+  @Test
+  public void testMinedBlocksSurviveReopening() throws IOException,
+                                                       NoSuchAlgorithmException,
+                                                       Blockchain.IntegrityCheckFailedException {
+    File directory = folder.newFolder("blocks");
+    Blockchain chain = mineChain(40, BlockStore.open(directory, problemDifficulty, segmentSize));
+
+    BlockStore reopened = BlockStore.open(directory, problemDifficulty, segmentSize);
+    assertThat(reopened.length(), equalTo(40));
+    assertThat(directory.list().length > 1, equalTo(true));
+
+    Blockchain loaded = reopened.load();
+    Blockchain.deserialise(loaded.serialise());
+    assertThat(loaded.tipHash(), equalTo(chain.tipHash()));
+    assertThat(reopened.read(17).hash, equalTo(chain.blockAt(17).hash));
+  }
+
+  @Test
+  public void testAppendAfterReopening() throws IOException,
+                                                NoSuchAlgorithmException,
+                                                Blockchain.IntegrityCheckFailedException {
+    File directory = folder.newFolder("blocks");
+    Blockchain chain = mineChain(10, BlockStore.open(directory, problemDifficulty, segmentSize));
+
+    BlockStore reopened = BlockStore.open(directory, problemDifficulty, segmentSize);
+    Blockchain resumed = reopened.load();
+    BlockMiner miner = registerForCleanup(new BlockMiner(resumed,
+                                                         null,
+                                                         problemDifficulty,
+                                                         new MiningEngine(1),
+                                                         reopened));
+    miner.waitFor(miner.appendPayload(new byte[] { 42 }));
+
+    Blockchain loaded = BlockStore.open(directory, problemDifficulty, segmentSize).load();
+    Blockchain.deserialise(loaded.serialise());
+    assertThat(loaded.length(), equalTo(11));
+    assertThat(loaded.tipHash(), equalTo(resumed.tipHash()));
+  }
+
+  @Test
+  public void testAppendAfterTornWrite() throws IOException,
+                                                NoSuchAlgorithmException,
+                                                Blockchain.IntegrityCheckFailedException {
+    File directory = folder.newFolder("blocks");
+    mineChain(3, BlockStore.open(directory, problemDifficulty, segmentSize));
+
+    /* A write that was torn before its length made it to disk leaves
+     * its contents behind the end of the segment */
+    File segment = directory.listFiles()[0];
+    RandomAccessFile file = new RandomAccessFile(segment, "rw");
+    try {
+      long tail = 4 + 8;
+      file.seek(tail);
+      for (int length = file.readInt(); length != 0; length = file.readInt()) {
+        tail += 4 + length;
+        file.seek(tail);
+      }
+
+      for (long offset = tail + 4; offset < file.length(); ++offset) {
+        file.seek(offset);
+        file.write(0x7f);
+      }
+    } finally {
+      file.close();
+    }
+
+    BlockStore reopened = BlockStore.open(directory, problemDifficulty, segmentSize);
+    Blockchain resumed = reopened.load();
+    BlockMiner miner = registerForCleanup(new BlockMiner(resumed,
+                                                         null,
+                                                         problemDifficulty,
+                                                         new MiningEngine(1),
+                                                         reopened));
+    miner.waitFor(miner.appendPayload(new byte[] { 42 }));
+
+    Blockchain loaded = BlockStore.open(directory, problemDifficulty, segmentSize).load();
+    assertThat(loaded.length(), equalTo(4));
+    assertThat(loaded.tipHash(), equalTo(resumed.tipHash()));
+  }
+
+  @Test
+  public void testWriteToMatchesBlockStream() throws IOException,
+                                                     NoSuchAlgorithmException,
+                                                     Blockchain.IntegrityCheckFailedException {
+    BlockStore store = BlockStore.open(folder.newFolder("blocks"), problemDifficulty, segmentSize);
+    Blockchain chain = mineChain(30, store);
+
+    for (int from : new int[] { 0, 3, 29, 30 }) {
+      ByteArrayOutputStream fromStore = new ByteArrayOutputStream();
+      ByteArrayOutputStream fromChain = new ByteArrayOutputStream();
+      store.writeTo(from, fromStore);
+      BlockStream.write(chain, from, fromChain);
+
+      assertThat(fromStore.toByteArray(), equalTo(fromChain.toByteArray()));
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    store.writeTo(0, out);
+    assertThat(BlockStream.read(new ByteArrayInputStream(out.toByteArray())).tipHash(),
+               equalTo(chain.tipHash()));
+  }
+
+  @Test(expected=BlockStore.CorruptStoreException.class)
+  public void testReopeningWithDifferentDifficultyFails() throws IOException {
+    File directory = folder.newFolder("blocks");
+    mineChain(1, BlockStore.open(directory, problemDifficulty, segmentSize));
+
+    BlockStore.open(directory, problemDifficulty + 1, segmentSize);
+  }
+}
@@ -1,5 +1,12 @@
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 
 import java.security.NoSuchAlgorithmException;
 import java.security.InvalidKeyException;
@@ -87,6 +94,34 @@ public class BlockchainTest extends TestBase {
     assertThat(chain.tipHash(), equalTo(deserialised.tipHash()));
   }
 
+  @Test
+  public void testDeserialiseBlocksMinedOnSeveralThreads() throws NoSuchAlgorithmException,
+                                                                  Blockchain.IntegrityCheckFailedException,
+                                                                  Blockchain.WalkFailedException,
+                                                                  Block.MiningException,
+                                                                  InvalidKeyException,
+                                                                  SignatureException {
+    Blockchain chain = new Blockchain(problemDifficulty);
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, null, problemDifficulty, 4));
+    AsynchronouslyMutableLedger ledger = new AsynchronouslyMutableLedger(chain, miner);
+    ledger.appendSignedTransaction(convenienceTransactionFromIntegerKeys(senderKeys.getPublic(),
+                                                                         senderKeys.getPublic(),
+                                                                         50,
+                                                                         senderKeys.getPrivate()));
+    miner.waitFor(
+      ledger.appendSignedTransaction(convenienceTransactionFromIntegerKeys(senderKeys.getPublic(),
+                                                                           receiverKeys.getPublic(),
+                                                                           20,
+                                                                           senderKeys.getPrivate()))
+    );
+
+    /* Whichever worker found the nonce, the chain should still validate */
+    Blockchain deserialised = Blockchain.deserialise(chain.serialise());
+
+    assertThat(deserialised.length(), equalTo(2));
+    assertThat(chain.tipHash(), equalTo(deserialised.tipHash()));
+  }
+
   @Test(expected=Blockchain.IntegrityCheckFailedException.class)
   public void testIntegrityCheckFailsWhenModifyingHashes() throws NoSuchAlgorithmException,
                                                                   Blockchain.IntegrityCheckFailedException,
@@ -203,4 +238,305 @@ public class BlockchainTest extends TestBase {
     /* This should throw an integrity check failure */
     Blockchain.deserialise(chain.serialise());
   }
+
+  @Test
+  public void testIntegrityCheckReportsLowestFailingBlock() throws NoSuchAlgorithmException,
+                                                                   Blockchain.WalkFailedException {
+    Blockchain chain = new Blockchain(problemDifficulty);
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, problemDifficulty));
+
+    /* Long enough that validation gets split up across several threads */
+    CompletableFuture<BlockMiner.MinedPayload> mined = null;
+    for (int i = 0; i < 200; ++i) {
+      mined = miner.appendPayload(new byte[] { (byte) i, (byte) (i >> 8) });
+    }
+    miner.waitFor(mined);
+
+    chain.walk(new Blockchain.BlockEnumerator() {
+        public void consume(int index, Block block) {
+            if (index == 57 || index == 150) {
+                block.payload = new byte[] { 0 };
+            }
+        }
+    });
+
+    try {
+      Blockchain.deserialise(chain.serialise());
+    } catch (Blockchain.IntegrityCheckFailedException e) {
+      assertThat(e.getMessage().contains("at block 57 "), equalTo(true));
+      return;
+    }
+
+    throw new AssertionError("Expected an integrity check failure");
+  }
+
+  @Test
+  public void testBlockStreamRoundTrip() throws NoSuchAlgorithmException,
+                                                Blockchain.IntegrityCheckFailedException,
+                                                IOException {
+    Blockchain chain = new Blockchain(problemDifficulty);
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, problemDifficulty));
+
+    CompletableFuture<BlockMiner.MinedPayload> mined = null;
+    for (int i = 0; i < 20; ++i) {
+      mined = miner.appendPayload(new byte[] { (byte) i });
+    }
+    miner.waitFor(mined);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BlockStream.write(chain, out);
+    Blockchain read = BlockStream.read(new ByteArrayInputStream(out.toByteArray()));
+
+    assertThat(read.length(), equalTo(chain.length()));
+    assertThat(read.problemDifficulty(), equalTo(chain.problemDifficulty()));
+    assertThat(read.tipHash(), equalTo(chain.tipHash()));
+  }
+
+  @Test(expected=Blockchain.IntegrityCheckFailedException.class)
+  public void testBlockStreamRejectsTamperedBlock() throws NoSuchAlgorithmException,
+                                                           Blockchain.IntegrityCheckFailedException,
+                                                           IOException {
+    Blockchain chain = new Blockchain(problemDifficulty);
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, problemDifficulty));
+
+    CompletableFuture<BlockMiner.MinedPayload> mined = null;
+    for (int i = 0; i < 5; ++i) {
+      mined = miner.appendPayload(new byte[] { (byte) i });
+    }
+    miner.waitFor(mined);
+    chain.blockAt(2).payload = new byte[] { 42 };
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BlockStream.write(chain, out);
+
+    /* This should throw an integrity check failure */
+    BlockStream.read(new ByteArrayInputStream(out.toByteArray()));
+  }
+
+  @Test(expected=BlockStream.MalformedStreamException.class)
+  public void testBlockStreamRejectsTruncatedStream() throws NoSuchAlgorithmException,
+                                                             Blockchain.IntegrityCheckFailedException,
+                                                             IOException {
+    Blockchain chain = new Blockchain(problemDifficulty);
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, problemDifficulty));
+    miner.waitFor(miner.appendPayload(new byte[] { 1 }));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BlockStream.write(chain, out);
+    byte[] bytes = out.toByteArray();
+
+    /* Drop the terminating zero length */
+    BlockStream.read(new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 4)));
+  }
+
+  @Test
+  public void testBlockStreamAppendsSuffixToExistingChain() throws NoSuchAlgorithmException,
+                                                                   Blockchain.IntegrityCheckFailedException,
+                                                                   IOException {
+    Blockchain chain = new Blockchain(problemDifficulty);
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, problemDifficulty));
+
+    CompletableFuture<BlockMiner.MinedPayload> mined = null;
+    for (int i = 0; i < 5; ++i) {
+      mined = miner.appendPayload(new byte[] { (byte) i });
+    }
+    miner.waitFor(mined);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BlockStream.write(chain, out);
+    Blockchain copy = BlockStream.read(new ByteArrayInputStream(out.toByteArray()));
+
+    for (int i = 5; i < 12; ++i) {
+      mined = miner.appendPayload(new byte[] { (byte) i });
+    }
+    miner.waitFor(mined);
+
+    assertThat(chain.sharesPrefix(copy.length(), copy.tipHash()), equalTo(true));
+
+    out = new ByteArrayOutputStream();
+    BlockStream.write(chain, copy.length(), out);
+
+    assertThat(BlockStream.readInto(copy, new ByteArrayInputStream(out.toByteArray())), equalTo(7));
+    assertThat(copy.tipHash(), equalTo(chain.tipHash()));
+  }
+
+  @Test
+  public void testSharesPrefixDetectsDivergedChain() throws NoSuchAlgorithmException {
+    Blockchain chain = new Blockchain(problemDifficulty);
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, problemDifficulty));
+    Blockchain other = new Blockchain(problemDifficulty);
+    BlockMiner otherMiner = registerForCleanup(new BlockMiner(other, problemDifficulty));
+
+    miner.waitFor(miner.appendPayload(new byte[] { 1 }));
+    miner.waitFor(miner.appendPayload(new byte[] { 2 }));
+    otherMiner.waitFor(otherMiner.appendPayload(new byte[] { 3 }));
+
+    assertThat(chain.sharesPrefix(0, new byte[0]), equalTo(true));
+    assertThat(chain.sharesPrefix(other.length(), other.tipHash()), equalTo(false));
+    assertThat(chain.sharesPrefix(3, chain.tipHash()), equalTo(false));
+  }
+
+  @Test
+  public void testSnapshotDoesNotSeeLaterBlocks() throws NoSuchAlgorithmException,
+                                                         Blockchain.WalkFailedException {
+    Blockchain chain = new Blockchain(problemDifficulty);
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, problemDifficulty));
+
+    miner.waitFor(miner.appendPayload(new byte[] { 1 }));
+    miner.waitFor(miner.appendPayload(new byte[] { 2 }));
+    Blockchain.Snapshot snapshot = chain.snapshot();
+    byte[] tipHash = chain.tipHash();
+
+    /* Enough to outgrow the array the snapshot is looking at */
+    CompletableFuture<BlockMiner.MinedPayload> last = null;
+    for (int i = 3; i < 40; ++i) {
+      last = miner.appendPayload(new byte[] { (byte) i });
+    }
+    miner.waitFor(last);
+
+    final List<Block> walked = new ArrayList<Block>();
+    snapshot.walk(new Blockchain.BlockEnumerator() {
+      public void consume(int index, Block block) {
+        walked.add(block);
+      }
+    });
+
+    assertThat(chain.length(), equalTo(39));
+    assertThat(snapshot.length(), equalTo(2));
+    assertThat(snapshot.tipHash(), equalTo(tipHash));
+    assertThat(walked.size(), equalTo(2));
+    assertThat(snapshot.blocks().get(1), equalTo(chain.blockAt(1)));
+  }
+
+  @Test
+  public void testReadersSeeWholeChainsWhileMining() throws NoSuchAlgorithmException,
+                                                            Blockchain.IntegrityCheckFailedException,
+                                                            InterruptedException {
+    final Blockchain chain = new Blockchain(problemDifficulty);
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, problemDifficulty));
+    final List<Exception> failures = new ArrayList<Exception>();
+    final int blocks = 60;
+
+    /* Every snapshot a reader takes, at whatever height, should be a
+     * valid chain on its own */
+    Thread reader = new Thread(new Runnable() {
+      public void run() {
+        int lastLength = 0;
+        while (lastLength < blocks) {
+          try {
+            Blockchain.Snapshot snapshot = chain.snapshot();
+            if (snapshot.length() < lastLength) {
+              throw new IllegalStateException("Chain went from " + lastLength + " to " +
+                                              snapshot.length() + " blocks");
+            }
+
+            lastLength = snapshot.length();
+            Blockchain.deserialise(chain.serialise());
+            for (int i = 0; i < snapshot.length(); ++i) {
+              Blockchain.validateBlock(i, snapshot.blockAt(i), snapshot.parentBlockHash(i), 0);
+            }
+          } catch (Exception e) {
+            failures.add(e);
+            return;
+          }
+        }
+      }
+    });
+    reader.start();
+
+    CompletableFuture<BlockMiner.MinedPayload> last = null;
+    for (int i = 0; i < blocks; ++i) {
+      last = miner.appendPayload(new byte[] { (byte) i });
+    }
+    miner.waitFor(last);
+    reader.join(30000);
+
+    assertThat(failures, equalTo((List<Exception>) new ArrayList<Exception>()));
+    assertThat(chain.length(), equalTo(blocks));
+  }
+
+  @Test
+  public void testHeaderChainFollowsMinedChain() throws NoSuchAlgorithmException,
+                                                        Blockchain.IntegrityCheckFailedException,
+                                                        IOException {
+    Blockchain chain = new Blockchain(problemDifficulty);
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, problemDifficulty));
+
+    CompletableFuture<BlockMiner.MinedPayload> mined = null;
+    for (int i = 0; i < 6; ++i) {
+      mined = miner.appendPayload(new byte[] { (byte) i });
+    }
+    miner.waitFor(mined);
+
+    HeaderChain headers = new HeaderChain(problemDifficulty);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    HeaderChain.write(chain, 0, out);
+    assertThat(HeaderChain.readInto(headers, new ByteArrayInputStream(out.toByteArray())), equalTo(6));
+
+    for (int i = 0; i < chain.length(); ++i) {
+      assertThat(headers.hashAt(i), equalTo(chain.blockAt(i).hash));
+    }
+
+    /* Headers after the ones we have can be fetched on their own */
+    mined = miner.appendPayload(new byte[] { 6 });
+    miner.waitFor(mined);
+
+    out = new ByteArrayOutputStream();
+    HeaderChain.write(chain, headers.length(), out);
+    assertThat(HeaderChain.readInto(headers, new ByteArrayInputStream(out.toByteArray())), equalTo(1));
+    assertThat(headers.hashAt(6), equalTo(chain.tipHash()));
+  }
+
+  @Test(expected=Blockchain.IntegrityCheckFailedException.class)
+  public void testHeaderChainRejectsHeaderThatDoesNotFollow() throws NoSuchAlgorithmException,
+                                                                     Blockchain.IntegrityCheckFailedException {
+    Blockchain chain = new Blockchain(problemDifficulty);
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, problemDifficulty));
+    miner.waitFor(miner.appendPayload(new byte[] { 1 }));
+    miner.waitFor(miner.appendPayload(new byte[] { 2 }));
+
+    HeaderChain headers = new HeaderChain(problemDifficulty);
+    headers.appendValidated(chain.blockAt(0).header(null));
+
+    /* The second block's header, but claiming to follow nothing */
+    headers.appendValidated(chain.blockAt(1).header(null));
+  }
+
+  @Test
+  public void testInclusionProofCheckedAgainstHeaders() throws NoSuchAlgorithmException,
+                                                               Blockchain.IntegrityCheckFailedException,
+                                                               InvalidKeyException,
+                                                               SignatureException,
+                                                               IOException {
+    Blockchain chain = new Blockchain(problemDifficulty);
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, problemDifficulty));
+
+    List<byte[]> batch = new ArrayList<byte[]>();
+    for (int i = 1; i <= 5; ++i) {
+      batch.add(convenienceTransactionPayloadFromIntegerKeys(senderKeys.getPublic(),
+                                                             receiverKeys.getPublic(),
+                                                             i,
+                                                             senderKeys.getPrivate()));
+    }
+    miner.waitFor(miner.appendPayload(new byte[] { 1 }));
+    miner.waitFor(miner.appendPayload(BlockView.batchPayload(batch)));
+
+    HeaderChain headers = new HeaderChain(problemDifficulty);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    HeaderChain.write(chain, 0, out);
+    HeaderChain.readInto(headers, new ByteArrayInputStream(out.toByteArray()));
+
+    byte[] id = new SignedObjectView(batch.get(3)).digest();
+    Models.InclusionProof proof = Models.InclusionProof.deserialise(
+      ChainMain.findInclusionProof(chain, new TransactionIndex(chain), id).serialise()
+    );
+
+    assertThat(proof.height, equalTo(1));
+    assertThat(proof.position, equalTo(3));
+    assertThat(headers.includes(proof.height, proof.transactionBytes(), proof.proof()), equalTo(true));
+
+    /* The same proof doesn't work for any other transaction or block */
+    assertThat(headers.includes(proof.height, batch.get(2), proof.proof()), equalTo(false));
+    assertThat(headers.includes(0, proof.transactionBytes(), proof.proof()), equalTo(false));
+  }
 }
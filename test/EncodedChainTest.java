@@ -0,0 +1,87 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class EncodedChainTest extends TestBase {
+  static String json(EncodedChain.Snapshot snapshot) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    snapshot.writeJson(out);
+    assertThat((long) out.size(), equalTo(snapshot.jsonLength()));
+    return new String(out.toByteArray(), "UTF-8");
+  }
+
+  static String gunzip(EncodedChain.Snapshot snapshot) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    snapshot.writeGzip(out);
+    assertThat((long) out.size(), equalTo(snapshot.gzipLength()));
+
+    GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()));
+    return new String(ChainMain.readAllBytes(in), "UTF-8");
+  }
+
+  @Test
+  public void testEmptyChainMatchesSerialise() throws IOException {
+    Blockchain chain = new Blockchain(problemDifficulty);
+    EncodedChain.Snapshot snapshot = new EncodedChain(chain).snapshot();
+
+    assertThat(json(snapshot), equalTo(chain.serialise()));
+    assertThat(gunzip(snapshot), equalTo(chain.serialise()));
+    assertThat(snapshot.etag, equalTo("\"\""));
+  }
+
+  @Test
+  public void testGrowsWithTheChain() throws IOException {
+    Blockchain chain = new Blockchain(problemDifficulty);
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, problemDifficulty));
+    EncodedChain encoded = new EncodedChain(chain);
+
+    minePayloads(miner, 0, 5);
+    EncodedChain.Snapshot first = encoded.snapshot();
+    String firstJson = chain.serialise();
+    assertThat(json(first), equalTo(firstJson));
+    assertThat(gunzip(first), equalTo(firstJson));
+
+    /* Enough blocks to make the buffers grow */
+    minePayloads(miner, 5, 300);
+    EncodedChain.Snapshot second = encoded.snapshot();
+    assertThat(second.length, equalTo(300));
+    assertThat(json(second), equalTo(chain.serialise()));
+    assertThat(gunzip(second), equalTo(chain.serialise()));
+
+    /* Older snapshots are still what they were */
+    assertThat(json(first), equalTo(firstJson));
+    assertThat(gunzip(first), equalTo(firstJson));
+  }
+
+  @Test
+  public void testUnchangedChainReusesTheSnapshot() {
+    Blockchain chain = new Blockchain(problemDifficulty);
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, problemDifficulty));
+    EncodedChain encoded = new EncodedChain(chain);
+
+    minePayloads(miner, 0, 3);
+    EncodedChain.Snapshot snapshot = encoded.snapshot();
+
+    assertThat(encoded.snapshot(), sameInstance(snapshot));
+    assertThat(snapshot.etag, equalTo(EncodedChain.etag(chain.tipHash())));
+  }
+
+  @Test
+  public void testIfNoneMatch() {
+    String etag = EncodedChain.etag(new byte[] { 1, 2 });
+
+    assertThat(EncodedChain.matches(null, etag), equalTo(false));
+    assertThat(EncodedChain.matches("\"0102\"", etag), equalTo(true));
+    assertThat(EncodedChain.matches("\"FFFF\", W/\"0102\"", etag), equalTo(true));
+    assertThat(EncodedChain.matches("*", etag), equalTo(true));
+    assertThat(EncodedChain.matches("\"FFFF\"", etag), equalTo(false));
+  }
+}
@@ -0,0 +1,214 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class LedgerCheckpointsTest extends TestBase {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testCheckpointRoundTrip() throws IOException {
+    File directory = folder.newFolder("checkpoints");
+    LedgerCheckpoints checkpoints = new LedgerCheckpoints(directory, 10);
+    BalanceTable balances = new BalanceTable();
+    balances.setBalance(balances.intern(senderKeys.getPublic().getEncoded()), 70);
+    balances.setBalance(balances.intern(receiverKeys.getPublic().getEncoded()), 30);
+
+    checkpoints.write(new LedgerCheckpoints.Checkpoint(10, new byte[] { 1, 2, 3 }, balances));
+    checkpoints.shutdown();
+
+    File[] files = directory.listFiles();
+    assertThat(files.length, equalTo(1));
+
+    LedgerCheckpoints.Checkpoint read = LedgerCheckpoints.read(files[0]);
+
+    assertThat(read.height(), equalTo(10));
+    assertThat(read.tipHash(), equalTo(new byte[] { 1, 2, 3 }));
+    assertThat(read.balances().balanceOf(senderKeys.getPublic().getEncoded()), equalTo(70L));
+    assertThat(read.balances().balanceOf(receiverKeys.getPublic().getEncoded()), equalTo(30L));
+  }
+
+  @Test
+  public void testLedgerReplaysOnlyBlocksAfterCheckpoint() throws IOException,
+                                                                  NoSuchAlgorithmException,
+                                                                  InvalidKeyException,
+                                                                  SignatureException,
+                                                                  Blockchain.WalkFailedException {
+    Blockchain chain = mineChain(30, -1);
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, problemDifficulty));
+    LedgerCheckpoints checkpoints = new LedgerCheckpoints(folder.newFolder("checkpoints"), 20);
+
+    /* Starting from nothing replays everything and takes a checkpoint */
+    AsynchronouslyMutableLedger full = new AsynchronouslyMutableLedger(chain, miner, checkpoints);
+    checkpoints.flush();
+
+    LedgerCheckpoints.Checkpoint checkpoint = checkpoints.newestMatching(chain);
+    assertThat(checkpoint.height(), equalTo(30));
+
+    /* Mine a few more blocks on top, then start over from the checkpoint */
+    for (int i = 0; i < 5; ++i) {
+      miner.waitFor(full.appendSignedTransaction(convenienceTransactionFromIntegerKeys(senderKeys.getPublic(),
+                                                                                       receiverKeys.getPublic(),
+                                                                                       2,
+                                                                                       senderKeys.getPrivate())));
+    }
+
+    final List<Integer> amounts = new ArrayList<Integer>();
+    Ledger resumed = new Ledger(chain, Arrays.asList(new Ledger.TransactionObserver[] {
+      new Ledger.TransactionObserver() {
+        public void consume(TransactionView transaction) {
+          amounts.add(transaction.amount());
+        }
+      }
+    }), checkpoints.newestMatching(chain));
+
+    assertThat(amounts.size(), equalTo(5));
+    assertThat(resumed.ownership.balanceOf(receiverKeys.getPublic().getEncoded()),
+               equalTo(new Ledger(chain).ownership.balanceOf(receiverKeys.getPublic().getEncoded())));
+  }
+
+  @Test
+  public void testCheckpointFromDivergedChainIsIgnored() throws IOException,
+                                                                NoSuchAlgorithmException,
+                                                                InvalidKeyException,
+                                                                SignatureException {
+    LedgerCheckpoints checkpoints = new LedgerCheckpoints(folder.newFolder("checkpoints"), 10);
+    Blockchain chain = mineChain(12, -1);
+
+    /* Signatures are deterministic, so put something else in this one */
+    Blockchain other = new Blockchain(problemDifficulty);
+    BlockMiner miner = registerForCleanup(new BlockMiner(other, problemDifficulty));
+    CompletableFuture<BlockMiner.MinedPayload> mined = null;
+    for (int i = 0; i < 12; ++i) {
+      mined = miner.appendPayload(new byte[] { (byte) i });
+    }
+    miner.waitFor(mined);
+
+    checkpoints.checkpoint(10, chain.blockAt(9).hash, new BalanceTable());
+    checkpoints.flush();
+
+    assertThat(checkpoints.newestMatching(chain).height(), equalTo(10));
+    assertThat(checkpoints.newestMatching(other), nullValue());
+  }
+
+  @Test
+  public void testMiningTakesCheckpointsAtInterval() throws IOException,
+                                                           NoSuchAlgorithmException,
+                                                           Blockchain.WalkFailedException,
+                                                           InvalidKeyException,
+                                                           SignatureException {
+    Blockchain chain = mineChain(1, -1);
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, problemDifficulty));
+    LedgerCheckpoints checkpoints = new LedgerCheckpoints(folder.newFolder("checkpoints"), 4);
+    AsynchronouslyMutableLedger ledger = new AsynchronouslyMutableLedger(chain, miner, checkpoints);
+
+    for (int i = 0; i < 6; ++i) {
+      miner.waitFor(ledger.appendSignedTransaction(convenienceTransactionFromIntegerKeys(senderKeys.getPublic(),
+                                                                                         receiverKeys.getPublic(),
+                                                                                         1,
+                                                                                         senderKeys.getPrivate())));
+    }
+    checkpoints.flush();
+
+    LedgerCheckpoints.Checkpoint checkpoint = checkpoints.newestMatching(chain);
+    assertThat(checkpoint.height(), equalTo(4));
+    assertThat(checkpoint.balances().balanceOf(receiverKeys.getPublic().getEncoded()), equalTo(3L));
+  }
+
+  @Test
+  public void testCheckpointWaitsForItsBlockToBeMined() throws IOException,
+                                                               NoSuchAlgorithmException,
+                                                               InvalidKeyException,
+                                                               SignatureException {
+    Blockchain chain = mineChain(3, -1);
+    LedgerCheckpoints checkpoints = new LedgerCheckpoints(folder.newFolder("checkpoints"), 4);
+    BalanceTable balances = new BalanceTable();
+    balances.setBalance(balances.intern(receiverKeys.getPublic().getEncoded()), 7);
+
+    /* The balances after four blocks are known before the fourth block is */
+    checkpoints.maybeCheckpoint(4, chain, balances);
+    balances.setBalance(0, 8);
+    checkpoints.flush();
+    assertThat(checkpoints.newestMatching(chain), nullValue());
+
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, problemDifficulty));
+    BlockMiner.MinedPayload mined = miner.appendPayload(new byte[] { 4 }).join();
+    checkpoints.blockMined(mined.height, mined.hash);
+    checkpoints.flush();
+
+    LedgerCheckpoints.Checkpoint checkpoint = checkpoints.newestMatching(chain);
+    assertThat(checkpoint.height(), equalTo(4));
+    assertThat(checkpoint.tipHash(), equalTo(chain.blockAt(3).hash));
+    assertThat(checkpoint.balances().balanceOf(receiverKeys.getPublic().getEncoded()), equalTo(7L));
+  }
+
+  @Test
+  public void testPendingCheckpointIsDroppedWhenMiningFails() throws IOException,
+                                                                     NoSuchAlgorithmException,
+                                                                     InvalidKeyException,
+                                                                     SignatureException {
+    Blockchain chain = mineChain(3, -1);
+    LedgerCheckpoints checkpoints = new LedgerCheckpoints(folder.newFolder("checkpoints"), 4);
+    BalanceTable balances = new BalanceTable();
+    balances.setBalance(balances.intern(receiverKeys.getPublic().getEncoded()), 7);
+
+    /* The balances counted a block that then couldn't be mined, so
+     * whatever ends up at that height has nothing to do with them */
+    checkpoints.maybeCheckpoint(4, chain, balances);
+    checkpoints.discardPending();
+
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, problemDifficulty));
+    miner.waitFor(miner.appendPayload(new byte[] { 4 }));
+    checkpoints.blockMined(3, chain.blockAt(3).hash);
+    checkpoints.flush();
+    assertThat(checkpoints.newestMatching(chain), nullValue());
+
+    /* Once the balances have been worked out again, the checkpoint can
+     * be taken after all */
+    balances.setBalance(0, 8);
+    checkpoints.maybeCheckpoint(4, chain, balances);
+    checkpoints.flush();
+
+    LedgerCheckpoints.Checkpoint checkpoint = checkpoints.newestMatching(chain);
+    assertThat(checkpoint.height(), equalTo(4));
+    assertThat(checkpoint.balances().balanceOf(receiverKeys.getPublic().getEncoded()), equalTo(8L));
+  }
+
+  @Test
+  public void testPendingCheckpointIsNotStampedWithALaterBlock() throws IOException,
+                                                                        NoSuchAlgorithmException,
+                                                                        InvalidKeyException,
+                                                                        SignatureException {
+    Blockchain chain = mineChain(3, -1);
+    File directory = folder.newFolder("checkpoints");
+    LedgerCheckpoints checkpoints = new LedgerCheckpoints(directory, 4);
+
+    /* If we never hear about the block the checkpoint was waiting for,
+     * the next one we hear about is not a stand in for it */
+    checkpoints.maybeCheckpoint(4, chain, new BalanceTable());
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, problemDifficulty));
+    miner.appendPayload(new byte[] { 3 });
+    BlockMiner.MinedPayload mined = miner.appendPayload(new byte[] { 4 }).join();
+    checkpoints.blockMined(mined.height, mined.hash);
+    checkpoints.blockMined(3, chain.blockAt(3).hash);
+    checkpoints.flush();
+
+    assertThat(mined.height, equalTo(4));
+    assertThat(directory.listFiles().length, equalTo(0));
+  }
+}
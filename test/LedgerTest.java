@@ -1,8 +1,12 @@
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import java.security.NoSuchAlgorithmException;
 import java.security.InvalidKeyException;
 import java.security.SignatureException;
+import java.security.spec.InvalidKeySpecException;
 
 import javax.xml.bind.DatatypeConverter;
 
@@ -299,4 +303,200 @@ public class LedgerTest extends TestBase {
     );
     assertThat(chain.tipHash(), not(tip));
   }
+
+  /* Mine a chain long enough that replaying it verifies signatures on
+   * several threads. The genesis block gives the sender 100 coins, then
+   * the sender pays the receiver one coin per block. If badIndex is
+   * positive, that block is signed with the wrong key */
+  @Test
+  public void testLongChainReplayObservesTransactionsInOrder() throws NoSuchAlgorithmException,
+                                                                      Blockchain.WalkFailedException,
+                                                                      InvalidKeyException,
+                                                                      SignatureException {
+    Blockchain chain = mineChain(80, -1);
+    final List<Integer> amounts = new ArrayList<Integer>();
+
+    new Ledger(chain, new Ledger.TransactionObserver() {
+      public void consume(TransactionView transaction) {
+        amounts.add(transaction.amount());
+      }
+    });
+
+    assertThat(amounts.size(), equalTo(80));
+    assertThat(amounts.get(0), equalTo(100));
+    assertThat(amounts.get(79), equalTo(1));
+  }
+
+  @Test(expected=Ledger.BlobSignatureValidationFailedException.class)
+  public void testLongChainReplayFailsOnBadSignature() throws NoSuchAlgorithmException,
+                                                              Blockchain.WalkFailedException,
+                                                              InvalidKeyException,
+                                                              SignatureException {
+    new Ledger(mineChain(80, 61));
+  }
+
+  @Test
+  public void testSignatureRunRecordsUndecodablePayloads() throws NoSuchAlgorithmException,
+                                                                  InvalidKeyException,
+                                                                  SignatureException {
+    Blockchain chain = mineChain(2, -1);
+    List<Block> blocks = new ArrayList<Block>(chain.snapshot().blocks());
+    blocks.add(new Block(new byte[] { 1, 2, 3 }, 0, chain.tipHash()));
+
+    /* Nothing after a payload that can't be checked may be applied as if
+     * it had been, so the run has to say so rather than skip it */
+    Ledger.SignatureFailure[] failures = Ledger.verifySignatureRun(blocks, 0, blocks.size());
+
+    assertThat(failures[0] == null, equalTo(true));
+    assertThat(failures[1] == null, equalTo(true));
+    assertThat(failures[2] == null, equalTo(false));
+    assertThat(failures[2].position, equalTo(0));
+  }
+
+  @Test
+  public void testRepeatedVerificationHitsCache() throws NoSuchAlgorithmException,
+                                                         InvalidKeyException,
+                                                         InvalidKeySpecException,
+                                                         SignatureException {
+    SignedObject blob = convenienceTransactionFromIntegerKeys(senderKeys.getPublic(),
+                                                              receiverKeys.getPublic(),
+                                                              20,
+                                                              senderKeys.getPrivate());
+    byte[] key = senderKeys.getPublic().getEncoded();
+
+    assertThat(SignedObject.signatureIsValid(blob.payload, blob.signature, key), equalTo(true));
+    long hits = SignedObject.verifiedSignatureCache().hits();
+    assertThat(SignedObject.signatureIsValid(blob.payload, blob.signature, key), equalTo(true));
+    assertThat(SignedObject.verifiedSignatureCache().hits(), equalTo(hits + 1));
+
+    /* Having seen the genuine transaction shouldn't help a tampered one */
+    byte[] tampered = Transaction.withMutations(blob.payload, new Transaction.Mutator() {
+      public void mutate(Transaction transaction) {
+        transaction.amount += 1;
+      }
+    });
+    assertThat(SignedObject.signatureIsValid(tampered, blob.signature, key), equalTo(false));
+  }
+
+  @Test
+  public void testBlockViewReadsTransactionInPlace() throws NoSuchAlgorithmException,
+                                                            InvalidKeyException,
+                                                            SignatureException,
+                                                            InvalidKeySpecException {
+    SignedObject blob = convenienceTransactionFromIntegerKeys(senderKeys.getPublic(),
+                                                              receiverKeys.getPublic(),
+                                                              20,
+                                                              senderKeys.getPrivate());
+    BlockView view = new BlockView(blob.serialize());
+    Transaction transaction = new Transaction(blob.payload);
+
+    assertThat(view.transaction().amount(), equalTo(transaction.amount));
+    assertThat(view.transaction().sPubKey(), equalTo(transaction.sPubKey));
+    assertThat(view.transaction().rPubKey(), equalTo(transaction.rPubKey));
+    assertThat(view.signedObject().signature(), equalTo(blob.signature));
+    assertThat(view.transaction().senderIs(new WalletId(senderKeys.getPublic().getEncoded())),
+               equalTo(true));
+    assertThat(view.signedObject().signedBySender(), equalTo(true));
+  }
+
+  @Test
+  public void testBatchedTransactionsShareABlock() throws NoSuchAlgorithmException,
+                                                          Blockchain.WalkFailedException,
+                                                          InvalidKeyException,
+                                                          SignatureException {
+    Blockchain chain = new Blockchain(problemDifficulty);
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain,
+                                                         null,
+                                                         problemDifficulty,
+                                                         new MiningEngine(1),
+                                                         null,
+                                                         new BlockMiner.BatchPolicy(10, 500)));
+    AsynchronouslyMutableLedger ledger = new AsynchronouslyMutableLedger(chain, miner);
+    miner.waitFor(ledger.appendSignedTransaction(convenienceTransactionFromIntegerKeys(senderKeys.getPublic(),
+                                                                                       senderKeys.getPublic(),
+                                                                                       50,
+                                                                                       senderKeys.getPrivate())));
+
+    CompletableFuture<BlockMiner.MinedPayload> mined = null;
+    for (int i = 1; i <= 5; ++i) {
+      mined = ledger.appendSignedTransaction(convenienceTransactionFromIntegerKeys(senderKeys.getPublic(),
+                                                                                   receiverKeys.getPublic(),
+                                                                                   i,
+                                                                                   senderKeys.getPrivate()));
+    }
+    miner.waitFor(mined);
+
+    assertThat(chain.length(), equalTo(2));
+    assertThat(chain.blockAt(1).view().transactionCount(), equalTo(5));
+
+    final List<Integer> amounts = new ArrayList<Integer>();
+    Ledger replayed = new Ledger(chain, new Ledger.TransactionObserver() {
+      public void consume(TransactionView transaction) {
+        amounts.add(transaction.amount());
+      }
+    });
+
+    assertThat(amounts.size(), equalTo(6));
+    assertThat(amounts.get(5), equalTo(5));
+    assertThat(replayed.ownership.balanceOf(receiverKeys.getPublic().getEncoded()), equalTo(15L));
+  }
+
+  @Test
+  public void testInvalidTransactionIsDroppedFromBatch() throws NoSuchAlgorithmException,
+                                                                Blockchain.WalkFailedException,
+                                                                InvalidKeyException,
+                                                                SignatureException {
+    Blockchain chain = new Blockchain(problemDifficulty);
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain,
+                                                         null,
+                                                         problemDifficulty,
+                                                         new MiningEngine(1),
+                                                         null,
+                                                         new BlockMiner.BatchPolicy(10, 500)));
+    AsynchronouslyMutableLedger ledger = new AsynchronouslyMutableLedger(chain, miner);
+    miner.waitFor(ledger.appendSignedTransaction(convenienceTransactionFromIntegerKeys(senderKeys.getPublic(),
+                                                                                       senderKeys.getPublic(),
+                                                                                       50,
+                                                                                       senderKeys.getPrivate())));
+
+    /* The second one spends more than is left after the first one */
+    ledger.appendSignedTransaction(convenienceTransactionFromIntegerKeys(senderKeys.getPublic(),
+                                                                         receiverKeys.getPublic(),
+                                                                         30,
+                                                                         senderKeys.getPrivate()));
+    ledger.appendSignedTransaction(convenienceTransactionFromIntegerKeys(senderKeys.getPublic(),
+                                                                         receiverKeys.getPublic(),
+                                                                         30,
+                                                                         senderKeys.getPrivate()));
+    miner.waitFor(ledger.appendSignedTransaction(convenienceTransactionFromIntegerKeys(senderKeys.getPublic(),
+                                                                                       receiverKeys.getPublic(),
+                                                                                       10,
+                                                                                       senderKeys.getPrivate())));
+
+    assertThat(chain.length(), equalTo(2));
+    assertThat(chain.blockAt(1).view().transactionCount(), equalTo(2));
+    assertThat(new Ledger(chain).ownership.balanceOf(receiverKeys.getPublic().getEncoded()), equalTo(40L));
+  }
+
+  @Test(expected=Ledger.BlobSignatureValidationFailedException.class)
+  public void testReplayFailsOnBadSignatureInsideBatch() throws NoSuchAlgorithmException,
+                                                                Blockchain.WalkFailedException,
+                                                                InvalidKeyException,
+                                                                SignatureException {
+    Blockchain chain = mineChain(40, -1);
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, problemDifficulty));
+    List<byte[]> batch = new ArrayList<byte[]>();
+
+    batch.add(convenienceTransactionPayloadFromIntegerKeys(senderKeys.getPublic(),
+                                                           receiverKeys.getPublic(),
+                                                           1,
+                                                           senderKeys.getPrivate()));
+    batch.add(convenienceTransactionPayloadFromIntegerKeys(senderKeys.getPublic(),
+                                                           receiverKeys.getPublic(),
+                                                           1,
+                                                           receiverKeys.getPrivate()));
+    miner.waitFor(miner.appendPayload(BlockView.batchPayload(batch)));
+
+    new Ledger(chain);
+  }
 }
@@ -0,0 +1,167 @@
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class MempoolTest extends TestBase {
+  BlockMiner.HashWorker.HashJob job(byte[] payload) {
+    return new BlockMiner.HashWorker.HashJob(payload, problemDifficulty, null);
+  }
+
+  BlockMiner.HashWorker.HashJob payment(KeyPair from,
+                                        KeyPair to,
+                                        int amount) throws NoSuchAlgorithmException,
+                                                           InvalidKeyException,
+                                                           SignatureException {
+    return job(convenienceTransactionPayloadFromIntegerKeys(from.getPublic(),
+                                                            to.getPublic(),
+                                                            amount,
+                                                            from.getPrivate()));
+  }
+
+  static int amountOf(BlockMiner.HashWorker.HashJob job) {
+    return new TransactionView(job.payload).amount();
+  }
+
+  @Test
+  public void testDuplicatesAreDroppedUntilMined() throws InterruptedException {
+    Mempool mempool = new Mempool();
+    List<BlockMiner.HashWorker.HashJob> evicted = new ArrayList<BlockMiner.HashWorker.HashJob>();
+
+    assertThat(mempool.add(job(new byte[] { 1 }), evicted), equalTo(Mempool.Admission.ADDED));
+    assertThat(mempool.add(job(new byte[] { 1 }), evicted), equalTo(Mempool.Admission.DUPLICATE));
+
+    /* Still a duplicate while it is being mined */
+    BlockMiner.HashWorker.HashJob taken = mempool.take();
+    assertThat(mempool.add(job(new byte[] { 1 }), evicted), equalTo(Mempool.Admission.DUPLICATE));
+
+    List<BlockMiner.HashWorker.HashJob> mined = new ArrayList<BlockMiner.HashWorker.HashJob>();
+    mined.add(taken);
+    mempool.done(mined);
+    assertThat(mempool.add(job(new byte[] { 1 }), evicted), equalTo(Mempool.Admission.ADDED));
+    assertThat(mempool.stats().duplicatesDropped, equalTo(2L));
+  }
+
+  @Test
+  public void testBusySenderDoesNotStarveOthers() throws NoSuchAlgorithmException,
+                                                         InvalidKeyException,
+                                                         SignatureException,
+                                                         InterruptedException {
+    Mempool mempool = new Mempool();
+    List<BlockMiner.HashWorker.HashJob> evicted = new ArrayList<BlockMiner.HashWorker.HashJob>();
+
+    for (int i = 1; i <= 5; ++i) {
+      mempool.add(payment(senderKeys, receiverKeys, i), evicted);
+    }
+    mempool.add(payment(receiverKeys, senderKeys, 100), evicted);
+
+    /* The receiver only turned up after five of the sender's payments,
+     * but gets the second turn */
+    assertThat(amountOf(mempool.take()), equalTo(1));
+    assertThat(amountOf(mempool.take()), equalTo(100));
+    assertThat(amountOf(mempool.take()), equalTo(2));
+  }
+
+  @Test
+  public void testHigherPriorityGoesFirst() throws NoSuchAlgorithmException,
+                                                   InvalidKeyException,
+                                                   SignatureException,
+                                                   InterruptedException {
+    Mempool mempool = new Mempool(Mempool.defaultMaxBytes, new Mempool.Priority() {
+      public long of(byte[] payload) {
+        return new TransactionView(payload).amount();
+      }
+    });
+    List<BlockMiner.HashWorker.HashJob> evicted = new ArrayList<BlockMiner.HashWorker.HashJob>();
+
+    mempool.add(payment(senderKeys, receiverKeys, 1), evicted);
+    mempool.add(payment(senderKeys, receiverKeys, 3), evicted);
+    mempool.add(payment(senderKeys, receiverKeys, 2), evicted);
+
+    assertThat(amountOf(mempool.take()), equalTo(3));
+    assertThat(amountOf(mempool.take()), equalTo(2));
+    assertThat(amountOf(mempool.take()), equalTo(1));
+  }
+
+  @Test
+  public void testHeaviestSenderIsEvictedOverBudget() throws NoSuchAlgorithmException,
+                                                             InvalidKeyException,
+                                                             SignatureException,
+                                                             InterruptedException {
+    Mempool mempool = new Mempool(Globals.nBytesSignedTransaction * 3, Mempool.FIFO);
+    List<BlockMiner.HashWorker.HashJob> evicted = new ArrayList<BlockMiner.HashWorker.HashJob>();
+
+    mempool.add(payment(senderKeys, receiverKeys, 1), evicted);
+    mempool.add(payment(senderKeys, receiverKeys, 2), evicted);
+    mempool.add(payment(senderKeys, receiverKeys, 3), evicted);
+    assertThat(evicted.size(), equalTo(0));
+
+    /* The sender's newest payment makes way for the receiver's */
+    assertThat(mempool.add(payment(receiverKeys, senderKeys, 10), evicted),
+               equalTo(Mempool.Admission.ADDED));
+    assertThat(evicted.size(), equalTo(1));
+    assertThat(amountOf(evicted.get(0)), equalTo(3));
+
+    /* Once they are even, the newest payment is the one that goes */
+    assertThat(mempool.add(payment(receiverKeys, senderKeys, 20), evicted),
+               equalTo(Mempool.Admission.EVICTED));
+    assertThat(mempool.size(), equalTo(3));
+    assertThat(mempool.stats().bytes, equalTo((long) Globals.nBytesSignedTransaction * 3));
+  }
+
+  @Test
+  public void testAddAllReportsEachJob() throws InterruptedException {
+    Mempool mempool = new Mempool();
+    List<BlockMiner.HashWorker.HashJob> evicted = new ArrayList<BlockMiner.HashWorker.HashJob>();
+    List<BlockMiner.HashWorker.HashJob> jobs = new ArrayList<BlockMiner.HashWorker.HashJob>();
+
+    jobs.add(job(new byte[] { 1 }));
+    jobs.add(job(new byte[] { 2 }));
+    jobs.add(job(new byte[] { 1 }));
+
+    List<Mempool.Admission> admissions = mempool.addAll(jobs, evicted);
+    assertThat(admissions.get(0), equalTo(Mempool.Admission.ADDED));
+    assertThat(admissions.get(1), equalTo(Mempool.Admission.ADDED));
+    assertThat(admissions.get(2), equalTo(Mempool.Admission.DUPLICATE));
+    assertThat(mempool.take().payload, equalTo(new byte[] { 1 }));
+    assertThat(mempool.take().payload, equalTo(new byte[] { 2 }));
+  }
+
+  @Test
+  public void testCloseHandsOutWhatIsLeft() throws InterruptedException {
+    Mempool mempool = new Mempool();
+    List<BlockMiner.HashWorker.HashJob> evicted = new ArrayList<BlockMiner.HashWorker.HashJob>();
+
+    mempool.add(job(new byte[] { 1 }), evicted);
+    mempool.close();
+
+    assertThat(mempool.take().payload, equalTo(new byte[] { 1 }));
+    assertThat(mempool.take(), nullValue());
+    assertThat(mempool.poll(10), nullValue());
+  }
+
+  @Test
+  public void testStatsReportAges() throws InterruptedException {
+    Mempool mempool = new Mempool();
+    List<BlockMiner.HashWorker.HashJob> evicted = new ArrayList<BlockMiner.HashWorker.HashJob>();
+
+    mempool.add(job(new byte[] { 1 }), evicted);
+    Thread.sleep(50);
+    mempool.add(job(new byte[] { 2 }), evicted);
+
+    Mempool.Stats stats = mempool.stats();
+    assertThat(stats.size, equalTo(2));
+    assertThat(stats.bytes, equalTo(2L));
+    assertThat(stats.oldestAgeMs >= 50, equalTo(true));
+    assertThat(stats.medianAgeMs <= stats.oldestAgeMs, equalTo(true));
+  }
+}
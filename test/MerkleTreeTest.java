@@ -0,0 +1,68 @@
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class MerkleTreeTest {
+  static byte[][] leaves(int count) throws NoSuchAlgorithmException {
+    byte[][] leaves = new byte[count][];
+    for (int i = 0; i < count; ++i) {
+      byte[] data = new byte[] { (byte) i, (byte) (i * 7) };
+      leaves[i] = MerkleTree.leafHash(data, 0, data.length);
+    }
+
+    return leaves;
+  }
+
+  @Test
+  public void testSingleLeafIsTheRoot() throws NoSuchAlgorithmException {
+    byte[][] leaves = leaves(1);
+    MerkleTree tree = new MerkleTree(leaves);
+
+    assertThat(tree.root(), equalTo(leaves[0]));
+    assertThat(tree.proof(0).siblings.length, equalTo(0));
+  }
+
+  @Test
+  public void testEveryLeafHasAValidProof() throws NoSuchAlgorithmException {
+    /* Odd counts exercise the hashes that move up a level on their own */
+    for (int count = 1; count <= 9; ++count) {
+      MerkleTree tree = new MerkleTree(leaves(count));
+      for (int position = 0; position < count; ++position) {
+        assertThat(tree.proof(position).verify(tree.root()), equalTo(true));
+      }
+    }
+  }
+
+  @Test
+  public void testProofForAnotherLeafFails() throws NoSuchAlgorithmException {
+    MerkleTree tree = new MerkleTree(leaves(5));
+    MerkleTree.Proof proof = tree.proof(2);
+    MerkleTree.Proof swapped = new MerkleTree.Proof(leaves(5)[3],
+                                                    proof.siblings,
+                                                    proof.siblingOnLeft);
+
+    assertThat(swapped.verify(tree.root()), equalTo(false));
+  }
+
+  @Test
+  public void testTamperedSiblingFails() throws NoSuchAlgorithmException {
+    MerkleTree tree = new MerkleTree(leaves(6));
+    MerkleTree.Proof proof = tree.proof(4);
+    proof.siblings[0][0] ^= 1;
+
+    assertThat(proof.verify(tree.root()), equalTo(false));
+  }
+
+  @Test
+  public void testChangingALeafChangesTheRoot() throws NoSuchAlgorithmException {
+    byte[][] leaves = leaves(4);
+    byte[] root = new MerkleTree(leaves).root();
+    leaves[1] = leaves[2];
+
+    assertThat(Arrays.equals(new MerkleTree(leaves).root(), root), equalTo(false));
+  }
+}
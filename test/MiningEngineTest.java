@@ -0,0 +1,68 @@
+import java.util.Random;
+
+import java.security.NoSuchAlgorithmException;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class MiningEngineTest {
+  private static final long problemDifficulty = 6;
+
+  static byte[] randomPayload(long seed) {
+    byte[] payload = new byte[848];
+    new Random(seed).nextBytes(payload);
+    return payload;
+  }
+
+  @Test
+  public void testParallelNonceSatisfiesDifficulty() throws NoSuchAlgorithmException,
+                                                            Block.MiningException {
+    byte[] payload = randomPayload(0);
+    byte[] parentHash = new byte[32];
+    MiningEngine engine = new MiningEngine(4);
+
+    try {
+      MiningEngine.Result result = engine.mine(payload, parentHash, problemDifficulty);
+      Block block = new Block(payload, result.nonce, parentHash);
+
+      assertThat(Block.satisfiesProblemDifficulty(block.hash, problemDifficulty), equalTo(true));
+      assertThat(result.attempts > 0, equalTo(true));
+    } finally {
+      engine.shutdown();
+    }
+  }
+
+  @Test
+  public void testSimulatedModeChargesVirtualClock() throws NoSuchAlgorithmException,
+                                                            Block.MiningException {
+    MiningEngine engine = new MiningEngine(1, MiningEngine.Mode.SIMULATED);
+
+    try {
+      MiningEngine.Result first = engine.mine(randomPayload(1), null, problemDifficulty);
+      MiningEngine.Result second = engine.mine(randomPayload(2), null, problemDifficulty);
+
+      /* Each attempt costs 2 ^ problemDifficulty virtual milliseconds, and
+       * the clock keeps running across blocks */
+      long cost = MiningEngine.simulatedAttemptCostMs(problemDifficulty);
+      assertThat(first.elapsedMs, equalTo(first.attempts * cost));
+      assertThat(engine.clock().now(), equalTo((first.attempts + second.attempts) * cost));
+    } finally {
+      engine.shutdown();
+    }
+  }
+
+  @Test
+  public void testRealModeDoesNotMoveVirtualClock() throws NoSuchAlgorithmException,
+                                                           Block.MiningException {
+    MiningEngine engine = new MiningEngine(2, MiningEngine.Mode.REAL);
+
+    try {
+      engine.mine(randomPayload(3), null, problemDifficulty);
+      assertThat(engine.clock().now(), equalTo(0L));
+    } finally {
+      engine.shutdown();
+    }
+  }
+}
@@ -0,0 +1,83 @@
+import java.util.Random;
+
+import java.math.BigInteger;
+
+import java.nio.ByteBuffer;
+
+import java.security.NoSuchAlgorithmException;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class MiningHasherTest {
+  static byte[] referenceHash(byte[] parentHash,
+                              byte[] payload,
+                              int nonce) throws NoSuchAlgorithmException {
+    byte[] contents = Globals.concatByteArrays(new byte[][] {
+      parentHash,
+      payload,
+      ByteBuffer.allocate(Globals.nBytesNonce).putInt(nonce).array()
+    });
+    return Blockchain.mkHash(contents, 0, contents.length);
+  }
+
+  @Test
+  public void testHashMatchesMessageDigestForAllTailLengths() throws NoSuchAlgorithmException {
+    Random random = new Random(0);
+    byte[] parentHash = new byte[32];
+    random.nextBytes(parentHash);
+
+    /* Cover every possible amount of prefix left over after the midstate,
+     * including the cases where the padding spills into a second chunk */
+    for (int length = 0; length < 200; ++length) {
+      byte[] payload = new byte[length];
+      random.nextBytes(payload);
+
+      MiningHasher hasher = new MiningHasher(parentHash, payload);
+      for (int nonce = 0; nonce < 3; ++nonce) {
+        assertThat(hasher.hash(nonce), equalTo(referenceHash(parentHash, payload, nonce)));
+      }
+    }
+  }
+
+  @Test
+  public void testHashMatchesMessageDigestWithoutParent() throws NoSuchAlgorithmException {
+    byte[] payload = new byte[848];
+    new Random(1).nextBytes(payload);
+
+    MiningHasher hasher = new MiningHasher(null, payload);
+    assertThat(hasher.hash(Integer.MAX_VALUE),
+               equalTo(referenceHash(new byte[0], payload, Integer.MAX_VALUE)));
+  }
+
+  @Test
+  public void testHashMatchesBlockHeader() throws NoSuchAlgorithmException {
+    Random random = new Random(3);
+    byte[] parentHash = new byte[32];
+    byte[] merkleRoot = new byte[32];
+    random.nextBytes(parentHash);
+    random.nextBytes(merkleRoot);
+
+    MiningHasher hasher = new MiningHasher(parentHash, merkleRoot);
+    assertThat(hasher.hash(12345), equalTo(new BlockHeader(parentHash, merkleRoot, 12345).hash()));
+  }
+
+  @Test
+  public void testLeadingZeroBitsAgreesWithTarget() throws NoSuchAlgorithmException {
+    Random random = new Random(2);
+    byte[] payload = new byte[64];
+    random.nextBytes(payload);
+
+    MiningHasher hasher = new MiningHasher(null, payload);
+    for (int nonce = 0; nonce < 2000; ++nonce) {
+      byte[] hash = hasher.hash(nonce);
+      for (int difficulty = 0; difficulty < 12; ++difficulty) {
+        BigInteger target = BigInteger.ZERO.setBit(255 - difficulty);
+        assertThat(Block.satisfiesProblemDifficulty(hash, difficulty),
+                   equalTo(Block.satisfiesProblemDifficultyForTarget(hash, target)));
+      }
+    }
+  }
+}
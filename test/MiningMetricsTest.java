@@ -0,0 +1,62 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class MiningMetricsTest extends TestBase {
+  @Test
+  public void testHistogramBucketsAreCumulative() {
+    MiningMetrics.Histogram histogram = new MiningMetrics.Histogram(new long[] { 10, 100 }, 1000);
+    histogram.observe(5);
+    histogram.observe(10);
+    histogram.observe(50);
+    histogram.observe(5000);
+
+    StringBuilder out = new StringBuilder();
+    histogram.write(out, "test_seconds", "Some times.");
+    String text = out.toString();
+
+    assertThat(histogram.count(), equalTo(4L));
+    assertThat(text, containsString("# TYPE test_seconds histogram\n"));
+    assertThat(text, containsString("test_seconds_bucket{le=\"0.01\"} 2\n"));
+    assertThat(text, containsString("test_seconds_bucket{le=\"0.1\"} 3\n"));
+    assertThat(text, containsString("test_seconds_bucket{le=\"+Inf\"} 4\n"));
+    assertThat(text, containsString("test_seconds_sum 5.065\n"));
+    assertThat(text, containsString("test_seconds_count 4\n"));
+  }
+
+  @Test
+  public void testMinerRecordsWhatItDid() {
+    final List<Integer> indices = Collections.synchronizedList(new ArrayList<Integer>());
+    Blockchain chain = new Blockchain(problemDifficulty);
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, problemDifficulty));
+
+    miner.appendPayload(new byte[] { 1 }, BlockMinerTest.recordingValidator(indices, new CountDownLatch(1)));
+    miner.appendPayload(new byte[] { 0 }, BlockMinerTest.recordingValidator(indices, new CountDownLatch(1)));
+    miner.waitFor(miner.appendPayload(new byte[] { 2 }, BlockMinerTest.recordingValidator(indices, new CountDownLatch(1))));
+
+    MiningMetrics metrics = miner.metrics();
+    assertThat(metrics.blocks(), equalTo(2L));
+    assertThat(metrics.failures(), equalTo(0L));
+    assertThat(metrics.attemptsPerBlock().count(), equalTo(2L));
+    assertThat(metrics.attemptsPerBlock().sum(), equalTo(metrics.attempts()));
+    assertThat(metrics.payloadLatency().count(), equalTo(2L));
+    assertThat(metrics.validationTime().count(), equalTo(3L));
+
+    StringBuilder out = new StringBuilder();
+    metrics.write(out, miner.mempoolStats());
+    String text = out.toString();
+
+    assertThat(text, containsString("chain_mining_attempts_total " + metrics.attempts() + "\n"));
+    assertThat(text, containsString("chain_mining_blocks_total 2\n"));
+    assertThat(text, containsString("chain_mining_payloads_rejected_total 1\n"));
+    assertThat(text, containsString("chain_mempool_payloads 0\n"));
+  }
+}
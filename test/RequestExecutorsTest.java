@@ -0,0 +1,95 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class RequestExecutorsTest {
+  RequestExecutors executors;
+
+  @After
+  public void tearDown() {
+    if (executors != null) {
+      executors.shutdown();
+    }
+  }
+
+  static Runnable blockUntil(final CountDownLatch started, final CountDownLatch release) {
+    return new Runnable() {
+      public void run() {
+        started.countDown();
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+        }
+      }
+    };
+  }
+
+  static Runnable countDown(final CountDownLatch latch) {
+    return new Runnable() {
+      public void run() {
+        latch.countDown();
+      }
+    };
+  }
+
+  @Test
+  public void testBusyDownloadsDoNotHoldUpSubmissions() throws InterruptedException {
+    executors = new RequestExecutors(RequestExecutors.Mode.PLATFORM, 2, 1, 0);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch submitted = new CountDownLatch(1);
+
+    assertThat(executors.submit(RequestExecutors.EndpointClass.BULK, blockUntil(started, release)), equalTo(true));
+    assertThat(started.await(10, TimeUnit.SECONDS), equalTo(true));
+
+    /* The only download thread is busy and there is no queue, but
+     * transactions have a pool of their own */
+    assertThat(executors.submit(RequestExecutors.EndpointClass.BULK, countDown(new CountDownLatch(1))),
+               equalTo(false));
+    assertThat(executors.submit(RequestExecutors.EndpointClass.SUBMIT, countDown(submitted)), equalTo(true));
+    assertThat(submitted.await(10, TimeUnit.SECONDS), equalTo(true));
+
+    RequestExecutors.Stats bulk = executors.stats(RequestExecutors.EndpointClass.BULK);
+    assertThat(bulk.active, equalTo(1));
+    assertThat(bulk.rejected, equalTo(1L));
+    release.countDown();
+  }
+
+  @Test
+  public void testQueueDepthIsReported() throws InterruptedException {
+    executors = new RequestExecutors(RequestExecutors.Mode.PLATFORM, 1, 1, 2);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch finished = new CountDownLatch(2);
+
+    executors.submit(RequestExecutors.EndpointClass.QUERY, blockUntil(started, release));
+    assertThat(started.await(10, TimeUnit.SECONDS), equalTo(true));
+    executors.submit(RequestExecutors.EndpointClass.QUERY, countDown(finished));
+    executors.submit(RequestExecutors.EndpointClass.QUERY, countDown(finished));
+
+    assertThat(executors.stats(RequestExecutors.EndpointClass.QUERY).queueDepth, equalTo(2));
+    assertThat(executors.submit(RequestExecutors.EndpointClass.QUERY, countDown(finished)), equalTo(false));
+
+    release.countDown();
+    assertThat(finished.await(10, TimeUnit.SECONDS), equalTo(true));
+    assertThat(executors.stats(RequestExecutors.EndpointClass.QUERY).queueDepth, equalTo(0));
+  }
+
+  @Test
+  public void testVirtualThreadsFallBackWhenUnavailable() throws InterruptedException {
+    executors = new RequestExecutors(RequestExecutors.Mode.VIRTUAL, 1, 1, 0);
+    CountDownLatch ran = new CountDownLatch(1);
+
+    assertThat(executors.mode(),
+               equalTo(RequestExecutors.virtualThreadsAvailable() ?
+                       RequestExecutors.Mode.VIRTUAL :
+                       RequestExecutors.Mode.PLATFORM));
+    assertThat(executors.submit(RequestExecutors.EndpointClass.SUBMIT, countDown(ran)), equalTo(true));
+    assertThat(ran.await(10, TimeUnit.SECONDS), equalTo(true));
+  }
+}
@@ -1,5 +1,6 @@
 import java.util.List;
 import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
 
 import java.security.Key;
 import java.security.KeyPair;
@@ -56,6 +57,45 @@ public class TestBase {
     return miner;
   }
 
+  /* Mine a chain of length blocks, each holding a payment from the sender
+   * to the receiver, except the first, which pays the sender 100. The
+   * payment at badIndex is signed with the wrong key. */
+  Blockchain mineChain(int length, int badIndex) throws NoSuchAlgorithmException,
+                                                        InvalidKeyException,
+                                                        SignatureException {
+    Blockchain chain = new Blockchain(problemDifficulty);
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, problemDifficulty));
+    CompletableFuture<BlockMiner.MinedPayload> mined;
+
+    mined = miner.appendPayload(convenienceTransactionPayloadFromIntegerKeys(senderKeys.getPublic(),
+                                                                             senderKeys.getPublic(),
+                                                                             100,
+                                                                             senderKeys.getPrivate()));
+    for (int i = 1; i < length; ++i) {
+      /* Every payment is the same signed transaction, which the mempool
+       * would drop if it was still waiting, so let each one get mined */
+      miner.waitFor(mined);
+      mined = miner.appendPayload(convenienceTransactionPayloadFromIntegerKeys(senderKeys.getPublic(),
+                                                                               receiverKeys.getPublic(),
+                                                                               1,
+                                                                               i == badIndex ?
+                                                                               receiverKeys.getPrivate() :
+                                                                               senderKeys.getPrivate()));
+    }
+    miner.waitFor(mined);
+    return chain;
+  }
+
+  /* Mine the raw payloads numbered from up to to, which are not
+   * transactions and are all different from each other */
+  static void minePayloads(BlockMiner miner, int from, int to) {
+    CompletableFuture<BlockMiner.MinedPayload> mined = null;
+    for (int i = from; i < to; ++i) {
+      mined = miner.appendPayload(new byte[] { (byte) i, (byte) (i >> 8) });
+    }
+    miner.waitFor(mined);
+  }
+
   static SignedObject convenienceTransactionFromIntegerKeys(PublicKey sPubKey,
                                                             PublicKey rPubKey,
                                                             int amount,
@@ -0,0 +1,123 @@
+import java.io.IOException;
+import java.io.StringReader;
+
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.DatatypeConverter;
+
+import com.google.gson.JsonParseException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class TransactionBatchTest extends TestBase {
+  TransactionTracker tracker = new TransactionTracker();
+
+  @After
+  public void shutdownTracker() {
+    tracker.shutdown();
+  }
+
+  static Models.Transaction record(KeyPair from, KeyPair to, int amount) throws NoSuchAlgorithmException,
+                                                                                 InvalidKeyException,
+                                                                                 SignatureException {
+    SignedObject blob = convenienceTransactionFromIntegerKeys(from.getPublic(),
+                                                              to.getPublic(),
+                                                              amount,
+                                                              from.getPrivate());
+    return new Models.Transaction(DatatypeConverter.printHexBinary(from.getPublic().getEncoded()),
+                                  DatatypeConverter.printHexBinary(to.getPublic().getEncoded()),
+                                  amount,
+                                  DatatypeConverter.printHexBinary(blob.signature));
+  }
+
+  static String json(List<Models.Transaction> records) {
+    StringBuilder builder = new StringBuilder("[");
+    for (int i = 0; i < records.size(); ++i) {
+      builder.append(i > 0 ? "," : "").append(records.get(i).serialise());
+    }
+
+    return builder.append("]").toString();
+  }
+
+  @Test
+  public void testReadsEachTransaction() throws NoSuchAlgorithmException,
+                                                InvalidKeyException,
+                                                SignatureException,
+                                                IOException,
+                                                TransactionBatch.TooLargeException {
+    List<Models.Transaction> records = new ArrayList<Models.Transaction>();
+    records.add(record(senderKeys, receiverKeys, 10));
+    records.add(record(senderKeys, receiverKeys, 20));
+
+    List<Models.Transaction> read = TransactionBatch.read(new StringReader(json(records)), 2);
+    assertThat(read.size(), equalTo(2));
+    assertThat(read.get(1).amount, equalTo(20));
+    assertThat(read.get(1).signature, equalTo(records.get(1).signature));
+  }
+
+  @Test(expected=TransactionBatch.TooLargeException.class)
+  public void testTooManyTransactions() throws NoSuchAlgorithmException,
+                                               InvalidKeyException,
+                                               SignatureException,
+                                               IOException,
+                                               TransactionBatch.TooLargeException {
+    List<Models.Transaction> records = new ArrayList<Models.Transaction>();
+    records.add(record(senderKeys, receiverKeys, 10));
+    records.add(record(senderKeys, receiverKeys, 20));
+
+    TransactionBatch.read(new StringReader(json(records)), 1);
+  }
+
+  @Test
+  public void testMalformedBatch() throws TransactionBatch.TooLargeException {
+    try {
+      TransactionBatch.read(new StringReader("[{\"amount\": \"lots\"}]"), 10);
+      fail("Expected the batch to be rejected");
+    } catch (JsonParseException e) {
+    } catch (IOException e) {
+    }
+  }
+
+  @Test
+  public void testSubmitMinesTheBatchAndRejectsNonsenseEarly() throws NoSuchAlgorithmException,
+                                                                      InvalidKeyException,
+                                                                      SignatureException,
+                                                                      Blockchain.WalkFailedException {
+    Blockchain chain = new Blockchain(problemDifficulty);
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, problemDifficulty));
+    AsynchronouslyMutableLedger ledger = new AsynchronouslyMutableLedger(chain, miner);
+
+    List<Models.Transaction> records = new ArrayList<Models.Transaction>();
+    records.add(record(senderKeys, senderKeys, 50));
+    records.add(new Models.Transaction("NOT HEX", "", 10, ""));
+    records.add(record(senderKeys, receiverKeys, 20));
+    records.add(record(senderKeys, receiverKeys, 5));
+
+    List<Models.TransactionStatus> statuses = TransactionBatch.submit(records, ledger, tracker);
+    assertThat(statuses.size(), equalTo(4));
+
+    assertThat(statuses.get(1).status, equalTo(Models.TransactionStatus.REJECTED));
+    assertThat(statuses.get(1).rejection, equalTo(BlockMiner.PayloadRejectedException.Reason.INVALID.name()));
+    assertThat(statuses.get(1).id, nullValue());
+
+    assertThat(tracker.await(statuses.get(0).id, 10000).join().status,
+               equalTo(Models.TransactionStatus.MINED));
+    assertThat(tracker.await(statuses.get(2).id, 10000).join().status,
+               equalTo(Models.TransactionStatus.MINED));
+    assertThat(tracker.await(statuses.get(3).id, 10000).join().status,
+               equalTo(Models.TransactionStatus.MINED));
+    assertThat(new Ledger(chain).ownership.balanceOf(receiverKeys.getPublic().getEncoded()), equalTo(25L));
+  }
+}
@@ -0,0 +1,56 @@
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class TransactionIndexTest extends TestBase {
+  @Test
+  public void testFindsTransactionsMinedAfterTheFirstLookup() throws NoSuchAlgorithmException,
+                                                                     InvalidKeyException,
+                                                                     SignatureException {
+    Blockchain chain = new Blockchain(problemDifficulty);
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, problemDifficulty));
+    TransactionIndex index = new TransactionIndex(chain);
+    byte[] first = convenienceTransactionPayloadFromIntegerKeys(senderKeys.getPublic(),
+                                                                receiverKeys.getPublic(),
+                                                                1,
+                                                                senderKeys.getPrivate());
+    byte[] second = convenienceTransactionPayloadFromIntegerKeys(senderKeys.getPublic(),
+                                                                 receiverKeys.getPublic(),
+                                                                 2,
+                                                                 senderKeys.getPrivate());
+
+    miner.waitFor(miner.appendPayload(new byte[] { 1 }));
+    miner.waitFor(miner.appendPayload(first));
+    assertThat(index.find(new SignedObjectView(first).digest()).height, equalTo(1));
+    assertThat(index.find(new SignedObjectView(second).digest()), nullValue());
+
+    miner.waitFor(miner.appendPayload(second));
+    assertThat(index.find(new SignedObjectView(second).digest()).height, equalTo(2));
+    assertThat(index.find(new SignedObjectView(second).digest()).position, equalTo(0));
+  }
+
+  @Test
+  public void testNewestCopyWins() throws NoSuchAlgorithmException,
+                                          InvalidKeyException,
+                                          SignatureException {
+    Blockchain chain = new Blockchain(problemDifficulty);
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, problemDifficulty));
+    byte[] payment = convenienceTransactionPayloadFromIntegerKeys(senderKeys.getPublic(),
+                                                                  receiverKeys.getPublic(),
+                                                                  1,
+                                                                  senderKeys.getPrivate());
+
+    /* The mempool only turns away copies that are still waiting */
+    miner.waitFor(miner.appendPayload(payment));
+    miner.waitFor(miner.appendPayload(payment));
+
+    assertThat(new TransactionIndex(chain).find(new SignedObjectView(payment).digest()).height,
+               equalTo(1));
+  }
+}
@@ -0,0 +1,118 @@
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+
+import java.util.concurrent.CompletableFuture;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class TransactionTrackerTest extends TestBase {
+  TransactionTracker tracker = new TransactionTracker();
+
+  @After
+  public void shutdownTracker() {
+    tracker.shutdown();
+  }
+
+  String submit(AsynchronouslyMutableLedger ledger, SignedObject transaction) throws NoSuchAlgorithmException {
+    String id = TransactionTracker.transactionId(transaction.serialize());
+    tracker.track(id, ledger.appendSignedTransaction(transaction));
+    return id;
+  }
+
+  @Test
+  public void testMinedTransactionReportsItsBlock() throws NoSuchAlgorithmException,
+                                                           InvalidKeyException,
+                                                           SignatureException,
+                                                           Blockchain.WalkFailedException {
+    Blockchain chain = new Blockchain(problemDifficulty);
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, problemDifficulty));
+    AsynchronouslyMutableLedger ledger = new AsynchronouslyMutableLedger(chain, miner);
+
+    submit(ledger, convenienceTransactionFromIntegerKeys(senderKeys.getPublic(),
+                                                         senderKeys.getPublic(),
+                                                         50,
+                                                         senderKeys.getPrivate()));
+    String id = submit(ledger, convenienceTransactionFromIntegerKeys(senderKeys.getPublic(),
+                                                                     receiverKeys.getPublic(),
+                                                                     20,
+                                                                     senderKeys.getPrivate()));
+
+    Models.TransactionStatus status = tracker.await(id, 10000).join();
+    assertThat(status.status, equalTo(Models.TransactionStatus.MINED));
+    assertThat(status.height, equalTo(1));
+    assertThat(status.blockHash, equalTo(DatatypeConverter.printHexBinary(chain.blockAt(1).hash)));
+    assertThat(tracker.status(id).status, equalTo(Models.TransactionStatus.MINED));
+    assertThat(tracker.pendingCount(), equalTo(0));
+  }
+
+  @Test
+  public void testRejectedTransactionSaysWhy() throws NoSuchAlgorithmException,
+                                                      InvalidKeyException,
+                                                      SignatureException,
+                                                      Blockchain.WalkFailedException {
+    Blockchain chain = new Blockchain(problemDifficulty);
+    BlockMiner miner = registerForCleanup(new BlockMiner(chain, problemDifficulty));
+    AsynchronouslyMutableLedger ledger = new AsynchronouslyMutableLedger(chain, miner);
+
+    submit(ledger, convenienceTransactionFromIntegerKeys(senderKeys.getPublic(),
+                                                         senderKeys.getPublic(),
+                                                         50,
+                                                         senderKeys.getPrivate()));
+
+    /* The receiver has nothing to spend */
+    String id = submit(ledger, convenienceTransactionFromIntegerKeys(receiverKeys.getPublic(),
+                                                                     senderKeys.getPublic(),
+                                                                     20,
+                                                                     receiverKeys.getPrivate()));
+
+    Models.TransactionStatus status = tracker.await(id, 10000).join();
+    assertThat(status.status, equalTo(Models.TransactionStatus.REJECTED));
+    assertThat(status.rejection, equalTo(BlockMiner.PayloadRejectedException.Reason.INVALID.name()));
+    assertThat(status.reason != null && !status.reason.isEmpty(), equalTo(true));
+    assertThat(status.height, equalTo(-1));
+  }
+
+  @Test
+  public void testAwaitGivesUpWhileStillPending() {
+    CompletableFuture<BlockMiner.MinedPayload> completion = new CompletableFuture<BlockMiner.MinedPayload>();
+
+    tracker.track("AB", completion);
+    assertThat(tracker.await("AB", 20).join().status, equalTo(Models.TransactionStatus.PENDING));
+
+    /* Somebody still waiting hears about it as soon as it is done */
+    CompletableFuture<Models.TransactionStatus> waiting = tracker.await("AB", 10000);
+    completion.completeExceptionally(
+      new BlockMiner.PayloadRejectedException(BlockMiner.PayloadRejectedException.Reason.EVICTED, "mempool is full")
+    );
+
+    assertThat(waiting.join().rejection, equalTo(BlockMiner.PayloadRejectedException.Reason.EVICTED.name()));
+  }
+
+  @Test
+  public void testResendingAPendingTransactionKeepsTheOriginal() {
+    CompletableFuture<BlockMiner.MinedPayload> original = new CompletableFuture<BlockMiner.MinedPayload>();
+    CompletableFuture<BlockMiner.MinedPayload> copy = new CompletableFuture<BlockMiner.MinedPayload>();
+
+    tracker.track("AB", original);
+    copy.completeExceptionally(
+      new BlockMiner.PayloadRejectedException(BlockMiner.PayloadRejectedException.Reason.DUPLICATE, "duplicate")
+    );
+
+    assertThat(tracker.track("AB", copy).status, equalTo(Models.TransactionStatus.PENDING));
+    assertThat(tracker.status("AB").status, equalTo(Models.TransactionStatus.PENDING));
+  }
+
+  @Test
+  public void testUnknownTransaction() {
+    assertThat(tracker.status("AB"), nullValue());
+    assertThat(tracker.await("AB", 10), nullValue());
+  }
+}
@@ -0,0 +1,270 @@
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ChainClient makes HTTPS requests to a chain server, reusing connections
+ * and TLS sessions between requests so that only the first one pays for
+ * a full handshake.
+ *
+ * HttpsURLConnection already keeps idle connections around, but only
+ * hands one back out for a request that uses the same socket factory, and
+ * only once the previous response was read to the end. So every
+ * connection gets this client's own factory, rather than whatever
+ * HttpsURLConnection.setDefaultSSLSocketFactory says, and Response.close
+ * reads whatever is left of the body before closing it, as long as there
+ * isn't much of it. A connection that can't be reused, because the
+ * server closed it, falls back on the SSLContext's session cache, which
+ * resumes the old session instead of negotiating a new one.
+ *
+ * The JDK keeps up to http.maxConnections (default 5) idle connections
+ * to each server, so the pool that runs asynchronous requests is that
+ * size too. Any more threads would only open connections that get thrown
+ * away afterwards.
+ */
+public class ChainClient implements Closeable {
+    /* How long a resumable TLS session is kept, in seconds */
+    private static final int sessionTimeout = 24 * 60 * 60;
+
+    /* How much of an unread body Response.close reads to keep its
+     * connection. Past that, a new connection is cheaper */
+    private static final int drainLimit = 64 * 1024;
+
+    public final String host;
+    public final int port;
+
+    private final SSLSocketFactory socketFactory;
+    private final ExecutorService executor;
+
+    public ChainClient(String host, int port, SSLContext context) {
+        this.host = host;
+        this.port = port;
+
+        context.getClientSessionContext().setSessionTimeout(sessionTimeout);
+        this.socketFactory = context.getSocketFactory();
+        this.executor = Executors.newFixedThreadPool(Integer.getInteger("http.maxConnections", 5),
+                                                     new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "chain-client-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Response
+     *
+     * The status and body of a response. The body is streamed from the
+     * connection as it is read. Always close a Response, which gives the
+     * connection back to be used again, or abort it if the body turned
+     * out to be no good.
+     */
+    public static class Response implements Closeable {
+        public final int status;
+        public final String contentType;
+        public final InputStream body;
+
+        private final HttpURLConnection connection;
+        private boolean closed;
+
+        Response(int status, String contentType, InputStream body, HttpURLConnection connection) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+            this.connection = connection;
+        }
+
+        /* Read the rest of the body as a string */
+        public String text() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+
+            while ((count = body.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+
+            return new String(out.toByteArray(), "UTF-8");
+        }
+
+        /* Read and throw away whatever is left of the body, so that the
+         * connection can be used again, then close it. If there is more
+         * than drainLimit bytes left, the connection is dropped instead */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+
+            byte[] buffer = new byte[8192];
+            long drained = 0;
+            int count;
+            try {
+                while ((count = body.read(buffer)) != -1) {
+                    drained += count;
+                    if (drained > drainLimit) {
+                        connection.disconnect();
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                connection.disconnect();
+                throw e;
+            }
+
+            body.close();
+        }
+
+        /* Drop the connection without reading any more of the body, for
+         * when something in it was wrong and the rest is of no use */
+        public void abort() {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * send
+     *
+     * Make a request to endpoint, which is everything in the URL after the
+     * port, including any query string. body is sent as JSON, unless it is
+     * null. accept is sent as the Accept header, unless it is null.
+     *
+     * Unlike HttpsURLConnection.getInputStream, error statuses don't throw,
+     * they are for the caller to check. Bodies of error responses are read
+     * the same way as any other.
+     */
+    public Response send(String endpoint,
+                         String method,
+                         String accept,
+                         String body) throws MalformedURLException,
+                                             IOException {
+        URL url = new URL("https://" + host + ":" + port + "/" + endpoint);
+        HttpsURLConnection connection = (HttpsURLConnection) url.openConnection();
+        connection.setSSLSocketFactory(socketFactory);
+        connection.setUseCaches(false);
+        connection.setRequestProperty("Accept-Charset", "UTF-8");
+        connection.setRequestMethod(method);
+        if (accept != null) {
+            connection.setRequestProperty("Accept", accept);
+        }
+
+        if (body != null) {
+            byte[] bytes = body.getBytes("UTF-8");
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(bytes.length);
+
+            OutputStream os = connection.getOutputStream();
+            try {
+                os.write(bytes);
+            } finally {
+                os.close();
+            }
+        }
+
+        int status = connection.getResponseCode();
+        InputStream stream = status >= HttpURLConnection.HTTP_BAD_REQUEST ?
+                             connection.getErrorStream() :
+                             connection.getInputStream();
+
+        /* Responses without a body, like a 304, don't have a stream to read */
+        if (stream == null) {
+            stream = new InputStream() {
+                @Override
+                public int read() {
+                    return -1;
+                }
+            };
+        }
+
+        return new Response(status, connection.getContentType(), stream, connection);
+    }
+
+    /* Like send, but throws an IOException for anything other than a
+     * successful status */
+    public Response sendExpectingSuccess(String endpoint,
+                                         String method,
+                                         String accept,
+                                         String body) throws MalformedURLException,
+                                                             IOException {
+        Response response = send(endpoint, method, accept, body);
+        if (response.status / 100 != 2) {
+            String message;
+            try {
+                message = response.text();
+            } finally {
+                response.close();
+            }
+
+            throw new IOException("Server answered " + response.status + " to " + endpoint +
+                                  ": " + message);
+        }
+
+        return response;
+    }
+
+    /* Send a request and read the whole response body as a string */
+    public String sendForText(String endpoint,
+                              String method,
+                              String body) throws MalformedURLException,
+                                                  IOException {
+        Response response = sendExpectingSuccess(endpoint, method, null, body);
+        try {
+            return response.text();
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * async
+     *
+     * Run call on this client's pool, completing the returned future with
+     * its result, or exceptionally with whatever it throws.
+     */
+    public <T> CompletableFuture<T> async(final Callable<T> call) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    future.complete(call.call());
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+
+        return future;
+    }
+
+    /* Stop taking asynchronous requests. Requests that are already on
+     * their way carry on */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
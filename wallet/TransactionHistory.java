@@ -1,13 +1,11 @@
 import java.util.List;
 import java.util.LinkedList;
 
-import javax.xml.bind.DatatypeConverter;
-
 public class TransactionHistory {
-    private List<Transaction> transactions;
-    private String walletID;
+    private List<TransactionView> transactions;
+    private WalletId walletID;
 
-    public TransactionHistory(String walletID, List<Transaction> transactions) {
+    public TransactionHistory(WalletId walletID, List<TransactionView> transactions) {
         this.transactions = transactions;
         this.walletID = walletID;
     }
@@ -15,7 +13,7 @@ public class TransactionHistory {
     public String log() {
         StringBuilder builder = new StringBuilder();
 
-        for (Transaction transaction : transactions) {
+        for (TransactionView transaction : transactions) {
             builder.append(transaction.toString() + "\n");
         }
 
@@ -25,13 +23,13 @@ public class TransactionHistory {
     public int balance() {
         int balance = 0;
 
-        for (Transaction transaction : transactions) {
+        for (TransactionView transaction : transactions) {
             /* Handle the edge case where the genesis node gives
              * coins to itself */
-            if (DatatypeConverter.printHexBinary(transaction.rPubKey).equals(walletID)) {
-                balance += transaction.amount;
-            } else if (DatatypeConverter.printHexBinary(transaction.sPubKey).equals(walletID)) {
-                balance -= transaction.amount;
+            if (transaction.recipientIs(walletID)) {
+                balance += transaction.amount();
+            } else if (transaction.senderIs(walletID)) {
+                balance -= transaction.amount();
             }
         }
 
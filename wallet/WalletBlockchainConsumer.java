@@ -3,8 +3,6 @@ import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.Arrays;
 
-import javax.xml.bind.DatatypeConverter;
-
 public class WalletBlockchainConsumer {
     private Blockchain chain;
 
@@ -13,18 +11,22 @@ public class WalletBlockchainConsumer {
     }
 
     public static class TransactionHistoryObserver implements Ledger.TransactionObserver {
-        private String walletID;
-        private List<Transaction> transactions;
+        private WalletId walletID;
+        private List<TransactionView> transactions;
 
-        public TransactionHistoryObserver(String walletID) {
+        public TransactionHistoryObserver(WalletId walletID) {
             this.walletID = walletID;
-            this.transactions = new LinkedList<Transaction>();
+            this.transactions = new LinkedList<TransactionView>();
+        }
+
+        public TransactionHistoryObserver(String walletID) {
+            this(WalletId.fromHex(walletID));
         }
 
         @Override
-        public void consume(Transaction transaction) {
-            if (DatatypeConverter.printHexBinary(transaction.sPubKey).equals(walletID) ||
-                DatatypeConverter.printHexBinary(transaction.rPubKey).equals(walletID)) {
+        public void consume(TransactionView transaction) {
+            if (transaction.senderIs(walletID) ||
+                transaction.recipientIs(walletID)) {
                 this.transactions.add(transaction);
             }
         }
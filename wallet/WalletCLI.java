@@ -38,6 +38,9 @@ public class WalletCLI {
         @Option(name="-recipient", usage="The receiver's wallet ID (public key)", metaVar="WALLET_ID")
         public String recipient;
 
+        @Option(name="-wait-ms", usage="How long to wait for a transaction to be mined, if at all", metaVar="MILLISECONDS")
+        public long waitMs = 0;
+
         @Option(name="-host", usage="The blockchain host to connect to (mandatory)", metaVar="HOST")
         public String host;
 
@@ -97,14 +100,24 @@ public class WalletCLI {
                                                                        arguments.keystore,
                                                                        System.getenv("KEYSTORE_PASSWORD"));
 
-        TransactionHistory history = walletOrchestrator.history(arguments.walletID);
+        try {
+            TransactionHistory history = walletOrchestrator.history(arguments.walletID);
+
+            System.out.println("Current balance: " + history.balance());
+            if (arguments.recipient != null) {
+                String transactionId = walletOrchestrator.transaction(arguments.walletID,
+                                                                      arguments.recipient,
+                                                                      arguments.amount,
+                                                                      KeyGenerator.readKeyFromFile(arguments.signingKey));
+                System.out.println("Transaction id: " + transactionId);
 
-        System.out.println("Current balance: " + history.balance());
-        if (arguments.recipient != null) {
-            System.out.println(walletOrchestrator.transaction(arguments.walletID,
-                                                              arguments.recipient,
-                                                              arguments.amount,
-                                                              KeyGenerator.readKeyFromFile(arguments.signingKey)));
+                if (arguments.waitMs > 0) {
+                    System.out.println(walletOrchestrator.awaitTransaction(transactionId,
+                                                                           arguments.waitMs).serialise());
+                }
+            }
+        } finally {
+            walletOrchestrator.close();
         }
     }
 }
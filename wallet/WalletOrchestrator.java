@@ -1,14 +1,14 @@
-import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManagerFactory;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.lang.IllegalArgumentException;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.URL;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.KeyStore;
@@ -22,13 +22,29 @@ import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.InvalidKeySpecException;
-import java.util.Scanner;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 
 import javax.xml.bind.DatatypeConverter;
 
-public class WalletOrchestrator {
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * WalletOrchestrator talks to a chain server on behalf of a wallet or a
+ * node that is following another one. All of its requests go through one
+ * ChainClient, so connections and TLS sessions are reused from one request
+ * to the next. Close it when you are done with it.
+ */
+public class WalletOrchestrator implements Closeable {
     public String host;
 
+    private static final Gson gson = new GsonBuilder().create();
+
+    private final ChainClient client;
+
     private SSLContext createSSLContextForKeyFileStream(InputStream keyStoreStream,
                                                         char[] password) throws CertificateException,
                                                                                 NoSuchAlgorithmException,
@@ -72,30 +88,17 @@ public class WalletOrchestrator {
             keyStoreStream.close();
         }
 
-        HttpsURLConnection.setDefaultSSLSocketFactory(context.getSocketFactory());
         this.host = host;
+        this.client = new ChainClient(host, 3002, context);
     }
 
-    private String request(String endpoint, String method, String body) throws MalformedURLException,
-                                                                               IOException {
-        URL url = new URL("https://" + host + ":3002/" + endpoint);
-        HttpsURLConnection connection = (HttpsURLConnection) url.openConnection();
-        connection.setRequestProperty("Accept-Charset", "UTF-8");
-        connection.setRequestMethod(method);
-        if (body != null) {
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setDoOutput(true);
-
-            OutputStream os = connection.getOutputStream();
-            os.write(body.getBytes("UTF-8"));
-            os.close();
-        }
-        InputStream response = connection.getInputStream();
-
-        Scanner s = new Scanner(response, "UTF-8").useDelimiter("\\A");
-        return s.hasNext() ? s.next() : "";
+    @Override
+    public void close() {
+        client.close();
     }
 
+    /* Send a transaction to the server, returning its transaction id, see
+     * awaitTransaction */
     public String transaction(String src,
                               String dst,
                               int amount,
@@ -106,6 +109,22 @@ public class WalletOrchestrator {
                                                         NoSuchProviderException,
                                                         NoSuchAlgorithmException,
                                                         SignatureException {
+        Models.TransactionStatus status = Models.TransactionStatus.deserialise(
+            client.sendForText("transaction", "POST", signedTransaction(src, dst, amount, signingKey).serialise())
+        );
+        return status.id;
+    }
+
+    /* A transaction of amount from src to dst, signed with signingKey and
+     * ready to send, see transactions */
+    public static Models.Transaction signedTransaction(String src,
+                                                       String dst,
+                                                       int amount,
+                                                       byte[] signingKey) throws InvalidKeyException,
+                                                                                 InvalidKeySpecException,
+                                                                                 NoSuchProviderException,
+                                                                                 NoSuchAlgorithmException,
+                                                                                 SignatureException {
         PrivateKey key = KeyFactory.getInstance("RSA", "BC").generatePrivate(
             new PKCS8EncodedKeySpec(signingKey)
         );
@@ -113,18 +132,245 @@ public class WalletOrchestrator {
                                                   DatatypeConverter.parseHexBinary(dst),
                                                   amount);
         SignedObject blob = new SignedObject(transaction.serialize(), key);
-        Models.Transaction record = new Models.Transaction(src,
-                                                           dst,
-                                                           amount,
-                                                           DatatypeConverter.printHexBinary(blob.signature));
-        return request("transaction", "POST", record.serialise());
+        return new Models.Transaction(src,
+                                      dst,
+                                      amount,
+                                      DatatypeConverter.printHexBinary(blob.signature));
+    }
+
+    /**
+     * transactions
+     *
+     * Send a batch of signed transactions in one request, see
+     * signedTransaction. Returns the status of each one, in the same
+     * order. Transactions the server turned away straight away are
+     * REJECTED and have no id; the rest can be passed to awaitTransaction.
+     *
+     * The server takes at most 10000 transactions at once by default and
+     * answers anything bigger with an error, so split up bigger batches.
+     */
+    public Models.TransactionStatus[] transactions(List<Models.Transaction> records) throws MalformedURLException,
+                                                                                           IOException {
+        return Models.TransactionStatus.deserialiseAll(
+            client.sendForText("transactions",
+                               "POST",
+                               gson.toJson(records.toArray(new Models.Transaction[records.size()])))
+        );
+    }
+
+    /* transactions, without waiting for the server to answer */
+    public CompletableFuture<Models.TransactionStatus[]> transactionsAsync(final List<Models.Transaction> records) {
+        return client.async(new Callable<Models.TransactionStatus[]>() {
+            public Models.TransactionStatus[] call() throws Exception {
+                return transactions(records);
+            }
+        });
+    }
+
+    /* transaction, without waiting for the server to answer */
+    public CompletableFuture<String> transactionAsync(final String src,
+                                                      final String dst,
+                                                      final int amount,
+                                                      final byte[] signingKey) {
+        return client.async(new Callable<String>() {
+            public String call() throws Exception {
+                return transaction(src, dst, amount, signingKey);
+            }
+        });
+    }
+
+    /**
+     * awaitTransaction
+     *
+     * Wait up to timeoutMs for the transaction with the given id to be
+     * mined or rejected, asking the server to hold on to our request until
+     * something happens rather than asking over and over again. Returns
+     * its status, which is still PENDING if we ran out of time.
+     */
+    public Models.TransactionStatus awaitTransaction(String transactionId,
+                                                     long timeoutMs) throws MalformedURLException,
+                                                                            IOException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        Models.TransactionStatus status;
+
+        do {
+            long remaining = Math.max(0, deadline - System.currentTimeMillis());
+            status = Models.TransactionStatus.deserialise(client.sendForText("transaction_status?id=" +
+                                                                             transactionId +
+                                                                             "&wait=" + remaining,
+                                                                             "GET",
+                                                                             null));
+        } while (status.isPending() && System.currentTimeMillis() < deadline);
+
+        return status;
     }
 
     public Blockchain fetchBlockchain() throws MalformedURLException,
                                                IOException,
                                                NoSuchAlgorithmException,
                                                Blockchain.IntegrityCheckFailedException {
-        return Blockchain.deserialise(request("download_blockchain", "GET", null));
+        /* Ask for the binary encoding, which we can validate block by block
+         * as it arrives, but still accept JSON from servers that don't
+         * know about it */
+        ChainClient.Response response = client.sendExpectingSuccess("download_blockchain",
+                                                                    "GET",
+                                                                    BlockStream.contentType + ", application/json",
+                                                                    null);
+        try {
+            String contentType = response.contentType;
+            if (contentType != null && contentType.startsWith(BlockStream.contentType)) {
+                return BlockStream.read(new BufferedInputStream(response.body));
+            }
+
+            return Blockchain.deserialise(response.text());
+        } catch (Blockchain.IntegrityCheckFailedException e) {
+            /* Don't download the rest of a chain we have already
+             * turned down */
+            response.abort();
+            throw e;
+        } catch (IOException e) {
+            response.abort();
+            throw e;
+        } finally {
+            response.close();
+        }
+    }
+
+    /* fetchBlockchain, without waiting for the download */
+    public CompletableFuture<Blockchain> fetchBlockchainAsync() {
+        return client.async(new Callable<Blockchain>() {
+            public Blockchain call() throws Exception {
+                return fetchBlockchain();
+            }
+        });
+    }
+
+    public static class ChainDivergedException extends Exception {
+        public ChainDivergedException(int height) {
+            super("Local chain does not match the server's chain at height " + height +
+                  ", download the whole chain again instead");
+        }
+    }
+
+    /**
+     * syncBlockchain
+     *
+     * Bring an existing chain up to date by downloading only the blocks
+     * that were mined after its child most block. Each new block is
+     * validated before it is appended. Returns the number of blocks that
+     * were appended.
+     *
+     * Throws ChainDivergedException if the server's chain doesn't start
+     * with the blocks we already have, in which case chain is unchanged.
+     */
+    public int syncBlockchain(Blockchain chain) throws MalformedURLException,
+                                                       IOException,
+                                                       NoSuchAlgorithmException,
+                                                       Blockchain.IntegrityCheckFailedException,
+                                                       ChainDivergedException {
+        int height = chain.length();
+        ChainClient.Response response = client.send("download_blockchain_since?height=" + height +
+                                                    "&tip=" + DatatypeConverter.printHexBinary(chain.tipHash()),
+                                                    "GET",
+                                                    BlockStream.contentType,
+                                                    null);
+        try {
+            if (response.status == HttpURLConnection.HTTP_CONFLICT) {
+                throw new ChainDivergedException(height);
+            }
+
+            if (response.status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Server answered " + response.status + " to a request for new blocks");
+            }
+
+            return BlockStream.readInto(chain, new BufferedInputStream(response.body));
+        } catch (Blockchain.IntegrityCheckFailedException e) {
+            response.abort();
+            throw e;
+        } catch (IOException e) {
+            response.abort();
+            throw e;
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * syncHeaders
+     *
+     * Bring a HeaderChain up to date with the server, checking that each
+     * new header follows the last and was properly mined. Returns the
+     * number of headers that were appended.
+     */
+    public int syncHeaders(HeaderChain headers) throws MalformedURLException,
+                                                       IOException,
+                                                       NoSuchAlgorithmException,
+                                                       Blockchain.IntegrityCheckFailedException {
+        ChainClient.Response response = client.sendExpectingSuccess("download_headers?from=" + headers.length(),
+                                                                    "GET",
+                                                                    HeaderChain.contentType,
+                                                                    null);
+        try {
+            return HeaderChain.readInto(headers, new BufferedInputStream(response.body));
+        } catch (Blockchain.IntegrityCheckFailedException e) {
+            response.abort();
+            throw e;
+        } catch (IOException e) {
+            response.abort();
+            throw e;
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * verifyInclusion
+     *
+     * Ask the server to prove that the transaction whose SignedObjectView.digest
+     * is transactionId is in some block, and check that proof against our
+     * own copy of the headers, without downloading any blocks. The headers
+     * are synced first if the proof is for a block we haven't seen yet.
+     *
+     * Returns false if the server doesn't know about the transaction or if
+     * its proof doesn't check out.
+     */
+    public boolean verifyInclusion(HeaderChain headers,
+                                   byte[] transactionId) throws MalformedURLException,
+                                                                IOException,
+                                                                NoSuchAlgorithmException,
+                                                                Blockchain.IntegrityCheckFailedException {
+        ChainClient.Response response = client.send("transaction_proof?id=" +
+                                                    DatatypeConverter.printHexBinary(transactionId),
+                                                    "GET",
+                                                    "application/json",
+                                                    null);
+        Models.InclusionProof proof;
+        try {
+            if (response.status == HttpURLConnection.HTTP_NOT_FOUND) {
+                return false;
+            }
+
+            if (response.status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Server answered " + response.status + " to a request for a proof");
+            }
+
+            proof = Models.InclusionProof.deserialise(response.text());
+        } finally {
+            response.close();
+        }
+
+        if (proof.height >= headers.length()) {
+            syncHeaders(headers);
+        }
+
+        /* Make sure the server sent the transaction we asked about and
+         * not just some other transaction that is in the chain */
+        byte[] transaction = proof.transactionBytes();
+        if (!Arrays.equals(new SignedObjectView(transaction).digest(), transactionId)) {
+            return false;
+        }
+
+        return headers.includes(proof.height, transaction, proof.proof());
     }
 
     public static TransactionHistory transactionHistoryFromChain(String walletID, Blockchain chain) throws Blockchain.WalkFailedException {
@@ -139,6 +385,12 @@ public class WalletOrchestrator {
         return transactionHistoryFromChain(walletID, fetchBlockchain());
     }
 
-
-
+    /* history, without waiting for the chain to download */
+    public CompletableFuture<TransactionHistory> historyAsync(final String walletID) {
+        return client.async(new Callable<TransactionHistory>() {
+            public TransactionHistory call() throws Exception {
+                return history(walletID);
+            }
+        });
+    }
 }